@@ -0,0 +1,165 @@
+package net.trevize.barb.bench;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import net.trevize.barb.TAutomatonMatcher;
+import net.trevize.barb.TAutomatonRegex;
+
+/*
+ * Compares the matches found by the automaton engine with those of java.util.regex, on the regular expressions
+ * of FIXED_CASES then on random regular expressions and texts over a small alphabet. The random regular
+ * expressions mix optional atoms, empty alternatives, repetitions and anchors, the texts contain line
+ * terminators so that ^ and $ hold in the middle of a text with MULTILINE. Each case is checked with the flags of
+ * barb (DOTALL and MULTILINE) and without flag (-u).
+ *
+ * As in a pass of TReplacementPlan, two regular expressions may be combined, each in a group: the bounds of the
+ * matches are compared, and which group took part in each match. The groups of a regular expression are not
+ * compared, the replacements of barb do not refer to them, and java.util.regex does not record a group in an
+ * iteration matching empty.
+ *
+ * Arguments: [CASE_COUNT] [SEED]. Prints the first difference and exits with 1, the seed and the case count are
+ * enough to replay it.
+ */
+public class TAutomatonDifferentialCheck {
+  
+  public static final int  DEFAULT_CASE_COUNT = 200000;
+  public static final long DEFAULT_SEED       = 20240229L;
+  
+  /*
+   * Regular expression and text pairs which once differed.
+   */
+  private static final String[][] FIXED_CASES = { { "b?^c", "b\nc" }, { "(?:b|)^c", "b\nc" } };
+  
+  private static final int[]    FLAGS_ARRAY = { Pattern.DOTALL | Pattern.MULTILINE, 0 };
+  private static final String[] ATOMS       = { "a", "b", "c", ".", "[ab]", "[^a]", "\\n" };
+  private static final String[] ANCHORS     = { "^", "$" };
+  private static final String[] QUANTIFIERS = { "?", "*", "+", "??", "*?", "+?", "{0,2}" };
+  private static final String   TEXT_CHARS  = "abc\n";
+  
+  private Random fRandom           = null;
+  private int    fCheckedCount     = 0;
+  private int    fUnsupportedCount = 0;
+  
+  public TAutomatonDifferentialCheck( long aSeed ) {
+    fRandom = new Random( aSeed );
+  }
+  
+  public static void main( String[] args ) {
+    int l_caseCount = ( args.length > 0 ) ? Integer.parseInt( args[ 0 ] ) : DEFAULT_CASE_COUNT;
+    long l_seed = ( args.length > 1 ) ? Long.parseLong( args[ 1 ] ) : DEFAULT_SEED;
+    TAutomatonDifferentialCheck l_check = new TAutomatonDifferentialCheck( l_seed );
+    boolean l_isSame = true;
+    for ( String[] l_fixedCase : FIXED_CASES ) {
+      l_isSame = l_isSame && l_check.check( new String[] { l_fixedCase[ 0 ] }, l_fixedCase[ 1 ] );
+    }
+    for ( int l_caseIndex = 0; l_isSame && ( l_caseIndex < l_caseCount ); ++l_caseIndex ) {
+      String[] l_regexArray = new String[ 1 + l_check.fRandom.nextInt( 2 ) ];
+      for ( int l_regexIndex = 0; l_regexIndex < l_regexArray.length; ++l_regexIndex ) {
+        l_regexArray[ l_regexIndex ] = l_check.nextRegex( 3 );
+      }
+      l_isSame = l_check.check( l_regexArray, l_check.nextText() );
+    }
+    System.out.println( String.format( "Checked[%d] Unsupported[%d] Seed[%d]", l_check.fCheckedCount, l_check.fUnsupportedCount, l_seed ) );
+    System.exit( l_isSame ? 0 : 1 );
+  }
+  
+  /*
+   * Returns false and prints the matches if the engines differ on aText. Several regular expressions are combined
+   * as in a pass of TReplacementPlan.
+   */
+  public boolean check( String[] aRegexArray, String aText ) {
+    String l_combinedRegex = aRegexArray[ 0 ];
+    List<Integer> l_groupIndexList = new ArrayList<>();
+    if ( aRegexArray.length > 1 ) {
+      l_combinedRegex = "";
+      for ( String l_regex : aRegexArray ) {
+        l_groupIndexList.add( Pattern.compile( l_combinedRegex ).matcher( "" ).groupCount() + 1 );
+        l_combinedRegex += ( l_combinedRegex.isEmpty() ? "(" : "|(" ) + l_regex + ")";
+      }
+    }
+    return check( l_combinedRegex, l_groupIndexList, aText );
+  }
+  
+  private boolean check( String aRegex, List<Integer> aGroupIndexList, String aText ) {
+    for ( int l_flags : FLAGS_ARRAY ) {
+      Pattern l_pattern = Pattern.compile( aRegex, l_flags );
+      TAutomatonRegex l_automatonRegex = null;
+      try {
+        l_automatonRegex = TAutomatonRegex.compile( aRegex, l_flags );
+      }
+      catch ( TAutomatonRegex.TUnsupportedRegexException l_exception ) {
+        ++fUnsupportedCount;
+        continue;
+      }
+      ++fCheckedCount;
+      Matcher l_matcher = l_pattern.matcher( aText );
+      List<String> l_expectedMatchList = new ArrayList<>();
+      while ( l_matcher.find() ) {
+        StringBuilder l_match = new StringBuilder( l_matcher.start() + "-" + l_matcher.end() );
+        for ( int l_groupIndex : aGroupIndexList ) {
+          l_match.append( " " ).append( l_matcher.start( l_groupIndex ) );
+        }
+        l_expectedMatchList.add( l_match.toString() );
+      }
+      TAutomatonMatcher l_automatonMatcher = l_automatonRegex.matcher( aText );
+      List<String> l_matchList = new ArrayList<>();
+      while ( l_automatonMatcher.find() ) {
+        StringBuilder l_match = new StringBuilder( l_automatonMatcher.start() + "-" + l_automatonMatcher.end() );
+        for ( int l_groupIndex : aGroupIndexList ) {
+          l_match.append( " " ).append( l_automatonMatcher.start( l_groupIndex ) );
+        }
+        l_matchList.add( l_match.toString() );
+      }
+      if ( ! l_matchList.equals( l_expectedMatchList ) ) {
+        System.out.println( String.format( "Regex[%s] Flags[%d] Text[%s]", aRegex, l_flags, aText.replace( "\n", "\\n" ) ) );
+        System.out.println( String.format( "  java.util.regex: %s", l_expectedMatchList ) );
+        System.out.println( String.format( "  automaton:       %s", l_matchList ) );
+        return false;
+      }
+    }
+    return true;
+  }
+  
+  private String nextRegex( int aDepth ) {
+    StringBuilder l_regex = new StringBuilder();
+    int l_alternativeCount = 1 + ( ( fRandom.nextInt( 4 ) == 0 ) ? 1 : 0 );
+    for ( int l_alternativeIndex = 0; l_alternativeIndex < l_alternativeCount; ++l_alternativeIndex ) {
+      if ( l_alternativeIndex > 0 ) {
+        l_regex.append( "|" );
+      }
+      int l_pieceCount = fRandom.nextInt( 4 );
+      for ( int l_pieceIndex = 0; l_pieceIndex < l_pieceCount; ++l_pieceIndex ) {
+        int l_kind = fRandom.nextInt( 10 );
+        if ( l_kind < 3 ) {
+          // An anchor is not quantified.
+          l_regex.append( ANCHORS[ fRandom.nextInt( ANCHORS.length ) ] );
+          continue;
+        }
+        if ( ( l_kind < 5 ) && ( aDepth > 0 ) ) {
+          l_regex.append( fRandom.nextBoolean() ? "(" : "(?:" ).append( nextRegex( aDepth - 1 ) ).append( ")" );
+        }
+        else {
+          l_regex.append( ATOMS[ fRandom.nextInt( ATOMS.length ) ] );
+        }
+        if ( fRandom.nextInt( 3 ) == 0 ) {
+          l_regex.append( QUANTIFIERS[ fRandom.nextInt( QUANTIFIERS.length ) ] );
+        }
+      }
+    }
+    return l_regex.toString();
+  }
+  
+  private String nextText() {
+    int l_length = fRandom.nextInt( 17 );
+    StringBuilder l_text = new StringBuilder( l_length );
+    for ( int l_index = 0; l_index < l_length; ++l_index ) {
+      l_text.append( TEXT_CHARS.charAt( fRandom.nextInt( TEXT_CHARS.length() ) ) );
+    }
+    return l_text.toString();
+  }
+  
+}
@@ -0,0 +1,125 @@
+package net.trevize.barb.bench;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import net.trevize.barb.TBarb;
+
+/*
+ * Measures a whole replacement run over a generated corpus: reading, matching and writing back every matching
+ * target file, patched in place or replaced by a temporary file with fAtomic (--atomic). The invocations apply
+ * in turn the two pattern/replacement pairs of TCorpusGenerator, which change the case of the matched marker
+ * back and forth: every matching file is written, barb skipping the write of a file left identical, while the
+ * corpus generated for a trial keeps the same matches for all its invocations.
+ *
+ * The FoundMatch lines are discarded during the measurement.
+ */
+@State( Scope.Benchmark )
+@BenchmarkMode( Mode.AverageTime )
+@OutputTimeUnit( TimeUnit.MILLISECONDS )
+@Warmup( iterations = 3, time = 2, timeUnit = TimeUnit.SECONDS )
+@Measurement( iterations = 5, time = 2, timeUnit = TimeUnit.SECONDS )
+@Fork( value = 1, jvmArgsAppend = { "-Xms2g", "-Xmx2g" } )
+public class TBarbBenchmark {
+  
+  @Param( { "SMALL_FILES", "HUGE_FILES" } )
+  public TCorpusGenerator.TCorpusShape fShape;
+  
+  @Param( { "0", "1", "100" } )
+  public int                           fMatchRate;
+  
+  @Param( { "false", "true" } )
+  public boolean                       fAtomic;
+  
+  private Path                         fCorpusDirectory = null;
+  private List<File>                   fTargetFileList  = null;
+  private PrintStream                  fStandardOutput  = null;
+  private boolean                      fIsReplaced      = false;
+  
+  @Setup( Level.Trial )
+  public void generateCorpus() throws IOException {
+    fCorpusDirectory = Files.createTempDirectory( "barb-bench" );
+    fTargetFileList = new TCorpusGenerator( TCorpusGenerator.DEFAULT_SEED ).generate( fCorpusDirectory.toFile(), fShape, fMatchRate );
+    fStandardOutput = System.out;
+    System.setOut( new PrintStream( new OutputStream() {
+      
+      @Override
+      public void write( int aByte ) {
+      }
+      
+      @Override
+      public void write( byte[] aBytes, int aOffset, int aLength ) {
+      }
+      
+    } ) );
+  }
+  
+  @TearDown( Level.Trial )
+  public void deleteCorpus() throws IOException {
+    System.setOut( fStandardOutput );
+    try ( Stream<Path> l_pathStream = Files.walk( fCorpusDirectory ) ) {
+      l_pathStream.sorted( Comparator.reverseOrder() ).map( Path::toFile ).forEach( File::delete );
+    }
+  }
+  
+  @Benchmark
+  public int literal() throws Exception {
+    if ( toggleReplaced() ) {
+      return createBarb().searchAndReplaceByLiteral( TCorpusGenerator.LITERAL_PATTERN, TCorpusGenerator.LITERAL_REPLACEMENT, fTargetFileList );
+    }
+    return createBarb().searchAndReplaceByLiteral( TCorpusGenerator.OTHER_LITERAL_PATTERN, TCorpusGenerator.OTHER_LITERAL_REPLACEMENT, fTargetFileList );
+  }
+  
+  @Benchmark
+  public int regex() throws Exception {
+    if ( toggleReplaced() ) {
+      return createBarb().searchAndReplaceByRegex( TCorpusGenerator.REGEX_PATTERN, TCorpusGenerator.REGEX_REPLACEMENT, fTargetFileList );
+    }
+    return createBarb().searchAndReplaceByRegex( TCorpusGenerator.OTHER_REGEX_PATTERN, TCorpusGenerator.OTHER_REGEX_REPLACEMENT, fTargetFileList );
+  }
+  
+  @Benchmark
+  public int dotallRegex() throws Exception {
+    if ( toggleReplaced() ) {
+      return createBarb().searchAndReplaceByRegex( TCorpusGenerator.DOTALL_PATTERN, TCorpusGenerator.DOTALL_REPLACEMENT, fTargetFileList );
+    }
+    return createBarb().searchAndReplaceByRegex( TCorpusGenerator.OTHER_DOTALL_PATTERN, TCorpusGenerator.OTHER_DOTALL_REPLACEMENT, fTargetFileList );
+  }
+  
+  private TBarb createBarb() {
+    TBarb l_barb = new TBarb();
+    l_barb.setAtomicWrite( fAtomic );
+    return l_barb;
+  }
+  
+  /*
+   * Returns true if the corpus is as generated, its markers are then replaced by this invocation.
+   */
+  private boolean toggleReplaced() {
+    fIsReplaced = ! fIsReplaced;
+    return fIsReplaced;
+  }
+  
+}
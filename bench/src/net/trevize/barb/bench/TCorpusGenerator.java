@@ -0,0 +1,143 @@
+package net.trevize.barb.bench;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/*
+ * Generates a synthetic corpus of ASCII text files. The content only depends on the shape, the match rate and
+ * the seed, so that the benchmarks of two releases run on the same corpus.
+ *
+ * A file is made of lines of words picked in a vocabulary in which no marker appears. MATCH_RATE percent of the
+ * lines are replaced by a match site spanning three lines:
+ *
+ *   BEGIN needle-<number> <words>
+ *   <words>
+ *   <words> END
+ *
+ * which is matched by the literal LITERAL_PATTERN, the regular expression REGEX_PATTERN and the multi-lines
+ * regular expression DOTALL_PATTERN. Their replacements change the case of the marker they match, and the
+ * patterns OTHER_LITERAL_PATTERN, OTHER_REGEX_PATTERN and OTHER_DOTALL_PATTERN match the marker so replaced, with
+ * the replacements giving it back: applied in turn, the two pairs write every matching file while the corpus
+ * keeps the same size and the same matches. barb writes a replacement literally ($1 is not expanded): the
+ * regular expressions check the rest of the match site with a lookahead instead of capturing it, and their
+ * replacement is the marker they consume.
+ */
+public class TCorpusGenerator {
+  
+  public enum TCorpusShape {
+    
+    SMALL_FILES( 2000, 4 << 10 ), HUGE_FILES( 4, 16 << 20 );
+    
+    private int fFileCount = 0;
+    private int fFileSize  = 0;
+    
+    private TCorpusShape( int aFileCount, int aFileSize ) {
+      fFileCount = aFileCount;
+      fFileSize = aFileSize;
+    }
+    
+    public int getFileCount() {
+      return fFileCount;
+    }
+    
+    public int getFileSize() {
+      return fFileSize;
+    }
+    
+  }
+  
+  public static final String LITERAL_PATTERN           = "needle-";
+  public static final String LITERAL_REPLACEMENT       = "NEEDLE-";
+  public static final String OTHER_LITERAL_PATTERN     = "NEEDLE-";
+  public static final String OTHER_LITERAL_REPLACEMENT = "needle-";
+  public static final String REGEX_PATTERN             = "needle-(?=\\d+)";
+  public static final String REGEX_REPLACEMENT         = "NEEDLE-";
+  public static final String OTHER_REGEX_PATTERN       = "NEEDLE-(?=\\d+)";
+  public static final String OTHER_REGEX_REPLACEMENT   = "needle-";
+  public static final String DOTALL_PATTERN            = "BEGIN(?=.*?END)";
+  public static final String DOTALL_REPLACEMENT        = "begin";
+  public static final String OTHER_DOTALL_PATTERN      = "begin(?=.*?END)";
+  public static final String OTHER_DOTALL_REPLACEMENT  = "BEGIN";
+  
+  public static final long DEFAULT_SEED = 20240229L;
+  
+  private static final String[] VOCABULARY = { "alpha", "bravo", "charlie", "delta", "echo", "foxtrot", "golf", "hotel", "india", "juliett", "kilo", "lima", "mike", "november", "oscar", "papa", "quebec", "romeo", "sierra", "tango", "uniform", "victor", "whiskey", "xray", "yankee", "zulu", "0", "1", "42", "=", "{", "}", "(", ")", ";" };
+  
+  private static final int MIN_WORD_COUNT_PER_LINE = 4;
+  private static final int MAX_WORD_COUNT_PER_LINE = 12;
+  
+  private Random fRandom = null;
+  
+  public TCorpusGenerator( long aSeed ) {
+    fRandom = new Random( aSeed );
+  }
+  
+  /*
+   * Writes the files of the corpus in aDirectory and returns them in the order they were generated.
+   */
+  public List<File> generate( File aDirectory, TCorpusShape aShape, int aMatchRate ) throws IOException {
+    Files.createDirectories( aDirectory.toPath() );
+    List<File> l_fileList = new ArrayList<>();
+    for ( int l_fileIndex = 0; l_fileIndex < aShape.getFileCount(); ++l_fileIndex ) {
+      File l_file = new File( aDirectory, String.format( "file-%05d.txt", l_fileIndex ) );
+      try ( BufferedWriter l_writer = Files.newBufferedWriter( l_file.toPath(), StandardCharsets.US_ASCII ) ) {
+        writeFile( l_writer, aShape.getFileSize(), aMatchRate );
+      }
+      l_fileList.add( l_file );
+    }
+    return l_fileList;
+  }
+  
+  private void writeFile( BufferedWriter aWriter, int aFileSize, int aMatchRate ) throws IOException {
+    int l_length = 0;
+    StringBuilder l_line = new StringBuilder();
+    while ( l_length < aFileSize ) {
+      l_line.setLength( 0 );
+      if ( fRandom.nextInt( 100 ) < aMatchRate ) {
+        l_line.append( "BEGIN needle-" ).append( fRandom.nextInt( 1000000 ) ).append( ' ' );
+        appendWords( l_line );
+        l_line.append( '\n' );
+        appendWords( l_line );
+        l_line.append( '\n' );
+        appendWords( l_line );
+        l_line.append( " END\n" );
+      }
+      else {
+        appendWords( l_line );
+        l_line.append( '\n' );
+      }
+      aWriter.append( l_line );
+      l_length += l_line.length();
+    }
+  }
+  
+  private void appendWords( StringBuilder aLine ) {
+    int l_wordCount = MIN_WORD_COUNT_PER_LINE + fRandom.nextInt( MAX_WORD_COUNT_PER_LINE - MIN_WORD_COUNT_PER_LINE + 1 );
+    for ( int l_wordIndex = 0; l_wordIndex < l_wordCount; ++l_wordIndex ) {
+      if ( l_wordIndex > 0 ) {
+        aLine.append( ' ' );
+      }
+      aLine.append( VOCABULARY[ fRandom.nextInt( VOCABULARY.length ) ] );
+    }
+  }
+  
+  /*
+   * Generates a corpus on disk, to compare releases of the barb executable from the command line.
+   */
+  public static void main( String[] args ) throws IOException {
+    if ( ( args.length < 3 ) || ( args.length > 4 ) ) {
+      System.err.println( "Usage: TCorpusGenerator <DIRECTORY> <SMALL_FILES|HUGE_FILES> <MATCH_RATE> [SEED]" );
+      System.exit( 1 );
+    }
+    long l_seed = ( args.length == 4 ) ? Long.parseLong( args[ 3 ] ) : DEFAULT_SEED;
+    List<File> l_fileList = new TCorpusGenerator( l_seed ).generate( new File( args[ 0 ] ), TCorpusShape.valueOf( args[ 1 ] ), Integer.parseInt( args[ 2 ] ) );
+    System.out.println( String.format( "Generated[%d] File(s) in Directory[%s]", l_fileList.size(), args[ 0 ] ) );
+  }
+  
+}
@@ -8,5 +8,8 @@ JAVA_PATH=java
 if test -n "${JAVA_HOME}"; then
 	JAVA_PATH="${JAVA_HOME}/bin/java"
 fi
-exec "${JAVA_PATH}" -jar "${MYSELF}" $@
+if [ -f "${MYSELF}.jsa" ]; then
+	exec "${JAVA_PATH}" -XX:+IgnoreUnrecognizedVMOptions -Xshare:auto -XX:SharedArchiveFile="${MYSELF}.jsa" ${BARB_JAVA_OPTIONS} -jar "${MYSELF}" $@
+fi
+exec "${JAVA_PATH}" ${BARB_JAVA_OPTIONS} -jar "${MYSELF}" $@
 exit 1
@@ -0,0 +1,193 @@
+package net.trevize.barb;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+
+/*
+ * Aho-Corasick automaton searching several encoded literals at once in raw bytes, with leftmost-longest
+ * semantics: among the occurrences the one starting first is reported, and among those starting at the same
+ * index the longest one. When the same literal is given twice the first one is reported.
+ *
+ * The transitions of the root are a dense table, the other ones are stored in an open addressing hash table
+ * keyed by (state, byte). An instance is immutable once built and can be shared by the worker threads.
+ */
+public class TAhoCorasickMatcher {
+  
+  private int[] fRootTransitionArray  = new int[ 256 ];
+  private int[] fTransitionKeyArray   = null;
+  private int[] fTransitionStateArray = null;
+  private int   fTransitionMask       = 0;
+  private int[] fFailureStateArray    = null;
+  private int[] fOutputStateArray     = null;
+  private int[] fLiteralIndexArray    = null;
+  private int[] fDepthArray           = null;
+  private int[] fLiteralLengthArray   = null;
+  
+  public TAhoCorasickMatcher( byte[][] aLiteralArray ) {
+    int l_maxStateCount = 1;
+    for ( byte[] l_literal : aLiteralArray ) {
+      if ( l_literal.length == 0 ) {
+        throw new IllegalArgumentException( "Cannot search for an empty literal" );
+      }
+      l_maxStateCount += l_literal.length;
+    }
+    int l_tableSize = Integer.highestOneBit( Math.max( 16, l_maxStateCount * 2 ) - 1 ) << 1;
+    fTransitionKeyArray = new int[ l_tableSize ];
+    fTransitionStateArray = new int[ l_tableSize ];
+    Arrays.fill( fTransitionKeyArray, -1 );
+    fTransitionMask = l_tableSize - 1;
+    fLiteralIndexArray = new int[ l_maxStateCount ];
+    fDepthArray = new int[ l_maxStateCount ];
+    fLiteralLengthArray = new int[ aLiteralArray.length ];
+    Arrays.fill( fLiteralIndexArray, -1 );
+    
+    int l_stateCount = 1;
+    for ( int l_literalIndex = 0; l_literalIndex < aLiteralArray.length; ++l_literalIndex ) {
+      byte[] l_literal = aLiteralArray[ l_literalIndex ];
+      fLiteralLengthArray[ l_literalIndex ] = l_literal.length;
+      int l_state = 0;
+      for ( byte l_byte : l_literal ) {
+        int l_nextState = getChildState( l_state, l_byte );
+        if ( l_nextState <= 0 ) {
+          l_nextState = l_stateCount++;
+          fDepthArray[ l_nextState ] = fDepthArray[ l_state ] + 1;
+          setChildState( l_state, l_byte, l_nextState );
+        }
+        l_state = l_nextState;
+      }
+      if ( fLiteralIndexArray[ l_state ] < 0 ) {
+        fLiteralIndexArray[ l_state ] = l_literalIndex;
+      }
+    }
+    
+    // Breadth-first computation of the failure links and of the links to the longest output suffix.
+    fFailureStateArray = new int[ l_stateCount ];
+    fOutputStateArray = new int[ l_stateCount ];
+    Deque<Integer> l_stateQueue = new ArrayDeque<>();
+    for ( int l_byte = 0; l_byte < 256; ++l_byte ) {
+      int l_childState = fRootTransitionArray[ l_byte ];
+      if ( l_childState > 0 ) {
+        l_stateQueue.add( l_childState );
+      }
+    }
+    int[] l_parentStateArray = new int[ l_stateCount ];
+    byte[] l_parentByteArray = new byte[ l_stateCount ];
+    for ( int l_slotIndex = 0; l_slotIndex < fTransitionKeyArray.length; ++l_slotIndex ) {
+      int l_key = fTransitionKeyArray[ l_slotIndex ];
+      if ( l_key >= 0 ) {
+        l_parentStateArray[ fTransitionStateArray[ l_slotIndex ] ] = l_key >>> 8;
+        l_parentByteArray[ fTransitionStateArray[ l_slotIndex ] ] = (byte) l_key;
+      }
+    }
+    for ( int l_byte = 0; l_byte < 256; ++l_byte ) {
+      if ( fRootTransitionArray[ l_byte ] > 0 ) {
+        l_parentByteArray[ fRootTransitionArray[ l_byte ] ] = (byte) l_byte;
+      }
+    }
+    while ( ! l_stateQueue.isEmpty() ) {
+      int l_state = l_stateQueue.poll();
+      if ( fDepthArray[ l_state ] > 1 ) {
+        fFailureStateArray[ l_state ] = nextState( fFailureStateArray[ l_parentStateArray[ l_state ] ], l_parentByteArray[ l_state ] );
+      }
+      int l_failureState = fFailureStateArray[ l_state ];
+      fOutputStateArray[ l_state ] = ( fLiteralIndexArray[ l_failureState ] >= 0 ) ? l_failureState : fOutputStateArray[ l_failureState ];
+      enqueueChildStates( l_state, l_stateQueue );
+    }
+  }
+  
+  private void enqueueChildStates( int aState, Deque<Integer> aStateQueue ) {
+    for ( int l_byte = 0; l_byte < 256; ++l_byte ) {
+      int l_childState = getChildState( aState, (byte) l_byte );
+      if ( l_childState > 0 ) {
+        aStateQueue.add( l_childState );
+      }
+    }
+  }
+  
+  private int getChildState( int aState, byte aByte ) {
+    if ( aState == 0 ) {
+      return fRootTransitionArray[ aByte & 0xff ];
+    }
+    int l_key = ( aState << 8 ) | ( aByte & 0xff );
+    int l_slotIndex = mix( l_key ) & fTransitionMask;
+    while ( true ) {
+      int l_slotKey = fTransitionKeyArray[ l_slotIndex ];
+      if ( l_slotKey == l_key ) {
+        return fTransitionStateArray[ l_slotIndex ];
+      }
+      if ( l_slotKey < 0 ) {
+        return -1;
+      }
+      l_slotIndex = ( l_slotIndex + 1 ) & fTransitionMask;
+    }
+  }
+  
+  private void setChildState( int aState, byte aByte, int aChildState ) {
+    if ( aState == 0 ) {
+      fRootTransitionArray[ aByte & 0xff ] = aChildState;
+      return;
+    }
+    int l_key = ( aState << 8 ) | ( aByte & 0xff );
+    int l_slotIndex = mix( l_key ) & fTransitionMask;
+    while ( fTransitionKeyArray[ l_slotIndex ] >= 0 ) {
+      l_slotIndex = ( l_slotIndex + 1 ) & fTransitionMask;
+    }
+    fTransitionKeyArray[ l_slotIndex ] = l_key;
+    fTransitionStateArray[ l_slotIndex ] = aChildState;
+  }
+  
+  private static int mix( int aKey ) {
+    int l_hash = aKey * 0x9E3779B9;
+    return l_hash ^ ( l_hash >>> 16 );
+  }
+  
+  private int nextState( int aState, byte aByte ) {
+    int l_state = aState;
+    while ( true ) {
+      int l_childState = getChildState( l_state, aByte );
+      if ( l_childState > 0 ) {
+        return l_childState;
+      }
+      if ( l_state == 0 ) {
+        return 0;
+      }
+      l_state = fFailureStateArray[ l_state ];
+    }
+  }
+  
+  public int getLiteralLength( int aLiteralIndex ) {
+    return fLiteralLengthArray[ aLiteralIndex ];
+  }
+  
+  /*
+   * Searches the leftmost-longest occurrence lying entirely in [aFrom, aTo). Returns its start index and stores
+   * the index of the found literal in aLiteralIndexHolder[0], or returns -1.
+   */
+  public int find( byte[] aContent, int aFrom, int aTo, int[] aLiteralIndexHolder ) {
+    int l_state = 0;
+    int l_matchStart = -1;
+    int l_matchLiteralIndex = -1;
+    for ( int l_index = aFrom; l_index < aTo; ++l_index ) {
+      l_state = nextState( l_state, aContent[ l_index ] );
+      int l_outputState = ( fLiteralIndexArray[ l_state ] >= 0 ) ? l_state : fOutputStateArray[ l_state ];
+      if ( l_outputState > 0 ) {
+        // The first output state is the longest literal ending here, hence the one starting first.
+        int l_start = l_index + 1 - fDepthArray[ l_outputState ];
+        if ( ( l_matchStart < 0 ) || ( l_start < l_matchStart ) || ( ( l_start == l_matchStart ) && ( fDepthArray[ l_outputState ] > fLiteralLengthArray[ l_matchLiteralIndex ] ) ) ) {
+          l_matchStart = l_start;
+          l_matchLiteralIndex = fLiteralIndexArray[ l_outputState ];
+        }
+      }
+      // No literal being recognized starts at or before the found occurrence anymore, it cannot be extended.
+      if ( ( l_matchStart >= 0 ) && ( ( l_index + 1 - fDepthArray[ l_state ] ) > l_matchStart ) ) {
+        break;
+      }
+    }
+    if ( l_matchStart >= 0 ) {
+      aLiteralIndexHolder[ 0 ] = l_matchLiteralIndex;
+    }
+    return l_matchStart;
+  }
+  
+}
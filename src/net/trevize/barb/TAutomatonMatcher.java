@@ -0,0 +1,230 @@
+package net.trevize.barb;
+
+import java.util.Arrays;
+
+/*
+ * Searches a text for the matches of a TAutomatonRegex with a Pike VM: the threads of the automaton advance
+ * together, one char at a time, in their order of priority, and a thread reaching a state already reached by a
+ * thread of higher priority is dropped. The text is read once per search, whatever the regular expression.
+ *
+ * Before a search, the lazy DFA tells whether a match may start at or after the search index, so the texts
+ * without match are rejected without running the Pike VM. While no thread is running, the chars which cannot
+ * start a match are skipped.
+ */
+public class TAutomatonMatcher implements TRegexMatcher {
+  
+  /*
+   * The threads at a text index, ordered by priority: the char set or match instruction of each thread, and the
+   * group bounds it has recorded.
+   */
+  private static class TThreadList {
+    
+    private int[]   fPcArray   = null;
+    private int[][] fSlotArray = null;
+    private int     fSize      = 0;
+    
+    private TThreadList( int aCapacity, int aSlotCount ) {
+      fPcArray = new int[ aCapacity ];
+      fSlotArray = new int[ aCapacity ][ aSlotCount ];
+    }
+    
+  }
+  
+  private TAutomatonRegex fRegex             = null;
+  private TLazyDfa        fLazyDfa           = null;
+  private CharSequence    fText              = null;
+  private int             fSlotCount         = 0;
+  private int[]           fMatchSlotArray    = null;
+  private int[]           fSeedSlotArray     = null;
+  private int             fFirst             = -1;
+  private int             fLast              = 0;
+  private int             fNoMatchFromIndex  = Integer.MAX_VALUE;
+  private TThreadList     fThreadList        = null;
+  private TThreadList     fNextThreadList    = null;
+  private int[]           fVisitedStampArray = null;
+  private int             fStamp             = 0;
+  
+  TAutomatonMatcher( TAutomatonRegex aRegex, TLazyDfa aLazyDfa, CharSequence aText ) {
+    fRegex = aRegex;
+    fLazyDfa = aLazyDfa;
+    fText = aText;
+    fSlotCount = aRegex.fSlotCount;
+    fMatchSlotArray = new int[ fSlotCount ];
+    fSeedSlotArray = new int[ fSlotCount ];
+    fVisitedStampArray = new int[ ( aRegex.fMaxEmptyDepth + 1 ) * aRegex.fLength ];
+    fThreadList = new TThreadList( fVisitedStampArray.length, fSlotCount );
+    fNextThreadList = new TThreadList( fVisitedStampArray.length, fSlotCount );
+  }
+  
+  /*
+   * Finds the next match, with the rules of Matcher.find(): the search starts at the end of the previous match,
+   * one char further if it was empty.
+   */
+  @Override
+  public boolean find() {
+    int l_fromIndex = fLast;
+    if ( l_fromIndex == fFirst ) {
+      ++l_fromIndex;
+    }
+    if ( ( l_fromIndex > fText.length() ) || ! search( l_fromIndex ) ) {
+      fFirst = -1;
+      return false;
+    }
+    fFirst = fMatchSlotArray[ 0 ];
+    fLast = fMatchSlotArray[ 1 ];
+    return true;
+  }
+  
+  @Override
+  public int start() {
+    checkMatch();
+    return fMatchSlotArray[ 0 ];
+  }
+  
+  @Override
+  public int end() {
+    checkMatch();
+    return fMatchSlotArray[ 1 ];
+  }
+  
+  @Override
+  public int start( int aGroupIndex ) {
+    checkMatch();
+    if ( ( aGroupIndex < 0 ) || ( aGroupIndex > fRegex.fGroupCount ) ) {
+      throw new IndexOutOfBoundsException( String.format( "No group %d", aGroupIndex ) );
+    }
+    return fMatchSlotArray[ 2 * aGroupIndex ];
+  }
+  
+  private void checkMatch() {
+    if ( fFirst < 0 ) {
+      throw new IllegalStateException( "No match available" );
+    }
+  }
+  
+  private boolean search( int aFromIndex ) {
+    // No match from an index means no match from any index after it.
+    if ( aFromIndex >= fNoMatchFromIndex ) {
+      return false;
+    }
+    if ( ! fLazyDfa.mayMatch( fText, aFromIndex ) ) {
+      fNoMatchFromIndex = aFromIndex;
+      return false;
+    }
+    int l_length = fText.length();
+    int l_startIndex = fLazyDfa.skipToStart( fText, aFromIndex );
+    boolean l_isMatched = false;
+    fThreadList.fSize = 0;
+    ++fStamp;
+    addSeedThread( fThreadList, l_startIndex );
+    for ( int l_index = l_startIndex; ; ++l_index ) {
+      if ( l_isMatched && ( fThreadList.fSize == 0 ) ) {
+        break;
+      }
+      fNextThreadList.fSize = 0;
+      ++fStamp;
+      char l_char = ( l_index < l_length ) ? fText.charAt( l_index ) : 0;
+      for ( int l_threadIndex = 0; l_threadIndex < fThreadList.fSize; ++l_threadIndex ) {
+        int l_pc = fThreadList.fPcArray[ l_threadIndex ];
+        int[] l_slotArray = fThreadList.fSlotArray[ l_threadIndex ];
+        if ( fRegex.fOpcodeArray[ l_pc ] == TAutomatonRegex.MATCH_OPCODE ) {
+          // The threads of lower priority are cut, those of higher priority may still find a preferred match.
+          l_isMatched = true;
+          System.arraycopy( l_slotArray, 0, fMatchSlotArray, 0, fSlotCount );
+          fMatchSlotArray[ 1 ] = l_index;
+          break;
+        }
+        if ( ( l_index < l_length ) && fRegex.fCharSetArray[ l_pc ].contains( l_char ) ) {
+          addThread( fNextThreadList, l_pc + 1, l_slotArray, l_index + 1 );
+        }
+      }
+      if ( l_index == l_length ) {
+        break;
+      }
+      // A match starting further has a lower priority than the threads already running. Without running
+      // thread, the search goes on at the next char which may start a match.
+      if ( ! l_isMatched ) {
+        if ( fNextThreadList.fSize == 0 ) {
+          int l_nextIndex = fLazyDfa.skipToStart( fText, l_index + 1 );
+          if ( l_nextIndex > l_index + 1 ) {
+            // The instructions visited at l_index + 1, as an assertion which failed there, may hold further.
+            ++fStamp;
+          }
+          l_index = l_nextIndex - 1;
+        }
+        addSeedThread( fNextThreadList, l_index + 1 );
+      }
+      TThreadList l_threadList = fThreadList;
+      fThreadList = fNextThreadList;
+      fNextThreadList = l_threadList;
+    }
+    if ( ! l_isMatched ) {
+      fNoMatchFromIndex = aFromIndex;
+    }
+    return l_isMatched;
+  }
+  
+  private void addSeedThread( TThreadList aThreadList, int aIndex ) {
+    Arrays.fill( fSeedSlotArray, -1 );
+    fSeedSlotArray[ 0 ] = aIndex;
+    addThread( aThreadList, 0, fSeedSlotArray, aIndex );
+  }
+  
+  /*
+   * Follows the instructions which do not consume a char from aPc, in their order of priority, and adds the
+   * threads reaching a char set or the match instruction. aSlotArray is restored before returning.
+   *
+   * An instruction is followed once per text index and per number of the repetitions containing it whose
+   * current iteration started at the index: an iteration starting at the index must not be cut by the previous
+   * iteration ending there, it leaves the repetition if it matches empty. These repetitions are the innermost
+   * ones, an iteration starting at the index only contains iterations starting at the index.
+   */
+  private void addThread( TThreadList aThreadList, int aPc, int[] aSlotArray, int aIndex ) {
+    int[] l_emptySlots = fRegex.fEmptySlotsArray[ aPc ];
+    int l_emptyCount = 0;
+    while ( ( l_emptyCount < l_emptySlots.length ) && ( aSlotArray[ l_emptySlots[ l_emptyCount ] ] == aIndex ) ) {
+      ++l_emptyCount;
+    }
+    int l_visitedKey = l_emptyCount * fRegex.fLength + aPc;
+    if ( fVisitedStampArray[ l_visitedKey ] == fStamp ) {
+      return;
+    }
+    fVisitedStampArray[ l_visitedKey ] = fStamp;
+    switch ( fRegex.fOpcodeArray[ aPc ] ) {
+      case TAutomatonRegex.SPLIT_OPCODE:
+        addThread( aThreadList, fRegex.fArgArray[ aPc ], aSlotArray, aIndex );
+        addThread( aThreadList, fRegex.fOtherArgArray[ aPc ], aSlotArray, aIndex );
+        break;
+      case TAutomatonRegex.JUMP_OPCODE:
+        addThread( aThreadList, fRegex.fArgArray[ aPc ], aSlotArray, aIndex );
+        break;
+      case TAutomatonRegex.SAVE_OPCODE: {
+        int l_slot = fRegex.fArgArray[ aPc ];
+        int l_previousValue = aSlotArray[ l_slot ];
+        aSlotArray[ l_slot ] = aIndex;
+        addThread( aThreadList, aPc + 1, aSlotArray, aIndex );
+        aSlotArray[ l_slot ] = l_previousValue;
+        break;
+      }
+      case TAutomatonRegex.EMPTY_OPCODE:
+        if ( aSlotArray[ fRegex.fOtherArgArray[ aPc ] ] == aIndex ) {
+          addThread( aThreadList, fRegex.fArgArray[ aPc ], aSlotArray, aIndex );
+        }
+        else {
+          addThread( aThreadList, aPc + 1, aSlotArray, aIndex );
+        }
+        break;
+      case TAutomatonRegex.ASSERTION_OPCODE:
+        if ( TAutomatonRegex.holds( fRegex.fArgArray[ aPc ], fText, aIndex ) ) {
+          addThread( aThreadList, aPc + 1, aSlotArray, aIndex );
+        }
+        break;
+      default:
+        aThreadList.fPcArray[ aThreadList.fSize ] = aPc;
+        System.arraycopy( aSlotArray, 0, aThreadList.fSlotArray[ aThreadList.fSize ], 0, fSlotCount );
+        ++aThreadList.fSize;
+        break;
+    }
+  }
+  
+}
@@ -0,0 +1,818 @@
+package net.trevize.barb;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.regex.Pattern;
+
+/*
+ * A regular expression compiled into a Thompson automaton, searched in linear time by TAutomatonMatcher: a Pike
+ * VM finds the matches with the leftmost-first semantics of java.util.regex (greedy and lazy quantifiers,
+ * capturing groups), behind a lazily built DFA which rejects the text without match.
+ *
+ * Only the constructs without backtracking-specific semantics are supported: literals and escapes, '.', char
+ * classes without nesting nor intersection, the predefined classes \d \s \w \h \v and their complements, '^',
+ * '$', \A, \z and \Z with the line terminators of java.util.regex, groups (capturing, named and non-capturing),
+ * alternations, greedy and lazy quantifiers, and the inline flags s and m. compile() throws a
+ * TUnsupportedRegexException for anything else (back references, lookarounds, atomic groups, possessive
+ * quantifiers, \b, \p{...}, case insensitivity...), the regular expression is then left to java.util.regex.
+ *
+ * The matcher works on chars: a text containing surrogates is also left to java.util.regex, which matches code
+ * points. The matches are those of java.util.regex, but a group nested in a repetition may keep the bounds of
+ * another iteration in some corner cases; the replacement plan only reads the bounds of the matches and of the
+ * top-level groups.
+ */
+public class TAutomatonRegex {
+  
+  public static class TUnsupportedRegexException extends Exception {
+    
+    private static final long serialVersionUID = 1L;
+    
+    public TUnsupportedRegexException( String aMessage ) {
+      super( aMessage );
+    }
+    
+  }
+  
+  /*
+   * A set of chars as sorted disjoint ranges, with a lookup table for ASCII.
+   */
+  static class TCharSet {
+    
+    private int[]     fRangeArray = null;
+    private boolean[] fAsciiArray = new boolean[ 128 ];
+    
+    private TCharSet( int[] aRangeArray ) {
+      fRangeArray = aRangeArray;
+      for ( int l_rangeIndex = 0; l_rangeIndex < fRangeArray.length; l_rangeIndex += 2 ) {
+        for ( int l_char = fRangeArray[ l_rangeIndex ]; ( l_char <= fRangeArray[ l_rangeIndex + 1 ] ) && ( l_char < 128 ); ++l_char ) {
+          fAsciiArray[ l_char ] = true;
+        }
+      }
+    }
+    
+    public boolean contains( char aChar ) {
+      if ( aChar < 128 ) {
+        return fAsciiArray[ aChar ];
+      }
+      int l_low = 0;
+      int l_high = fRangeArray.length / 2 - 1;
+      while ( l_low <= l_high ) {
+        int l_middle = ( l_low + l_high ) >>> 1;
+        if ( aChar < fRangeArray[ 2 * l_middle ] ) {
+          l_high = l_middle - 1;
+        }
+        else if ( aChar > fRangeArray[ 2 * l_middle + 1 ] ) {
+          l_low = l_middle + 1;
+        }
+        else {
+          return true;
+        }
+      }
+      return false;
+    }
+    
+    /*
+     * aRangeList holds (first, last) pairs in any order, possibly overlapping.
+     */
+    public static TCharSet of( List<int[]> aRangeList, boolean aNegated ) {
+      List<int[]> l_rangeList = new ArrayList<>( aRangeList );
+      l_rangeList.sort( ( l_range, l_otherRange ) -> Integer.compare( l_range[ 0 ], l_otherRange[ 0 ] ) );
+      List<int[]> l_mergedRangeList = new ArrayList<>();
+      for ( int[] l_range : l_rangeList ) {
+        int[] l_lastRange = l_mergedRangeList.isEmpty() ? null : l_mergedRangeList.get( l_mergedRangeList.size() - 1 );
+        if ( ( l_lastRange != null ) && ( l_range[ 0 ] <= l_lastRange[ 1 ] + 1 ) ) {
+          l_lastRange[ 1 ] = Math.max( l_lastRange[ 1 ], l_range[ 1 ] );
+        }
+        else {
+          l_mergedRangeList.add( new int[] { l_range[ 0 ], l_range[ 1 ] } );
+        }
+      }
+      if ( aNegated ) {
+        List<int[]> l_complementRangeList = new ArrayList<>();
+        int l_next = 0;
+        for ( int[] l_range : l_mergedRangeList ) {
+          if ( l_range[ 0 ] > l_next ) {
+            l_complementRangeList.add( new int[] { l_next, l_range[ 0 ] - 1 } );
+          }
+          l_next = l_range[ 1 ] + 1;
+        }
+        if ( l_next <= Character.MAX_VALUE ) {
+          l_complementRangeList.add( new int[] { l_next, Character.MAX_VALUE } );
+        }
+        l_mergedRangeList = l_complementRangeList;
+      }
+      int[] l_rangeArray = new int[ 2 * l_mergedRangeList.size() ];
+      for ( int l_rangeIndex = 0; l_rangeIndex < l_mergedRangeList.size(); ++l_rangeIndex ) {
+        l_rangeArray[ 2 * l_rangeIndex ] = l_mergedRangeList.get( l_rangeIndex )[ 0 ];
+        l_rangeArray[ 2 * l_rangeIndex + 1 ] = l_mergedRangeList.get( l_rangeIndex )[ 1 ];
+      }
+      return new TCharSet( l_rangeArray );
+    }
+    
+  }
+  
+  /*
+   * A node of the syntax tree, compiled into instructions once the whole regular expression is parsed.
+   */
+  private static class TNode {
+    
+    private static final int CHAR_SET    = 0;
+    private static final int SEQUENCE    = 1;
+    private static final int ALTERNATION = 2;
+    private static final int REPETITION  = 3;
+    private static final int GROUP       = 4;
+    private static final int ASSERTION   = 5;
+    
+    private int         fKind       = 0;
+    private TCharSet    fCharSet    = null;
+    private List<TNode> fChildList  = new ArrayList<>();
+    private int         fMinCount   = 0;
+    private int         fMaxCount   = 0;
+    private boolean     fGreedy     = true;
+    private int         fGroupIndex = 0;
+    private int         fAssertion  = 0;
+    
+    private TNode( int aKind ) {
+      fKind = aKind;
+    }
+    
+    private boolean canMatchEmpty() {
+      switch ( fKind ) {
+        case CHAR_SET:
+          return false;
+        case SEQUENCE:
+          for ( TNode l_child : fChildList ) {
+            if ( ! l_child.canMatchEmpty() ) {
+              return false;
+            }
+          }
+          return true;
+        case ALTERNATION:
+          for ( TNode l_child : fChildList ) {
+            if ( l_child.canMatchEmpty() ) {
+              return true;
+            }
+          }
+          return false;
+        case REPETITION:
+          return ( fMinCount == 0 ) || fChildList.get( 0 ).canMatchEmpty();
+        case GROUP:
+          return fChildList.get( 0 ).canMatchEmpty();
+        default:
+          return true;
+      }
+    }
+    
+  }
+  
+  /*
+   * The instructions, with their arguments: CHAR_SET (a char set) consumes a char of the set, SPLIT (target,
+   * other target) continues at both targets the first one first, JUMP (target), SAVE (slot) records the index in
+   * a slot, ASSERTION (assertion), MATCH, EMPTY (target, slot) continues at the target if the index is the one
+   * recorded in the slot. The slots 2k and 2k+1 hold the bounds of the group k, the next ones the start index of
+   * the iterations of the repetitions; fEmptySlotsArray gives for each instruction the slots of the repetitions
+   * containing it, innermost first.
+   */
+  static final int CHAR_SET_OPCODE  = 0;
+  static final int SPLIT_OPCODE     = 1;
+  static final int JUMP_OPCODE      = 2;
+  static final int SAVE_OPCODE      = 3;
+  static final int ASSERTION_OPCODE = 4;
+  static final int MATCH_OPCODE     = 5;
+  static final int EMPTY_OPCODE     = 6;
+  
+  static final int TEXT_BEGIN_ASSERTION     = 0;
+  static final int TEXT_END_ASSERTION       = 1;
+  static final int LINE_BEGIN_ASSERTION     = 2;
+  static final int LINE_END_ASSERTION       = 3;
+  static final int FINAL_LINE_END_ASSERTION = 4;
+  
+  private static final int MAX_PROGRAM_LENGTH = 4096;
+  
+  private static final int[][] DIGIT_RANGES      = { { '0', '9' } };
+  private static final int[][] SPACE_RANGES      = { { ' ', ' ' }, { '\t', '\r' } };
+  private static final int[][] WORD_RANGES       = { { 'a', 'z' }, { 'A', 'Z' }, { '_', '_' }, { '0', '9' } };
+  private static final int[][] HORIZONTAL_RANGES = { { ' ', ' ' }, { '\t', '\t' }, { 0xA0, 0xA0 }, { 0x1680, 0x1680 }, { 0x180E, 0x180E }, { 0x2000, 0x200A }, { 0x202F, 0x202F }, { 0x205F, 0x205F }, { 0x3000, 0x3000 } };
+  private static final int[][] VERTICAL_RANGES   = { { '\n', '\r' }, { 0x85, 0x85 }, { 0x2028, 0x2029 } };
+  private static final int[][] TERMINATOR_RANGES = { { '\n', '\n' }, { '\r', '\r' }, { 0x85, 0x85 }, { 0x2028, 0x2029 } };
+  
+  /* The parser state. */
+  private String  fRegex     = null;
+  private int     fIndex     = 0;
+  private boolean fDotAll    = false;
+  private boolean fMultiline = false;
+  
+  /* The program. */
+  int[]      fOpcodeArray     = new int[ 16 ];
+  int[]      fArgArray        = new int[ 16 ];
+  int[]      fOtherArgArray   = new int[ 16 ];
+  TCharSet[] fCharSetArray    = new TCharSet[ 16 ];
+  int[][]    fEmptySlotsArray = new int[ 16 ][];
+  int        fLength          = 0;
+  int        fGroupCount      = 0;
+  int        fSlotCount       = 0;
+  int        fMaxEmptyDepth   = 0;
+  
+  private ThreadLocal<TLazyDfa> fLazyDfa = ThreadLocal.withInitial( () -> new TLazyDfa( this ) );
+  
+  private TAutomatonRegex( String aRegex, int aFlags ) {
+    fRegex = aRegex;
+    fDotAll = ( aFlags & Pattern.DOTALL ) != 0;
+    fMultiline = ( aFlags & Pattern.MULTILINE ) != 0;
+  }
+  
+  /*
+   * aRegex must have been accepted by Pattern.compile() with the same flags, only DOTALL and MULTILINE are
+   * supported.
+   */
+  public static TAutomatonRegex compile( String aRegex, int aFlags ) throws TUnsupportedRegexException {
+    if ( ( aFlags & ~( Pattern.DOTALL | Pattern.MULTILINE ) ) != 0 ) {
+      throw new TUnsupportedRegexException( "flags other than DOTALL and MULTILINE" );
+    }
+    TAutomatonRegex l_regex = new TAutomatonRegex( aRegex, aFlags );
+    TNode l_node = null;
+    try {
+      l_node = l_regex.parseAlternation();
+      if ( l_regex.fIndex < aRegex.length() ) {
+        throw new TUnsupportedRegexException( String.format( "unexpected char at index[%d]", l_regex.fIndex ) );
+      }
+    }
+    catch ( RuntimeException l_exception ) {
+      throw new TUnsupportedRegexException( String.format( "cannot parse: %s", l_exception ) );
+    }
+    l_regex.fSlotCount = 2 * ( l_regex.fGroupCount + 1 );
+    l_regex.emitNode( l_node );
+    l_regex.emit( MATCH_OPCODE, 0, 0, null );
+    return l_regex;
+  }
+  
+  /*
+   * Returns null if the text contains surrogates.
+   */
+  public TAutomatonMatcher matcher( CharSequence aText ) {
+    int l_length = aText.length();
+    for ( int l_index = 0; l_index < l_length; ++l_index ) {
+      if ( Character.isSurrogate( aText.charAt( l_index ) ) ) {
+        return null;
+      }
+    }
+    return new TAutomatonMatcher( this, fLazyDfa.get(), aText );
+  }
+  
+  /*
+   * Tells whether the assertion holds at aIndex, as the corresponding node of java.util.regex does with
+   * transparent and non-anchoring bounds over the whole text.
+   */
+  static boolean holds( int aAssertion, CharSequence aText, int aIndex ) {
+    int l_length = aText.length();
+    switch ( aAssertion ) {
+      case TEXT_BEGIN_ASSERTION:
+        return aIndex == 0;
+      case TEXT_END_ASSERTION:
+        return aIndex == l_length;
+      case LINE_BEGIN_ASSERTION: {
+        // No line begin at the end of the text, nor between \r and \n.
+        if ( aIndex == l_length ) {
+          return false;
+        }
+        if ( aIndex > 0 ) {
+          char l_previousChar = aText.charAt( aIndex - 1 );
+          if ( ! isLineTerminator( l_previousChar ) ) {
+            return false;
+          }
+          return ( l_previousChar != '\r' ) || ( aText.charAt( aIndex ) != '\n' );
+        }
+        return true;
+      }
+      case LINE_END_ASSERTION:
+        if ( aIndex == l_length ) {
+          return true;
+        }
+        if ( aText.charAt( aIndex ) == '\n' ) {
+          return ( aIndex == 0 ) || ( aText.charAt( aIndex - 1 ) != '\r' );
+        }
+        return isLineTerminator( aText.charAt( aIndex ) );
+      default: {
+        // At the end of the text, or before a line terminator ending the text.
+        if ( aIndex == l_length ) {
+          return true;
+        }
+        if ( aIndex == l_length - 2 ) {
+          return ( aText.charAt( aIndex ) == '\r' ) && ( aText.charAt( aIndex + 1 ) == '\n' );
+        }
+        if ( aIndex == l_length - 1 ) {
+          char l_char = aText.charAt( aIndex );
+          if ( l_char == '\n' ) {
+            return ( aIndex == 0 ) || ( aText.charAt( aIndex - 1 ) != '\r' );
+          }
+          return isLineTerminator( l_char );
+        }
+        return false;
+      }
+    }
+  }
+  
+  private static boolean isLineTerminator( char aChar ) {
+    return ( aChar == '\n' ) || ( aChar == '\r' ) || ( ( aChar | 1 ) == '\u2029' ) || ( aChar == '\u0085' );
+  }
+  
+  private boolean hasNext() {
+    return fIndex < fRegex.length();
+  }
+  
+  private char peek() {
+    return fRegex.charAt( fIndex );
+  }
+  
+  private TNode parseAlternation() throws TUnsupportedRegexException {
+    TNode l_alternation = new TNode( TNode.ALTERNATION );
+    while ( true ) {
+      l_alternation.fChildList.add( parseSequence() );
+      if ( hasNext() && ( peek() == '|' ) ) {
+        ++fIndex;
+        continue;
+      }
+      break;
+    }
+    return ( l_alternation.fChildList.size() == 1 ) ? l_alternation.fChildList.get( 0 ) : l_alternation;
+  }
+  
+  private TNode parseSequence() throws TUnsupportedRegexException {
+    TNode l_sequence = new TNode( TNode.SEQUENCE );
+    while ( hasNext() && ( peek() != '|' ) && ( peek() != ')' ) ) {
+      TNode l_atom = parseAtom();
+      if ( ( l_atom != null ) && ( l_atom.fKind == TNode.SEQUENCE ) ) {
+        // A \Q...\E quote, a quantifier only applies to its last char.
+        if ( l_atom.fChildList.isEmpty() ) {
+          continue;
+        }
+        l_sequence.fChildList.addAll( l_atom.fChildList.subList( 0, l_atom.fChildList.size() - 1 ) );
+        l_atom = l_atom.fChildList.get( l_atom.fChildList.size() - 1 );
+      }
+      if ( l_atom != null ) {
+        l_sequence.fChildList.add( parseQuantifier( l_atom ) );
+      }
+    }
+    return l_sequence;
+  }
+  
+  /*
+   * Returns null for an inline flag group, which only changes the flags of the rest of the enclosing group.
+   */
+  private TNode parseAtom() throws TUnsupportedRegexException {
+    char l_char = peek();
+    ++fIndex;
+    switch ( l_char ) {
+      case '(':
+        return parseGroup();
+      case '[':
+        return parseCharClass();
+      case '.':
+        return newCharSetNode( TCharSet.of( fDotAll ? Arrays.asList( new int[] { 0, Character.MAX_VALUE } ) : Arrays.asList( TERMINATOR_RANGES ), ! fDotAll ) );
+      case '^':
+        return newAssertionNode( fMultiline ? LINE_BEGIN_ASSERTION : TEXT_BEGIN_ASSERTION );
+      case '$':
+        return newAssertionNode( fMultiline ? LINE_END_ASSERTION : FINAL_LINE_END_ASSERTION );
+      case '\\':
+        return parseEscape();
+      case '*':
+      case '+':
+      case '?':
+      case '{':
+        throw new TUnsupportedRegexException( String.format( "quantifier without atom at index[%d]", fIndex - 1 ) );
+      default:
+        if ( Character.isSurrogate( l_char ) ) {
+          throw new TUnsupportedRegexException( "supplementary chars" );
+        }
+        return newCharNode( l_char );
+    }
+  }
+  
+  private TNode parseGroup() throws TUnsupportedRegexException {
+    TNode l_group = new TNode( TNode.GROUP );
+    l_group.fGroupIndex = -1;
+    boolean l_dotAll = fDotAll;
+    boolean l_multiline = fMultiline;
+    if ( peek() != '?' ) {
+      l_group.fGroupIndex = ++fGroupCount;
+    }
+    else {
+      ++fIndex;
+      char l_kind = peek();
+      if ( l_kind == ':' ) {
+        ++fIndex;
+      }
+      else if ( ( l_kind == '<' ) && Character.isLetter( fRegex.charAt( fIndex + 1 ) ) ) {
+        fIndex = fRegex.indexOf( '>', fIndex ) + 1;
+        l_group.fGroupIndex = ++fGroupCount;
+      }
+      else if ( ( l_kind == '=' ) || ( l_kind == '!' ) || ( l_kind == '<' ) ) {
+        throw new TUnsupportedRegexException( "lookaround" );
+      }
+      else if ( l_kind == '>' ) {
+        throw new TUnsupportedRegexException( "atomic group" );
+      }
+      else {
+        // Inline flags, either (?flags) or (?flags:X).
+        boolean l_enable = true;
+        while ( ( peek() != ')' ) && ( peek() != ':' ) ) {
+          char l_flag = peek();
+          ++fIndex;
+          if ( l_flag == '-' ) {
+            l_enable = false;
+          }
+          else if ( l_flag == 's' ) {
+            fDotAll = l_enable;
+          }
+          else if ( l_flag == 'm' ) {
+            fMultiline = l_enable;
+          }
+          else {
+            throw new TUnsupportedRegexException( String.format( "inline flag[%c]", l_flag ) );
+          }
+        }
+        if ( peek() == ')' ) {
+          ++fIndex;
+          return null;
+        }
+        ++fIndex;
+      }
+    }
+    l_group.fChildList.add( parseAlternation() );
+    if ( ! hasNext() || ( peek() != ')' ) ) {
+      throw new IllegalArgumentException( "Unbalanced group" );
+    }
+    ++fIndex;
+    fDotAll = l_dotAll;
+    fMultiline = l_multiline;
+    return l_group;
+  }
+  
+  private TNode parseQuantifier( TNode aAtom ) throws TUnsupportedRegexException {
+    if ( ! hasNext() ) {
+      return aAtom;
+    }
+    TNode l_repetition = new TNode( TNode.REPETITION );
+    l_repetition.fChildList.add( aAtom );
+    char l_char = peek();
+    if ( l_char == '*' ) {
+      l_repetition.fMinCount = 0;
+      l_repetition.fMaxCount = -1;
+      ++fIndex;
+    }
+    else if ( l_char == '+' ) {
+      l_repetition.fMinCount = 1;
+      l_repetition.fMaxCount = -1;
+      ++fIndex;
+    }
+    else if ( l_char == '?' ) {
+      l_repetition.fMinCount = 0;
+      l_repetition.fMaxCount = 1;
+      ++fIndex;
+    }
+    else if ( l_char == '{' ) {
+      int l_end = fRegex.indexOf( '}', fIndex );
+      String l_bounds = fRegex.substring( fIndex + 1, l_end );
+      int l_commaIndex = l_bounds.indexOf( ',' );
+      if ( l_commaIndex < 0 ) {
+        l_repetition.fMinCount = Integer.parseInt( l_bounds.trim() );
+        l_repetition.fMaxCount = l_repetition.fMinCount;
+      }
+      else {
+        l_repetition.fMinCount = Integer.parseInt( l_bounds.substring( 0, l_commaIndex ).trim() );
+        String l_max = l_bounds.substring( l_commaIndex + 1 ).trim();
+        l_repetition.fMaxCount = l_max.isEmpty() ? -1 : Integer.parseInt( l_max );
+      }
+      if ( ( l_repetition.fMinCount > MAX_PROGRAM_LENGTH ) || ( l_repetition.fMaxCount > MAX_PROGRAM_LENGTH ) ) {
+        throw new TUnsupportedRegexException( "too many repetitions" );
+      }
+      fIndex = l_end + 1;
+    }
+    else {
+      return aAtom;
+    }
+    if ( hasNext() && ( peek() == '+' ) ) {
+      throw new TUnsupportedRegexException( "possessive quantifier" );
+    }
+    if ( hasNext() && ( peek() == '?' ) ) {
+      l_repetition.fGreedy = false;
+      ++fIndex;
+    }
+    return l_repetition;
+  }
+  
+  private TNode parseCharClass() throws TUnsupportedRegexException {
+    List<int[]> l_rangeList = new ArrayList<>();
+    boolean l_negated = false;
+    if ( peek() == '^' ) {
+      l_negated = true;
+      ++fIndex;
+    }
+    if ( peek() == ']' ) {
+      throw new TUnsupportedRegexException( "']' first in a char class" );
+    }
+    while ( peek() != ']' ) {
+      if ( ( peek() == '[' ) || fRegex.startsWith( "&&", fIndex ) ) {
+        throw new TUnsupportedRegexException( "nested char class or intersection" );
+      }
+      int l_first = parseClassChar( l_rangeList );
+      if ( l_first < 0 ) {
+        continue;
+      }
+      int l_last = l_first;
+      if ( ( peek() == '-' ) && ( fRegex.charAt( fIndex + 1 ) != ']' ) ) {
+        ++fIndex;
+        if ( peek() == '[' ) {
+          throw new TUnsupportedRegexException( "nested char class" );
+        }
+        l_last = parseClassChar( l_rangeList );
+        if ( l_last < 0 ) {
+          throw new TUnsupportedRegexException( "range ending with a predefined class" );
+        }
+      }
+      l_rangeList.add( new int[] { l_first, l_last } );
+    }
+    ++fIndex;
+    return newCharSetNode( TCharSet.of( l_rangeList, l_negated ) );
+  }
+  
+  /*
+   * Returns the char, or -1 if a predefined class has been added to aRangeList.
+   */
+  private int parseClassChar( List<int[]> aRangeList ) throws TUnsupportedRegexException {
+    char l_char = peek();
+    ++fIndex;
+    if ( Character.isSurrogate( l_char ) ) {
+      throw new TUnsupportedRegexException( "supplementary chars" );
+    }
+    if ( l_char != '\\' ) {
+      return l_char;
+    }
+    l_char = peek();
+    if ( l_char == 'Q' ) {
+      throw new TUnsupportedRegexException( "quote in a char class" );
+    }
+    TNode l_node = parseEscape();
+    if ( l_node.fKind != TNode.CHAR_SET ) {
+      throw new TUnsupportedRegexException( "assertion in a char class" );
+    }
+    int[] l_rangeArray = l_node.fCharSet.fRangeArray;
+    if ( "dDsSwWhHvV".indexOf( l_char ) < 0 ) {
+      return l_rangeArray[ 0 ];
+    }
+    for ( int l_rangeIndex = 0; l_rangeIndex < l_rangeArray.length; l_rangeIndex += 2 ) {
+      aRangeList.add( new int[] { l_rangeArray[ l_rangeIndex ], l_rangeArray[ l_rangeIndex + 1 ] } );
+    }
+    return -1;
+  }
+  
+  /*
+   * Parses the escape following a '\', returns a char set or an assertion (a sequence for \Q...\E).
+   */
+  private TNode parseEscape() throws TUnsupportedRegexException {
+    char l_char = peek();
+    ++fIndex;
+    switch ( l_char ) {
+      case 'd':
+      case 'D':
+        return newCharSetNode( TCharSet.of( Arrays.asList( DIGIT_RANGES ), l_char == 'D' ) );
+      case 's':
+      case 'S':
+        return newCharSetNode( TCharSet.of( Arrays.asList( SPACE_RANGES ), l_char == 'S' ) );
+      case 'w':
+      case 'W':
+        return newCharSetNode( TCharSet.of( Arrays.asList( WORD_RANGES ), l_char == 'W' ) );
+      case 'h':
+      case 'H':
+        return newCharSetNode( TCharSet.of( Arrays.asList( HORIZONTAL_RANGES ), l_char == 'H' ) );
+      case 'v':
+      case 'V':
+        return newCharSetNode( TCharSet.of( Arrays.asList( VERTICAL_RANGES ), l_char == 'V' ) );
+      case 't':
+        return newCharNode( '\t' );
+      case 'n':
+        return newCharNode( '\n' );
+      case 'r':
+        return newCharNode( '\r' );
+      case 'f':
+        return newCharNode( '\f' );
+      case 'a':
+        return newCharNode( '\u0007' );
+      case 'e':
+        return newCharNode( '\u001B' );
+      case '0': {
+        int l_value = 0;
+        int l_digitCount = 0;
+        while ( hasNext() && ( peek() >= '0' ) && ( peek() <= '7' ) && ( l_digitCount < 3 ) && ( ( l_value * 8 + ( peek() - '0' ) ) <= 0377 ) ) {
+          l_value = l_value * 8 + ( peek() - '0' );
+          ++fIndex;
+          ++l_digitCount;
+        }
+        return newCharNode( (char) l_value );
+      }
+      case 'x': {
+        int l_value = 0;
+        if ( peek() == '{' ) {
+          int l_end = fRegex.indexOf( '}', fIndex );
+          l_value = Integer.parseInt( fRegex.substring( fIndex + 1, l_end ), 16 );
+          fIndex = l_end + 1;
+        }
+        else {
+          l_value = Integer.parseInt( fRegex.substring( fIndex, fIndex + 2 ), 16 );
+          fIndex += 2;
+        }
+        if ( l_value > Character.MAX_VALUE ) {
+          throw new TUnsupportedRegexException( "supplementary chars" );
+        }
+        return newCharNode( (char) l_value );
+      }
+      case 'u': {
+        char l_value = (char) Integer.parseInt( fRegex.substring( fIndex, fIndex + 4 ), 16 );
+        fIndex += 4;
+        if ( Character.isSurrogate( l_value ) ) {
+          throw new TUnsupportedRegexException( "supplementary chars" );
+        }
+        return newCharNode( l_value );
+      }
+      case 'c': {
+        char l_value = (char) ( peek() ^ 64 );
+        ++fIndex;
+        return newCharNode( l_value );
+      }
+      case 'Q': {
+        int l_end = fRegex.indexOf( "\\E", fIndex );
+        if ( l_end < 0 ) {
+          l_end = fRegex.length();
+        }
+        TNode l_sequence = new TNode( TNode.SEQUENCE );
+        for ( int l_quoteIndex = fIndex; l_quoteIndex < l_end; ++l_quoteIndex ) {
+          if ( Character.isSurrogate( fRegex.charAt( l_quoteIndex ) ) ) {
+            throw new TUnsupportedRegexException( "supplementary chars" );
+          }
+          l_sequence.fChildList.add( newCharNode( fRegex.charAt( l_quoteIndex ) ) );
+        }
+        fIndex = Math.min( fRegex.length(), l_end + 2 );
+        return l_sequence;
+      }
+      case 'A':
+        return newAssertionNode( TEXT_BEGIN_ASSERTION );
+      case 'z':
+        return newAssertionNode( TEXT_END_ASSERTION );
+      case 'Z':
+        return newAssertionNode( FINAL_LINE_END_ASSERTION );
+      default:
+        if ( Character.isLetterOrDigit( l_char ) ) {
+          throw new TUnsupportedRegexException( String.format( "escape[\\%c]", l_char ) );
+        }
+        if ( Character.isSurrogate( l_char ) ) {
+          throw new TUnsupportedRegexException( "supplementary chars" );
+        }
+        return newCharNode( l_char );
+    }
+  }
+  
+  private static TNode newCharNode( char aChar ) {
+    return newCharSetNode( TCharSet.of( Arrays.asList( new int[] { aChar, aChar } ), false ) );
+  }
+  
+  private static TNode newCharSetNode( TCharSet aCharSet ) {
+    TNode l_node = new TNode( TNode.CHAR_SET );
+    l_node.fCharSet = aCharSet;
+    return l_node;
+  }
+  
+  private static TNode newAssertionNode( int aAssertion ) {
+    TNode l_node = new TNode( TNode.ASSERTION );
+    l_node.fAssertion = aAssertion;
+    return l_node;
+  }
+  
+  private int emit( int aOpcode, int aArg, int aOtherArg, TCharSet aCharSet ) throws TUnsupportedRegexException {
+    if ( fLength == MAX_PROGRAM_LENGTH ) {
+      throw new TUnsupportedRegexException( "too large once compiled" );
+    }
+    if ( fLength == fOpcodeArray.length ) {
+      fOpcodeArray = Arrays.copyOf( fOpcodeArray, 2 * fLength );
+      fArgArray = Arrays.copyOf( fArgArray, 2 * fLength );
+      fOtherArgArray = Arrays.copyOf( fOtherArgArray, 2 * fLength );
+      fCharSetArray = Arrays.copyOf( fCharSetArray, 2 * fLength );
+      fEmptySlotsArray = Arrays.copyOf( fEmptySlotsArray, 2 * fLength );
+    }
+    fOpcodeArray[ fLength ] = aOpcode;
+    fArgArray[ fLength ] = aArg;
+    fOtherArgArray[ fLength ] = aOtherArg;
+    fCharSetArray[ fLength ] = aCharSet;
+    fEmptySlotsArray[ fLength ] = new int[ 0 ];
+    return fLength++;
+  }
+  
+  /*
+   * A SPLIT instruction prefers its first target: the order of the targets gives the priorities of
+   * java.util.regex, e.g. the first alternative or one more iteration of a greedy quantifier.
+   */
+  private void emitNode( TNode aNode ) throws TUnsupportedRegexException {
+    switch ( aNode.fKind ) {
+      case TNode.CHAR_SET:
+        emit( CHAR_SET_OPCODE, 0, 0, aNode.fCharSet );
+        break;
+      case TNode.SEQUENCE:
+        for ( TNode l_child : aNode.fChildList ) {
+          emitNode( l_child );
+        }
+        break;
+      case TNode.ALTERNATION: {
+        List<Integer> l_jumpList = new ArrayList<>();
+        for ( int l_childIndex = 0; l_childIndex < aNode.fChildList.size(); ++l_childIndex ) {
+          if ( l_childIndex == aNode.fChildList.size() - 1 ) {
+            emitNode( aNode.fChildList.get( l_childIndex ) );
+            break;
+          }
+          int l_split = emit( SPLIT_OPCODE, fLength + 1, 0, null );
+          emitNode( aNode.fChildList.get( l_childIndex ) );
+          l_jumpList.add( emit( JUMP_OPCODE, 0, 0, null ) );
+          fOtherArgArray[ l_split ] = fLength;
+        }
+        for ( int l_jump : l_jumpList ) {
+          fArgArray[ l_jump ] = fLength;
+        }
+        break;
+      }
+      case TNode.GROUP:
+        if ( aNode.fGroupIndex >= 0 ) {
+          emit( SAVE_OPCODE, 2 * aNode.fGroupIndex, 0, null );
+        }
+        emitNode( aNode.fChildList.get( 0 ) );
+        if ( aNode.fGroupIndex >= 0 ) {
+          emit( SAVE_OPCODE, 2 * aNode.fGroupIndex + 1, 0, null );
+        }
+        break;
+      case TNode.ASSERTION:
+        emit( ASSERTION_OPCODE, aNode.fAssertion, 0, null );
+        break;
+      default:
+        emitRepetition( aNode );
+        break;
+    }
+  }
+  
+  /*
+   * As java.util.regex does, the repetition of an expression which can match empty stops after an empty
+   * iteration, even below the minimum count: each iteration records its start index in a slot of its own, an
+   * EMPTY instruction after the iteration leaves the repetition if the index has not moved.
+   */
+  private void emitRepetition( TNode aNode ) throws TUnsupportedRegexException {
+    TNode l_child = aNode.fChildList.get( 0 );
+    int l_emptySlot = -1;
+    if ( l_child.canMatchEmpty() ) {
+      l_emptySlot = fSlotCount++;
+    }
+    List<Integer> l_exitList = new ArrayList<>();
+    for ( int l_count = 0; l_count < aNode.fMinCount; ++l_count ) {
+      emitIteration( l_child, l_emptySlot, l_exitList );
+    }
+    if ( aNode.fMaxCount < 0 ) {
+      int l_split = emit( SPLIT_OPCODE, 0, 0, null );
+      emitIteration( l_child, l_emptySlot, l_exitList );
+      emit( JUMP_OPCODE, l_split, 0, null );
+      setSplitTargets( l_split, l_split + 1, fLength, aNode.fGreedy );
+    }
+    else {
+      // The optional iterations are nested, (X(X)?)?, so that an iteration is only tried after the previous one.
+      List<Integer> l_splitList = new ArrayList<>();
+      for ( int l_count = aNode.fMinCount; l_count < aNode.fMaxCount; ++l_count ) {
+        l_splitList.add( emit( SPLIT_OPCODE, 0, 0, null ) );
+        emitIteration( l_child, l_emptySlot, l_exitList );
+      }
+      for ( int l_split : l_splitList ) {
+        setSplitTargets( l_split, l_split + 1, fLength, aNode.fGreedy );
+      }
+    }
+    for ( int l_exit : l_exitList ) {
+      fArgArray[ l_exit ] = fLength;
+    }
+  }
+  
+  private void emitIteration( TNode aChild, int aEmptySlot, List<Integer> aExitList ) throws TUnsupportedRegexException {
+    if ( aEmptySlot < 0 ) {
+      emitNode( aChild );
+      return;
+    }
+    int l_start = emit( SAVE_OPCODE, aEmptySlot, 0, null );
+    emitNode( aChild );
+    aExitList.add( emit( EMPTY_OPCODE, 0, aEmptySlot, null ) );
+    // The nested repetitions have been emitted first, their slots come first.
+    for ( int l_pc = l_start + 1; l_pc < fLength; ++l_pc ) {
+      int[] l_emptySlots = Arrays.copyOf( fEmptySlotsArray[ l_pc ], fEmptySlotsArray[ l_pc ].length + 1 );
+      l_emptySlots[ l_emptySlots.length - 1 ] = aEmptySlot;
+      fEmptySlotsArray[ l_pc ] = l_emptySlots;
+      fMaxEmptyDepth = Math.max( fMaxEmptyDepth, l_emptySlots.length );
+    }
+  }
+  
+  private void setSplitTargets( int aSplit, int aIterationTarget, int aExitTarget, boolean aGreedy ) {
+    fArgArray[ aSplit ] = aGreedy ? aIterationTarget : aExitTarget;
+    fOtherArgArray[ aSplit ] = aGreedy ? aExitTarget : aIterationTarget;
+  }
+  
+}
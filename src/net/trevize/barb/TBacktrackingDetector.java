@@ -0,0 +1,265 @@
+package net.trevize.barb;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/*
+ * Looks in a regular expression for the shapes known to make a backtracking matcher take exponential time on
+ * some inputs:
+ *   - nested quantifiers, a group repeated without bound which itself contains an atom repeated without bound,
+ *     e.g. (a+)+ or (\w+\s*)*;
+ *   - overlapping alternatives repeated without bound, e.g. (a|a)* or (.|\s)*, detected when two branches start
+ *     with the same atom or one of them starts with '.'.
+ *
+ * This is a heuristic: a reported shape does not always backtrack (the chars around the repetitions may
+ * disambiguate it), and other shapes may. Possessive quantifiers and atomic groups do not backtrack into their
+ * content and are not reported.
+ */
+public class TBacktrackingDetector {
+  
+  private static final int NO_QUANTIFIER        = 0;
+  private static final int BOUNDED_QUANTIFIER   = 1;
+  private static final int UNBOUNDED_QUANTIFIER = 2;
+  
+  private String fRegex = null;
+  private int    fIndex = 0;
+  private String fShape = null;
+  
+  private TBacktrackingDetector( String aRegex ) {
+    fRegex = aRegex;
+  }
+  
+  /*
+   * Returns a description of the first exponential shape found in the regular expression, or null if none is
+   * found.
+   */
+  public static String findExponentialShape( String aRegex ) {
+    TBacktrackingDetector l_detector = new TBacktrackingDetector( aRegex );
+    try {
+      l_detector.parseAlternation( new ArrayList<>() );
+    }
+    catch ( RuntimeException l_exception ) {
+      // An expression this parser does not understand, Pattern.compile() has accepted it.
+    }
+    return l_detector.fShape;
+  }
+  
+  private boolean hasNext() {
+    return fIndex < fRegex.length();
+  }
+  
+  private char peek() {
+    return fRegex.charAt( fIndex );
+  }
+  
+  /*
+   * Returns true if the alternation contains an atom repeated without bound, the first atom of each branch is
+   * added to aFirstAtomList (null for an empty branch).
+   */
+  private boolean parseAlternation( List<String> aFirstAtomList ) {
+    boolean l_isRepeating = false;
+    while ( true ) {
+      String[] l_firstAtomHolder = new String[ 1 ];
+      l_isRepeating |= parseSequence( l_firstAtomHolder );
+      aFirstAtomList.add( l_firstAtomHolder[ 0 ] );
+      if ( hasNext() && ( peek() == '|' ) ) {
+        ++fIndex;
+        continue;
+      }
+      break;
+    }
+    return l_isRepeating;
+  }
+  
+  private boolean parseSequence( String[] aFirstAtomHolder ) {
+    boolean l_isRepeating = false;
+    while ( hasNext() && ( peek() != '|' ) && ( peek() != ')' ) ) {
+      int l_atomStart = fIndex;
+      if ( peek() == '(' ) {
+        l_isRepeating |= parseGroup();
+      }
+      else {
+        skipAtom();
+        l_isRepeating |= parseQuantifier() == UNBOUNDED_QUANTIFIER;
+      }
+      if ( ( aFirstAtomHolder[ 0 ] == null ) && ( fIndex > l_atomStart ) ) {
+        aFirstAtomHolder[ 0 ] = fRegex.substring( l_atomStart, fIndex );
+      }
+    }
+    return l_isRepeating;
+  }
+  
+  /*
+   * Parses a group and its quantifier, returns true if the group contains or is an unbounded repetition.
+   */
+  private boolean parseGroup() {
+    int l_groupStart = fIndex;
+    ++fIndex;
+    boolean l_isAtomic = false;
+    if ( hasNext() && ( peek() == '?' ) ) {
+      ++fIndex;
+      char l_kind = peek();
+      if ( ( l_kind == '=' ) || ( l_kind == '!' ) || ( l_kind == ':' ) ) {
+        ++fIndex;
+      }
+      else if ( l_kind == '>' ) {
+        l_isAtomic = true;
+        ++fIndex;
+      }
+      else if ( ( l_kind == '<' ) && ( ( fRegex.charAt( fIndex + 1 ) == '=' ) || ( fRegex.charAt( fIndex + 1 ) == '!' ) ) ) {
+        fIndex += 2;
+      }
+      else if ( l_kind == '<' ) {
+        fIndex = fRegex.indexOf( '>', fIndex ) + 1;
+      }
+      else {
+        // Inline flags, either (?flags) or (?flags:X).
+        while ( ( peek() != ')' ) && ( peek() != ':' ) ) {
+          ++fIndex;
+        }
+        if ( peek() == ')' ) {
+          ++fIndex;
+          return false;
+        }
+        ++fIndex;
+      }
+    }
+    List<String> l_firstAtomList = new ArrayList<>();
+    boolean l_isRepeating = parseAlternation( l_firstAtomList );
+    if ( ! hasNext() || ( peek() != ')' ) ) {
+      throw new IllegalArgumentException( "Unbalanced group" );
+    }
+    ++fIndex;
+    int l_quantifier = parseQuantifier();
+    if ( ( l_quantifier == UNBOUNDED_QUANTIFIER ) && ! l_isAtomic && ( fShape == null ) ) {
+      if ( l_isRepeating ) {
+        fShape = String.format( "nested quantifiers in Group[%s]", fRegex.substring( l_groupStart, fIndex ) );
+      }
+      else if ( hasOverlappingBranches( l_firstAtomList ) ) {
+        fShape = String.format( "overlapping alternatives in Group[%s]", fRegex.substring( l_groupStart, fIndex ) );
+      }
+    }
+    if ( l_isAtomic ) {
+      return l_quantifier == UNBOUNDED_QUANTIFIER;
+    }
+    return l_isRepeating || ( l_quantifier == UNBOUNDED_QUANTIFIER );
+  }
+  
+  private static boolean hasOverlappingBranches( List<String> aFirstAtomList ) {
+    for ( int l_branchIndex = 0; l_branchIndex < aFirstAtomList.size(); ++l_branchIndex ) {
+      String l_firstAtom = aFirstAtomList.get( l_branchIndex );
+      if ( l_firstAtom == null ) {
+        continue;
+      }
+      for ( int l_otherBranchIndex = l_branchIndex + 1; l_otherBranchIndex < aFirstAtomList.size(); ++l_otherBranchIndex ) {
+        String l_otherFirstAtom = aFirstAtomList.get( l_otherBranchIndex );
+        if ( ( l_otherFirstAtom != null ) && ( l_firstAtom.equals( l_otherFirstAtom ) || l_firstAtom.equals( "." ) || l_otherFirstAtom.equals( "." ) ) ) {
+          return true;
+        }
+      }
+    }
+    return false;
+  }
+  
+  /*
+   * Skips the quantifier following an atom, if any. A possessive quantifier does not backtrack, it is reported
+   * as no quantifier.
+   */
+  private int parseQuantifier() {
+    if ( ! hasNext() ) {
+      return NO_QUANTIFIER;
+    }
+    int l_quantifier = NO_QUANTIFIER;
+    char l_char = peek();
+    if ( ( l_char == '*' ) || ( l_char == '+' ) ) {
+      l_quantifier = UNBOUNDED_QUANTIFIER;
+      ++fIndex;
+    }
+    else if ( l_char == '?' ) {
+      l_quantifier = BOUNDED_QUANTIFIER;
+      ++fIndex;
+    }
+    else if ( l_char == '{' ) {
+      int l_end = fRegex.indexOf( '}', fIndex );
+      String l_bounds = fRegex.substring( fIndex + 1, l_end );
+      l_quantifier = l_bounds.trim().endsWith( "," ) ? UNBOUNDED_QUANTIFIER : BOUNDED_QUANTIFIER;
+      fIndex = l_end + 1;
+    }
+    else {
+      return NO_QUANTIFIER;
+    }
+    if ( hasNext() && ( peek() == '+' ) ) {
+      ++fIndex;
+      return NO_QUANTIFIER;
+    }
+    // Lazy quantifier, it still backtracks.
+    if ( hasNext() && ( peek() == '?' ) ) {
+      ++fIndex;
+    }
+    return l_quantifier;
+  }
+  
+  private void skipAtom() {
+    char l_char = peek();
+    ++fIndex;
+    if ( l_char == '[' ) {
+      skipCharClass();
+    }
+    else if ( l_char == '\\' ) {
+      skipEscape();
+    }
+  }
+  
+  private void skipCharClass() {
+    int l_depth = 1;
+    if ( hasNext() && ( peek() == '^' ) ) {
+      ++fIndex;
+    }
+    // A ']' right after the opening bracket is a char of the class.
+    if ( hasNext() && ( peek() == ']' ) ) {
+      ++fIndex;
+    }
+    while ( l_depth > 0 ) {
+      char l_char = fRegex.charAt( fIndex++ );
+      if ( l_char == '\\' ) {
+        ++fIndex;
+      }
+      else if ( l_char == '[' ) {
+        ++l_depth;
+      }
+      else if ( l_char == ']' ) {
+        --l_depth;
+      }
+    }
+  }
+  
+  private void skipEscape() {
+    char l_char = fRegex.charAt( fIndex++ );
+    switch ( l_char ) {
+      case 'x':
+        fIndex = ( peek() == '{' ) ? ( fRegex.indexOf( '}', fIndex ) + 1 ) : ( fIndex + 2 );
+        break;
+      case 'u':
+        fIndex += 4;
+        break;
+      case 'Q': {
+        int l_end = fRegex.indexOf( "\\E", fIndex );
+        fIndex = ( l_end < 0 ) ? fRegex.length() : ( l_end + 2 );
+        break;
+      }
+      case 'p':
+      case 'P':
+        fIndex = ( hasNext() && ( peek() == '{' ) ) ? ( fRegex.indexOf( '}', fIndex ) + 1 ) : ( fIndex + 1 );
+        break;
+      case 'k':
+        fIndex = fRegex.indexOf( '>', fIndex ) + 1;
+        break;
+      case 'c':
+        ++fIndex;
+        break;
+      default:
+        break;
+    }
+  }
+  
+}
@@ -1,47 +1,171 @@
 package net.trevize.barb;
 
 import java.io.File;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.io.PrintWriter;
 import java.nio.file.Files;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.concurrent.Callable;
-import java.util.regex.Matcher;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.regex.Pattern;
 
 import org.apache.commons.cli.CommandLine;
 import org.apache.commons.cli.CommandLineParser;
 import org.apache.commons.cli.DefaultParser;
 import org.apache.commons.cli.HelpFormatter;
+import org.apache.commons.cli.Option;
 import org.apache.commons.cli.Options;
 import org.apache.commons.cli.UnrecognizedOptionException;
 
 public class TBarb implements Callable<Integer> {
   
+  /*
+   * Applies the replacement plan to a target file and returns true if a match was found.
+   */
+  private interface TReplacementTask {
+    boolean replace( File aTargetFile, TTargetFileResult aResult ) throws Exception;
+  }
+  
+  /*
+   * What a replacement task found out about a target file, besides whether it matched.
+   */
+  private static class TTargetFileResult {
+    private BasicFileAttributes fAttributes  = null;
+    private long                fContentHash = TScanCache.UNKNOWN_CONTENT_HASH;
+    private int                 fMatchCount  = -1;
+  }
+  
   private Options       fCommandLineOptions         = null;
   
   private HelpFormatter fHelpFormatter              = null;
-  private String        fHelpCommandLineSyntax      = "barb [OPTION]... <PATTERN_FILE> <REPLACEMENT_FILE> <TARGET_FILE>...";
+  private String        fHelpCommandLineSyntax      = "barb [OPTION]... <PATTERN_FILE> <REPLACEMENT_FILE> <TARGET_FILE|DIRECTORY>...\n"
+      + "       barb [OPTION]... -m <MANIFEST_FILE> <TARGET_FILE|DIRECTORY>...\n"
+      + "       barb --merge-summaries <SUMMARY_FILE>...";
   
   private String        fHelpHeader                 = "Search and replace text with support of multi-lines pattern (literal or PCRE regular expression).\n\n" 
       + "If a regular expression is provided then:\n" 
       + "  - the MULTILINE flag is used by default, see <https://docs.oracle.com/javase/8/docs/api/java/util/regex/Pattern.html#MULTILINE>.\n" 
-      + "  - the DOTALL flag is used by default, see <https://docs.oracle.com/javase/8/docs/api/java/util/regex/Pattern.html#DOTALL>.\n\n" + "Options:";
+      + "  - the DOTALL flag is used by default, see <https://docs.oracle.com/javase/8/docs/api/java/util/regex/Pattern.html#DOTALL>.\n\n"
+      + "With -m the pattern/replacement pairs are listed in MANIFEST_FILE, one per line: 'literal' or 'regex', PATTERN_FILE and REPLACEMENT_FILE separated by tabulations, "
+      + "the paths being relative to the directory of MANIFEST_FILE. Empty lines and lines starting with '#' are ignored. "
+      + "The literal pairs are applied first in a single pass, then the regular expressions combined into as few passes as possible; "
+      + "the replacements of a pass are not searched again. Each TARGET_FILE is read and written at most once.\n\n"
+      + "With -0 or --stdin the paths of further TARGET_FILEs (or DIRECTORYs with -R) are read from the standard input, separated by NUL bytes (find -print0) or by new lines, "
+      + "and processed as they arrive. The standard input is read at the pace of the replacements, these runs are not forwarded to the daemon.\n\n"
+      + "With -R a DIRECTORY is walked recursively. A GLOB containing a '/' is matched against the path relative to the DIRECTORY, otherwise against the file name.\n\n"
+      + "A TARGET_FILE whose first " + TBinaryFileDetector.SNIFF_LENGTH + " bytes contain a NUL byte or mostly invalid UTF-8 is considered binary and skipped, unless --binary is given. "
+      + "With --cache the target files in which the same pairs found no match are skipped while their size and modification time are unchanged. "
+      + "A SIZE is a number of bytes with an optional K, M or G suffix.\n\n"
+      + "With --shard I/N only the target files of the I-th of N disjoint shards are processed, so that N barb processes given the same arguments, on other nodes or containers, "
+      + "split a sweep without coordination. A target file is assigned to a shard by a stable hash of its path as given, or for a file found by -R of its path relative to the DIRECTORY. "
+      + "Each process can write a --summary, the summaries of the shards are merged with: barb --merge-summaries SUMMARY_FILE..., which prints the summed counters and the matched "
+      + "and failed target files, and exits with status 2 if a shard is missing or a target file failed.\n\n"
+      + "With --watch barb keeps running after processing the target files: the files created or modified in the walked directories, or the TARGET_FILEs modified, are processed again "
+      + "once their changes have settled for " + TTargetFileWatcher.DEBOUNCE_MILLIS + "ms, with the same options. The writes of barb itself do not trigger a new replacement.\n\n"
+      + "When a daemon started with --daemon is running, the arguments are forwarded to it and the replacement runs in its warm JVM; otherwise barb runs in process.\n\n"
+      + "Exit status is 0 on success, 1 on a fatal error and 2 if some TARGET_FILE could not be processed.\n\n" + "Options:";
   
   private boolean        fShowHelp                   = false;
   private boolean        fPatternIsRegularExpression = false;
   private boolean        fDisableFlags               = false;
   private boolean        fVerboseOutput              = false;
+  private int            fThreadCount                = Runtime.getRuntime().availableProcessors();
+  private boolean        fWalkDirectories            = false;
+  private boolean        fWalkHiddenDirectories      = false;
+  private boolean        fUseIgnoreFiles             = false;
+  private List<String>   fIncludeGlobList            = new ArrayList<>();
+  private List<String>   fExcludeGlobList            = new ArrayList<>();
+  private boolean        fStreaming                  = false;
+  private boolean        fDryRun                     = false;
+  private boolean        fAtomicWrite                = false;
+  private boolean        fListMatchingFiles          = false;
+  private int            fMaxMatchLength             = 0;
+  private long           fRegexTimeoutMillis         = 0;
+  private boolean        fAutomatonEngine            = false;
+  private boolean        fReadTargetFileList         = false;
+  private boolean        fTargetFileListNulDelimited = false;
+  private boolean        fProcessBinaryFiles         = false;
+  private long           fMaxFileSize                = Long.MAX_VALUE;
+  private long           fMemoryBudget               = 0;
+  private int            fIoThreadCount              = 0;
+  private String         fStatisticsFormat           = null;
+  private TStatistics    fStatistics                 = new TStatistics( false );
+  private File           fScanCacheFile              = null;
+  private TScanCache     fScanCache                  = null;
+  private long           fPlanFingerprint            = 0;
+  private TShard         fShard                      = null;
+  private File           fSummaryFile                = null;
+  private TRunSummary    fRunSummary                 = null;
+  private List<File>     fSummaryFileList            = null;
+  private boolean        fWatch                      = false;
+  private File           fManifestFile               = null;
   private File           fPatternFile                = null;
   private File           fReplacementFile            = null;
   private List<File>     fTargetFileList             = null;
   
+  private TTargetFileWatcher fWatcher                = null;
+  
+  private InputStream    fIn                         = System.in;
+  private PrintStream    fOut                        = System.out;
+  private PrintStream    fErr                        = System.err;
+  private File           fWorkingDirectory           = null;
+  private TPlanCache     fPlanCache                  = null;
+  
   private String         fErrorMessage               = null;
   
+  /*
+   * A run on behalf of a daemon client: the output goes to the client, the relative paths are resolved against
+   * the working directory of the client and the compiled plans are shared with the other runs of the daemon.
+   * There is no standard input.
+   */
+  public TBarb( PrintStream aOut, PrintStream aErr, File aWorkingDirectory, TPlanCache aPlanCache ) {
+    this();
+    fIn = null;
+    fOut = aOut;
+    fErr = aErr;
+    fWorkingDirectory = aWorkingDirectory;
+    fPlanCache = aPlanCache;
+  }
+  
   public TBarb() {
     fCommandLineOptions = new Options();
+    fCommandLineOptions.addOption( "0", false, "Also read target file paths from the standard input, separated by NUL bytes as written by find -print0." );
     fCommandLineOptions.addOption( "h", false, "Help" );
+    fCommandLineOptions.addOption( Option.builder().longOpt( "atomic" ).desc( "Replace each modified target file by a temporary file renamed over it, so that a reader never sees it partially written. By default a target file is patched in place, from its first change on." ).build() );
+    fCommandLineOptions.addOption( Option.builder().longOpt( "binary" ).desc( "Also process the target files which look binary, they are skipped by default." ).build() );
+    fCommandLineOptions.addOption( Option.builder().longOpt( "cache" ).hasArg().argName( "CACHE_FILE" ).desc( "Record in CACHE_FILE the target files without match, and skip them in the next runs while they are unchanged." ).build() );
+    fCommandLineOptions.addOption( Option.builder().longOpt( "daemon" ).desc( "Serve the next barb invocations from this warm JVM, on a loopback port written with an access token in " + TDaemonServer.DAEMON_FILE_DESCRIPTION + "." ).build() );
+    fCommandLineOptions.addOption( Option.builder().longOpt( "engine" ).hasArg().argName( "ENGINE" ).desc( "The engine of the regular expressions: 'java' (java.util.regex, the default) or 'automaton', which runs in linear time and leaves to java.util.regex the regular expressions it does not support (back references, lookarounds...). -l and -s always use java.util.regex." ).build() );
+    fCommandLineOptions.addOption( Option.builder().longOpt( "exclude" ).hasArg().argName( "GLOB" ).desc( "With -R, skip the files and prune the directories matching GLOB. Can be repeated." ).build() );
+    fCommandLineOptions.addOption( Option.builder().longOpt( "gitignore" ).desc( "With -R, skip the files and prune the directories ignored by the .gitignore and .ignore files of the walked directories and of their parents up to the repository root, and never walk the .git directories. The ignore files are parsed by barb, git is not needed." ).build() );
+    fCommandLineOptions.addOption( Option.builder().longOpt( "hidden" ).desc( "With -R, also walk the hidden directories (name starting with a '.')." ).build() );
+    fCommandLineOptions.addOption( Option.builder().longOpt( "include" ).hasArg().argName( "GLOB" ).desc( "With -R, only process the files matching GLOB. Can be repeated." ).build() );
+    fCommandLineOptions.addOption( Option.builder().longOpt( "io-threads" ).hasArg().argName( "N" ).desc( "Read the target files ahead and write them behind with N I/O threads, the -j worker threads only search and replace: they do not wait for the disk, useful on network file systems. Not used with -l and -s." ).build() );
+    fCommandLineOptions.addOption( "l", false, "Only list the paths of the matching target files, nothing is written. A target file is read chunk by chunk until its first match." );
+    fCommandLineOptions.addOption( Option.builder( "m" ).hasArg().argName( "MANIFEST_FILE" ).desc( "Apply all the pattern/replacement pairs listed in MANIFEST_FILE." ).build() );
+    fCommandLineOptions.addOption( Option.builder().longOpt( "max-file-size" ).hasArg().argName( "SIZE" ).desc( "Skip the target files larger than SIZE, checked before reading them." ).build() );
+    fCommandLineOptions.addOption( Option.builder().longOpt( "memory-budget" ).hasArg().argName( "SIZE" ).desc( "Bound the heap held by the target files read in memory at the same time to SIZE, estimated from their sizes: the workers wait for their share. A target file too large for SIZE is streamed as with -s when the pattern/replacement pair allows it, otherwise it is processed alone. Not needed with -l and -s, which do not read the target files in memory." ).build() );
+    fCommandLineOptions.addOption( Option.builder().longOpt( "merge-summaries" ).desc( "Merge the SUMMARY_FILEs given as arguments, written by the shards of a sweep with --summary, and print the merged summary." ).build() );
+    fCommandLineOptions.addOption( Option.builder().longOpt( "max-match-length" ).hasArg().argName( "N" ).desc( "With -s and -r, the maximum length in chars of a match of the regular expression." ).build() );
+    fCommandLineOptions.addOption( Option.builder( "j" ).hasArg().argName( "N" ).desc( "Process the target files with N worker threads (default: number of available processors)." ).build() );
+    fCommandLineOptions.addOption( Option.builder().longOpt( "shard" ).hasArg().argName( "I/N" ).desc( "Only process the target files of shard I out of N (numbered from 1), see below." ).build() );
+    fCommandLineOptions.addOption( Option.builder().longOpt( "stdin" ).desc( "Also read target file paths from the standard input, one per line." ).build() );
+    fCommandLineOptions.addOption( Option.builder().longOpt( "stats" ).hasArg().argName( "FORMAT" ).desc( "Print the statistics of the run on the standard error: files, matches, bytes and cumulative time per phase. FORMAT is 'text' or 'json'." ).build() );
+    fCommandLineOptions.addOption( Option.builder().longOpt( "summary" ).hasArg().argName( "SUMMARY_FILE" ).desc( "Write the summary of the run to SUMMARY_FILE at the end: shard, counters, matched and failed target files." ).build() );
+    fCommandLineOptions.addOption( Option.builder().longOpt( "no-daemon" ).desc( "Run in this process even if a daemon is running." ).build() );
+    fCommandLineOptions.addOption( "n", false, "Dry run: print the matching target files with their number of matches, nothing is written." );
     fCommandLineOptions.addOption( "r", false, "Use PATTERN_FILE as a regular expression instead of a literal." );
+    fCommandLineOptions.addOption( Option.builder().longOpt( "regex-timeout" ).hasArg().argName( "MS" ).desc( "Give the regular expressions at most MS milliseconds per target file, a target file taking longer is reported as failed and left unchanged." ).build() );
+    fCommandLineOptions.addOption( "R", false, "Walk the DIRECTORY arguments recursively, their files are processed as soon as they are found." );
+    fCommandLineOptions.addOption( "s", false, "Stream the target files through a fixed-size window instead of loading them in memory, the replaced content is written to a temporary file which then replaces the target file." );
     fCommandLineOptions.addOption( "u", false, "Disable default flags (DOTALL and MULTILINE). They can be individually enabled in the expression with (?s) for DOTALL, and (?m) for MULTILINE." );
+    fCommandLineOptions.addOption( Option.builder().longOpt( "watch" ).desc( "After the run, watch the target files and the walked directories and apply the replacement again to the target files created or modified, until barb is interrupted. --stats and --summary then cover the whole run, they are printed and written again after each batch. Not forwarded to the daemon." ).build() );
     fCommandLineOptions.addOption( "v", false, "Verbose output: print matches and full error traces." );
     
     fHelpFormatter = new HelpFormatter();
@@ -60,8 +184,28 @@ public class TBarb implements Callable<Integer> {
     return fErrorMessage;
   }
   
+  /*
+   * Same as --atomic, for the callers of the searchAndReplace methods.
+   */
+  public void setAtomicWrite( boolean aAtomicWrite ) {
+    fAtomicWrite = aAtomicWrite;
+  }
+  
   private void printHelp() {
-    fHelpFormatter.printHelp( fHelpCommandLineSyntax, fHelpHeader, fCommandLineOptions, null );
+    PrintWriter l_writer = new PrintWriter( fOut );
+    fHelpFormatter.printHelp( l_writer, fHelpFormatter.getWidth(), fHelpCommandLineSyntax, fHelpHeader, fCommandLineOptions, fHelpFormatter.getLeftPadding(), fHelpFormatter.getDescPadding(), null );
+    l_writer.flush();
+  }
+  
+  /*
+   * Relative paths are resolved against the working directory of the daemon client, if any.
+   */
+  private File resolvePath( String aPath ) {
+    File l_file = new File( aPath );
+    if ( ( fWorkingDirectory == null ) || l_file.isAbsolute() ) {
+      return l_file;
+    }
+    return new File( fWorkingDirectory, aPath );
   }
   
   private void readCommandLine( String[] aParameterArray ) throws Exception {
@@ -73,6 +217,23 @@ public class TBarb implements Callable<Integer> {
       return;
     }
     
+    if ( l_commandLine.hasOption( "daemon" ) ) {
+      fErrorMessage = "Option --daemon must be used alone";
+      throw new Exception();
+    }
+    
+    if ( l_commandLine.hasOption( "merge-summaries" ) ) {
+      fSummaryFileList = new ArrayList<>();
+      for ( String l_summaryFilePath : l_commandLine.getArgList() ) {
+        fSummaryFileList.add( resolvePath( l_summaryFilePath ) );
+      }
+      if ( fSummaryFileList.isEmpty() ) {
+        fErrorMessage = "You must specify summary files.\nTry 'barb -h' for more information.";
+        throw new Exception();
+      }
+      return;
+    }
+    
     if ( l_commandLine.hasOption( "r" ) ) {
       fPatternIsRegularExpression = true;
     }
@@ -85,136 +246,1024 @@ public class TBarb implements Callable<Integer> {
       fVerboseOutput = true;
     }
     
-    List<String> l_argList = l_commandLine.getArgList();
+    if ( l_commandLine.hasOption( "j" ) ) {
+      try {
+        fThreadCount = Integer.parseInt( l_commandLine.getOptionValue( "j" ) );
+      }
+      catch ( NumberFormatException l_exception ) {
+        fThreadCount = 0;
+      }
+      if ( fThreadCount < 1 ) {
+        fErrorMessage = String.format( "Invalid number of worker threads[%s]", l_commandLine.getOptionValue( "j" ) );
+        throw new Exception();
+      }
+    }
     
-    if ( l_argList.size() < 3 ) {
-      fErrorMessage = "You must specify files.\nTry 'barb -h' for more information.";
+    if ( l_commandLine.hasOption( "R" ) ) {
+      fWalkDirectories = true;
+    }
+    
+    if ( l_commandLine.hasOption( "hidden" ) ) {
+      fWalkHiddenDirectories = true;
+    }
+    
+    if ( l_commandLine.hasOption( "gitignore" ) ) {
+      fUseIgnoreFiles = true;
+    }
+    
+    if ( l_commandLine.hasOption( "include" ) ) {
+      fIncludeGlobList.addAll( Arrays.asList( l_commandLine.getOptionValues( "include" ) ) );
+    }
+    
+    if ( l_commandLine.hasOption( "exclude" ) ) {
+      fExcludeGlobList.addAll( Arrays.asList( l_commandLine.getOptionValues( "exclude" ) ) );
+    }
+    
+    if ( l_commandLine.hasOption( "s" ) ) {
+      fStreaming = true;
+    }
+    
+    if ( l_commandLine.hasOption( "n" ) ) {
+      fDryRun = true;
+    }
+    
+    if ( l_commandLine.hasOption( "l" ) ) {
+      fListMatchingFiles = true;
+    }
+    
+    if ( l_commandLine.hasOption( "atomic" ) ) {
+      fAtomicWrite = true;
+    }
+    
+    if ( ( fDryRun || fListMatchingFiles ) && ( fStreaming || ( fDryRun && fListMatchingFiles ) ) ) {
+      fErrorMessage = "Options -l, -n and -s cannot be used together";
       throw new Exception();
     }
     
-    File l_patternFile = new File( l_argList.get( 0 ) );
-    if ( ! l_patternFile.isFile() ) {
-      throw new Exception( "Cannot find PatternFile" );
+    if ( l_commandLine.hasOption( "max-match-length" ) ) {
+      try {
+        fMaxMatchLength = Integer.parseInt( l_commandLine.getOptionValue( "max-match-length" ) );
+      }
+      catch ( NumberFormatException l_exception ) {
+        fMaxMatchLength = 0;
+      }
+      if ( fMaxMatchLength < 1 ) {
+        fErrorMessage = String.format( "Invalid maximum match length[%s]", l_commandLine.getOptionValue( "max-match-length" ) );
+        throw new Exception();
+      }
+    }
+    
+    if ( l_commandLine.hasOption( "regex-timeout" ) ) {
+      try {
+        fRegexTimeoutMillis = Long.parseLong( l_commandLine.getOptionValue( "regex-timeout" ) );
+      }
+      catch ( NumberFormatException l_exception ) {
+        fRegexTimeoutMillis = 0;
+      }
+      if ( fRegexTimeoutMillis < 1 ) {
+        fErrorMessage = String.format( "Invalid regex timeout[%s]", l_commandLine.getOptionValue( "regex-timeout" ) );
+        throw new Exception();
+      }
+    }
+    
+    if ( l_commandLine.hasOption( "engine" ) ) {
+      String l_engine = l_commandLine.getOptionValue( "engine" );
+      if ( ! l_engine.equals( "java" ) && ! l_engine.equals( "automaton" ) ) {
+        fErrorMessage = String.format( "Invalid regex engine[%s], expected: java|automaton", l_engine );
+        throw new Exception();
+      }
+      fAutomatonEngine = l_engine.equals( "automaton" );
+    }
+    
+    if ( l_commandLine.hasOption( "0" ) || l_commandLine.hasOption( "stdin" ) ) {
+      if ( fIn == null ) {
+        fErrorMessage = "Options -0 and --stdin cannot be used through the daemon, use --no-daemon";
+        throw new Exception();
+      }
+      fReadTargetFileList = true;
+      fTargetFileListNulDelimited = l_commandLine.hasOption( "0" );
+    }
+    
+    if ( l_commandLine.hasOption( "watch" ) ) {
+      if ( fIn == null ) {
+        fErrorMessage = "Option --watch cannot be used through the daemon, use --no-daemon";
+        throw new Exception();
+      }
+      fWatch = true;
+    }
+    
+    if ( l_commandLine.hasOption( "binary" ) ) {
+      fProcessBinaryFiles = true;
     }
-    fPatternFile = l_patternFile;
     
-    File l_replacementFile = new File( l_argList.get( 1 ) );
-    if ( ! l_replacementFile.isFile() ) {
-      throw new Exception( "Cannot find ReplacementFile" );
+    if ( l_commandLine.hasOption( "max-file-size" ) ) {
+      fMaxFileSize = parseSize( l_commandLine.getOptionValue( "max-file-size" ) );
+      if ( fMaxFileSize < 0 ) {
+        fErrorMessage = String.format( "Invalid maximum file size[%s]", l_commandLine.getOptionValue( "max-file-size" ) );
+        throw new Exception();
+      }
+    }
+    
+    if ( l_commandLine.hasOption( "memory-budget" ) ) {
+      fMemoryBudget = parseSize( l_commandLine.getOptionValue( "memory-budget" ) );
+      if ( fMemoryBudget < 1 ) {
+        fErrorMessage = String.format( "Invalid memory budget[%s]", l_commandLine.getOptionValue( "memory-budget" ) );
+        throw new Exception();
+      }
+    }
+    
+    if ( l_commandLine.hasOption( "io-threads" ) ) {
+      try {
+        fIoThreadCount = Integer.parseInt( l_commandLine.getOptionValue( "io-threads" ) );
+      }
+      catch ( NumberFormatException l_exception ) {
+        fIoThreadCount = 0;
+      }
+      if ( fIoThreadCount < 1 ) {
+        fErrorMessage = String.format( "Invalid number of I/O threads[%s]", l_commandLine.getOptionValue( "io-threads" ) );
+        throw new Exception();
+      }
+    }
+    
+    if ( l_commandLine.hasOption( "stats" ) ) {
+      fStatisticsFormat = l_commandLine.getOptionValue( "stats" );
+      if ( ! fStatisticsFormat.equals( "text" ) && ! fStatisticsFormat.equals( "json" ) ) {
+        fErrorMessage = String.format( "Invalid statistics format[%s], expected 'text' or 'json'", fStatisticsFormat );
+        throw new Exception();
+      }
+    }
+    
+    if ( l_commandLine.hasOption( "cache" ) ) {
+      fScanCacheFile = resolvePath( l_commandLine.getOptionValue( "cache" ) );
+      if ( fScanCacheFile.isDirectory() ) {
+        fErrorMessage = String.format( "CacheFile[%s] is a directory", fScanCacheFile );
+        throw new Exception();
+      }
+    }
+    
+    if ( l_commandLine.hasOption( "shard" ) ) {
+      fShard = TShard.parse( l_commandLine.getOptionValue( "shard" ) );
+      if ( fShard == null ) {
+        fErrorMessage = String.format( "Invalid shard[%s], expected: I/N with 1 <= I <= N", l_commandLine.getOptionValue( "shard" ) );
+        throw new Exception();
+      }
+    }
+    
+    if ( l_commandLine.hasOption( "summary" ) ) {
+      fSummaryFile = resolvePath( l_commandLine.getOptionValue( "summary" ) );
+      if ( fSummaryFile.isDirectory() ) {
+        fErrorMessage = String.format( "SummaryFile[%s] is a directory", fSummaryFile );
+        throw new Exception();
+      }
+    }
+    
+    List<String> l_argList = l_commandLine.getArgList();
+    int l_firstTargetFilePathIndex = 2;
+    
+    if ( l_commandLine.hasOption( "m" ) ) {
+      if ( fPatternIsRegularExpression ) {
+        fErrorMessage = "Option -r cannot be used with -m, the kind of each pattern is given in MANIFEST_FILE";
+        throw new Exception();
+      }
+      File l_manifestFile = resolvePath( l_commandLine.getOptionValue( "m" ) );
+      if ( ! l_manifestFile.isFile() ) {
+        throw new Exception( "Cannot find ManifestFile" );
+      }
+      fManifestFile = l_manifestFile;
+      l_firstTargetFilePathIndex = 0;
+    }
+    
+    if ( ( l_argList.size() < l_firstTargetFilePathIndex ) || ( ( l_argList.size() == l_firstTargetFilePathIndex ) && ! fReadTargetFileList ) ) {
+      fErrorMessage = "You must specify files.\nTry 'barb -h' for more information.";
+      throw new Exception();
+    }
+    
+    if ( fManifestFile == null ) {
+      File l_patternFile = resolvePath( l_argList.get( 0 ) );
+      if ( ! l_patternFile.isFile() ) {
+        throw new Exception( "Cannot find PatternFile" );
+      }
+      fPatternFile = l_patternFile;
+      
+      File l_replacementFile = resolvePath( l_argList.get( 1 ) );
+      if ( ! l_replacementFile.isFile() ) {
+        throw new Exception( "Cannot find ReplacementFile" );
+      }
+      fReplacementFile = l_replacementFile;
     }
-    fReplacementFile = l_replacementFile;
     
     fTargetFileList = new ArrayList<>();
-    for ( int l_targetFilePathIndex = 2; l_targetFilePathIndex < l_argList.size(); ++l_targetFilePathIndex ) {
-      String l_targetFilePath = l_argList.get( l_targetFilePathIndex );
-      File l_targetFile = new File( l_targetFilePath );
-      if ( ! l_targetFile.isFile() ) {
-        System.err.println( String.format( "TargetFile[%s] is not a file, skipping it!", l_targetFile ) );
-        continue;
+    for ( int l_targetFilePathIndex = l_firstTargetFilePathIndex; l_targetFilePathIndex < l_argList.size(); ++l_targetFilePathIndex ) {
+      File l_targetFile = checkTargetFile( l_argList.get( l_targetFilePathIndex ) );
+      if ( l_targetFile != null ) {
+        fTargetFileList.add( l_targetFile );
       }
-      fTargetFileList.add( l_targetFile );
     }
     
     return;
   }
   
-  public void searchAndReplaceByLiteral( String aPattern, String aReplacement, List<File> aTargetFileList ) throws Exception {
-    for ( File l_targetFile : aTargetFileList ) {
+  /*
+   * Returns the target file or directory (with -R) designated by aTargetFilePath, or null after a warning if
+   * there is none.
+   */
+  private File checkTargetFile( String aTargetFilePath ) {
+    File l_targetFile = resolvePath( aTargetFilePath );
+    if ( fWalkDirectories && l_targetFile.isDirectory() ) {
+      return l_targetFile;
+    }
+    if ( ! l_targetFile.isFile() ) {
+      fErr.println( String.format( "TargetFile[%s] is not a file, skipping it!", l_targetFile ) );
+      return null;
+    }
+    return l_targetFile;
+  }
+  
+  /*
+   * Tells whether the command line reads target file paths from the standard input, such a run cannot be
+   * forwarded to the daemon. A cluster of short options is read up to its first option taking an argument (-j,
+   * -m), the rest of the cluster or the next argument being the value of this option: -j10 is not taken as -0.
+   */
+  static boolean readsTargetFileList( String[] args ) {
+    String l_flagLetters = "0hlnrRsuv";
+    String l_argumentLetters = "jm";
+    for ( int i = 0; i < args.length; i++ ) {
+      String l_arg = args[ i ];
+      if ( l_arg.equals( "--" ) ) {
+        return false;
+      }
+      if ( l_arg.equals( "--stdin" ) ) {
+        return true;
+      }
+      if ( ! l_arg.startsWith( "-" ) || l_arg.startsWith( "--" ) ) {
+        continue;
+      }
+      for ( int j = 1; j < l_arg.length(); j++ ) {
+        char l_letter = l_arg.charAt( j );
+        if ( l_letter == '0' ) {
+          return true;
+        }
+        if ( l_argumentLetters.indexOf( l_letter ) >= 0 ) {
+          if ( j == l_arg.length() - 1 ) {
+            // The value is the next argument.
+            i++;
+          }
+          break;
+        }
+        if ( l_flagLetters.indexOf( l_letter ) < 0 ) {
+          break;
+        }
+      }
+    }
+    return false;
+  }
+  
+  /*
+   * Parses a number of bytes with an optional K, M or G suffix (powers of 1024), returns -1 if it is invalid.
+   */
+  private static long parseSize( String aSize ) {
+    String l_size = aSize.trim().toUpperCase();
+    long l_unit = 1;
+    if ( l_size.endsWith( "K" ) ) {
+      l_unit = 1L << 10;
+    }
+    else if ( l_size.endsWith( "M" ) ) {
+      l_unit = 1L << 20;
+    }
+    else if ( l_size.endsWith( "G" ) ) {
+      l_unit = 1L << 30;
+    }
+    if ( l_unit > 1 ) {
+      l_size = l_size.substring( 0, l_size.length() - 1 );
+    }
+    try {
+      long l_count = Long.parseLong( l_size );
+      if ( ( l_count < 0 ) || ( l_count > Long.MAX_VALUE / l_unit ) ) {
+        return -1;
+      }
+      return l_count * l_unit;
+    }
+    catch ( NumberFormatException l_exception ) {
+      return -1;
+    }
+  }
+  
+  public int searchAndReplaceByLiteral( String aPattern, String aReplacement, List<File> aTargetFileList ) throws Exception {
+    return searchAndReplaceByLiteral( aPattern, aReplacement, l_dispatcher -> submitTargetFiles( aTargetFileList, l_dispatcher ) );
+  }
+  
+  public int searchAndReplaceByLiteral( String aPattern, String aReplacement, TTargetFileDispatcher.TTargetFileSource aTargetFileSource ) throws Exception {
+    return searchAndReplaceByLiteral( aPattern.getBytes(), aReplacement.getBytes(), aTargetFileSource );
+  }
+  
+  /*
+   * The literal is searched in the raw bytes of the target files, which are neither decoded nor re-encoded: the
+   * bytes outside of the matches are written back unchanged.
+   */
+  public int searchAndReplaceByLiteral( byte[] aPattern, byte[] aReplacement, TTargetFileDispatcher.TTargetFileSource aTargetFileSource ) throws Exception {
+    if ( aPattern.length == 0 ) {
+      fErrorMessage = "Cannot search for an empty literal";
+      throw new Exception();
+    }
+    TReplacementPlan l_replacementPlan = new TReplacementPlan( getRegexFlags() );
+    l_replacementPlan.addLiteral( aPattern, aReplacement );
+    return searchAndReplace( l_replacementPlan, aTargetFileSource );
+  }
+  
+  public int searchAndReplaceByRegex( String aPattern, String aReplacement, List<File> aTargetFileList ) throws Exception {
+    return searchAndReplaceByRegex( aPattern, aReplacement, l_dispatcher -> submitTargetFiles( aTargetFileList, l_dispatcher ) );
+  }
+  
+  public int searchAndReplaceByRegex( String aPattern, String aReplacement, TTargetFileDispatcher.TTargetFileSource aTargetFileSource ) throws Exception {
+    TReplacementPlan l_replacementPlan = new TReplacementPlan( getRegexFlags() );
+    try {
+      l_replacementPlan.addRegex( aPattern, aReplacement );
+    }
+    catch ( Exception l_exception ) {
+      fErrorMessage = String.format( "Cannot build a regex with Pattern[%s]", aPattern );
+      throw l_exception;
+    }
+    return searchAndReplace( l_replacementPlan, aTargetFileSource );
+  }
+  
+  /*
+   * Applies the replacement plan to every target file. The plan is compiled once and shared by all the worker
+   * threads, each target file is read and written at most once. With -l and -n the target files are only read.
+   */
+  public int searchAndReplace( TReplacementPlan aReplacementPlan, TTargetFileDispatcher.TTargetFileSource aTargetFileSource ) throws Exception {
+    warnExponentialRegexes( aReplacementPlan );
+    aReplacementPlan.setAutomatonEngine( fAutomatonEngine );
+    TReplacementPlan l_compiledPlan = aReplacementPlan;
+    if ( fPlanCache != null ) {
+      l_compiledPlan = fPlanCache.getCompiledPlan( aReplacementPlan );
+    }
+    else {
+      aReplacementPlan.compile();
+    }
+    if ( fVerboseOutput ) {
+      for ( String l_fallback : l_compiledPlan.getAutomatonFallbackList() ) {
+        fErr.println( l_fallback );
+      }
+    }
+    return applyReplacementPlan( l_compiledPlan, aTargetFileSource );
+  }
+  
+  /*
+   * Only a warning: the shapes are found by a heuristic, see TBacktrackingDetector. The regular expressions run
+   * by the automaton engine do not backtrack.
+   */
+  private void warnExponentialRegexes( TReplacementPlan aReplacementPlan ) {
+    for ( int l_regexIndex = 0; l_regexIndex < aReplacementPlan.getRegexCount(); ++l_regexIndex ) {
+      String l_regex = aReplacementPlan.getRegex( l_regexIndex );
+      String l_shape = TBacktrackingDetector.findExponentialShape( l_regex );
+      if ( ( l_shape == null ) || isRunByAutomaton( l_regex ) ) {
+        continue;
+      }
+      String l_advice = fAutomatonEngine ? "" : " or --engine automaton";
+      fErr.println( String.format( "Warning: Pattern[%s] may backtrack exponentially, %s%s", l_regex, l_shape, ( fRegexTimeoutMillis > 0 ) ? "" : ". Consider --regex-timeout" + l_advice + "." ) );
+    }
+  }
+  
+  /*
+   * -l and -s always use java.util.regex.
+   */
+  private boolean isRunByAutomaton( String aRegex ) {
+    if ( ! fAutomatonEngine || fListMatchingFiles || fStreaming ) {
+      return false;
+    }
+    try {
+      TAutomatonRegex.compile( aRegex, getRegexFlags() );
+      return true;
+    }
+    catch ( TAutomatonRegex.TUnsupportedRegexException l_exception ) {
+      return false;
+    }
+  }
+  
+  private int applyReplacementPlan( TReplacementPlan aReplacementPlan, TTargetFileDispatcher.TTargetFileSource aTargetFileSource ) throws Exception {
+    if ( fListMatchingFiles ) {
+      return processTargetFiles( aReplacementPlan, aTargetFileSource, ( l_targetFile, l_result ) -> aReplacementPlan.containsMatch( l_targetFile.toPath(), getRegexTimeoutNanos(), fStatistics ) );
+    }
+    if ( fDryRun ) {
+      if ( fIoThreadCount > 0 ) {
+        return processTargetFiles( aReplacementPlan, aTargetFileSource, new int[] { fIoThreadCount, fThreadCount }, pipelinedTask( aReplacementPlan, null, null ) );
+      }
+      return processTargetFiles( aReplacementPlan, aTargetFileSource, withinMemoryBudget( aReplacementPlan, ( l_targetFile, l_result ) -> {
+        TReplacementBuffers l_buffers = TReplacementBuffers.get();
+        try {
+          readContent( l_buffers, l_targetFile );
+          return countMatches( aReplacementPlan, l_buffers, l_result );
+        }
+        finally {
+          l_buffers.release();
+        }
+      }, null ) );
+    }
+    TStreamingReplacer l_streamingReplacer = createStreamingReplacer( aReplacementPlan );
+    if ( fStreaming ) {
+      if ( l_streamingReplacer == null ) {
+        fErrorMessage = aReplacementPlan.isSingleRegex() ? "Streaming a regular expression requires --max-match-length" : "Streaming (-s) is only possible with a single pattern/replacement pair";
+        throw new Exception();
+      }
+      return processTargetFiles( aReplacementPlan, aTargetFileSource, streamingTask( l_streamingReplacer ) );
+    }
+    TTargetFileWriter l_targetFileWriter = new TTargetFileWriter( fAtomicWrite );
+    TReplacementTask l_streamingTask = ( l_streamingReplacer != null ) ? streamingTask( l_streamingReplacer ) : null;
+    if ( fIoThreadCount > 0 ) {
+      return processTargetFiles( aReplacementPlan, aTargetFileSource, new int[] { fIoThreadCount, fThreadCount, fIoThreadCount }, pipelinedTask( aReplacementPlan, l_targetFileWriter, l_streamingTask ) );
+    }
+    // The buffers of the worker thread are reused from one target file to the next.
+    return processTargetFiles( aReplacementPlan, aTargetFileSource, withinMemoryBudget( aReplacementPlan, ( l_targetFile, l_result ) -> {
+      TReplacementBuffers l_buffers = TReplacementBuffers.get();
+      try {
+        readContent( l_buffers, l_targetFile );
+        if ( hasSameContentWithoutMatch( l_buffers, l_targetFile, l_result ) || ! aReplacementPlan.replace( l_buffers, getRegexTimeoutNanos(), fStatistics ) ) {
+          return false;
+        }
+        writeContent( l_targetFileWriter, l_buffers, l_targetFile );
+        return true;
+      }
+      finally {
+        l_buffers.release();
+      }
+    }, l_streamingTask ) );
+  }
+  
+  private void readContent( TReplacementBuffers aBuffers, File aTargetFile ) throws Exception {
+    long l_startNanoTime = fStatistics.startTimer();
+    aBuffers.read( aTargetFile.toPath() );
+    fStatistics.stopTimer( TStatistics.TPhase.READ, l_startNanoTime );
+    fStatistics.add( TStatistics.TCounter.READ_BYTES, aBuffers.getContentLength() );
+  }
+  
+  /*
+   * With --cache, tells whether the content read is the one in which the pairs found no match: only the
+   * modification time of the target file changed.
+   */
+  private boolean hasSameContentWithoutMatch( TReplacementBuffers aBuffers, File aTargetFile, TTargetFileResult aResult ) throws Exception {
+    if ( fScanCache == null ) {
+      return false;
+    }
+    aResult.fContentHash = TScanCache.hash( aBuffers.getContent(), aBuffers.getContentLength() );
+    return fScanCache.hasSameContentWithoutMatch( aTargetFile.getCanonicalPath(), aBuffers.getContentLength(), aResult.fContentHash, fPlanFingerprint );
+  }
+  
+  private boolean countMatches( TReplacementPlan aReplacementPlan, TReplacementBuffers aBuffers, TTargetFileResult aResult ) {
+    aResult.fMatchCount = aReplacementPlan.countMatches( aBuffers, getRegexTimeoutNanos(), fStatistics );
+    return aResult.fMatchCount > 0;
+  }
+  
+  private void writeContent( TTargetFileWriter aTargetFileWriter, TReplacementBuffers aBuffers, File aTargetFile ) throws Exception {
+    TReplacementBuffers.TByteOutput l_replacedOutput = aBuffers.getReplacedOutput();
+    long l_startNanoTime = fStatistics.startTimer();
+    long l_writtenLength = aTargetFileWriter.write( aTargetFile.toPath(), aBuffers.getContent(), aBuffers.getContentLength(), l_replacedOutput.getBuffer(), l_replacedOutput.getLength() );
+    fStatistics.stopTimer( TStatistics.TPhase.WRITE, l_startNanoTime );
+    fStatistics.add( TStatistics.TCounter.WRITTEN_BYTES, l_writtenLength );
+  }
+  
+  /*
+   * With --io-threads the in-memory task runs as a pipeline of three stages: the I/O threads read the target
+   * files ahead, the -j worker threads search and replace, the I/O threads write the replaced target files
+   * behind. The workers do not wait for the disk, and a slow read or write only holds an I/O thread. The
+   * buffers of a target file are taken from a pool when it is read and given back once it is written, or
+   * replaced without match. With --memory-budget the share of a target file is held from its read to its
+   * write. Without aTargetFileWriter (-n) the matches are only counted, in the second stage.
+   */
+  private TTargetFileDispatcher.TStagedTargetFileTask pipelinedTask( TReplacementPlan aReplacementPlan, TTargetFileWriter aTargetFileWriter, TReplacementTask aStreamingTask ) {
+    TMemoryBudget l_memoryBudget = ( fMemoryBudget > 0 ) ? new TMemoryBudget( fMemoryBudget ) : null;
+    long l_heapBytesPerContentByte = aReplacementPlan.getHeapBytesPerContentByte();
+    ConcurrentLinkedQueue<TReplacementBuffers> l_buffersPool = new ConcurrentLinkedQueue<>();
+    return l_targetFile -> {
+      TTargetFileResult l_result = startReplacement( l_targetFile );
+      if ( l_result == null ) {
+        return null;
+      }
+      long l_estimatedLength = l_result.fAttributes.size() * l_heapBytesPerContentByte;
+      if ( ( l_memoryBudget != null ) && ( l_estimatedLength > l_memoryBudget.getBudget() ) && ( aStreamingTask != null ) ) {
+        finishReplacement( l_targetFile, l_result, runReplacement( aStreamingTask, l_targetFile, l_result ) );
+        return null;
+      }
+      long l_acquiredLength = ( l_memoryBudget != null ) ? l_memoryBudget.acquire( l_estimatedLength ) : 0;
+      TReplacementBuffers l_pooledBuffers = l_buffersPool.poll();
+      TReplacementBuffers l_buffers = ( l_pooledBuffers != null ) ? l_pooledBuffers : TReplacementBuffers.create();
+      Runnable l_recycle = () -> {
+        l_buffers.release();
+        l_buffersPool.add( l_buffers );
+        if ( l_memoryBudget != null ) {
+          l_memoryBudget.release( l_acquiredLength );
+        }
+      };
+      TTargetFileDispatcher.TTargetFileStage l_replaceStage = null;
       try {
-        String l_fileContent = new String( Files.readAllBytes( l_targetFile.toPath() ) );
-        if ( l_fileContent.contains( aPattern ) ) {
-          System.out.println( String.format( "FoundMatch[%b] TargetFile[%s]", true, l_targetFile.getCanonicalPath() ) );
-          String l_replacedFileContent = l_fileContent.replace( aPattern, aReplacement );
-          Files.write( l_targetFile.toPath(), l_replacedFileContent.getBytes() );
+        readContent( l_buffers, l_targetFile );
+        if ( ( aTargetFileWriter != null ) && hasSameContentWithoutMatch( l_buffers, l_targetFile, l_result ) ) {
+          finishReplacement( l_targetFile, l_result, false );
         }
-        else if ( fVerboseOutput ) {
-          System.out.println( String.format( "FoundMatch[%b] TargetFile[%s]", false, l_targetFile.getCanonicalPath() ) );
+        else {
+          l_replaceStage = replaceStage( aReplacementPlan, aTargetFileWriter, l_targetFile, l_result, l_buffers, l_recycle );
         }
       }
-      catch ( Exception l_exception ) {
-        fErrorMessage = String.format( "Cannot apply replacement in TargetFile[%s]", l_targetFile.getCanonicalPath() );
-        throw l_exception;
+      finally {
+        if ( l_replaceStage == null ) {
+          l_recycle.run();
+        }
+      }
+      return l_replaceStage;
+    };
+  }
+  
+  private TTargetFileDispatcher.TTargetFileStage replaceStage( TReplacementPlan aReplacementPlan, TTargetFileWriter aTargetFileWriter, File aTargetFile, TTargetFileResult aResult, TReplacementBuffers aBuffers, Runnable aRecycle ) {
+    return () -> {
+      TTargetFileDispatcher.TTargetFileStage l_writeStage = null;
+      try {
+        if ( aTargetFileWriter == null ) {
+          finishReplacement( aTargetFile, aResult, runReplacement( ( l_targetFile, l_result ) -> countMatches( aReplacementPlan, aBuffers, l_result ), aTargetFile, aResult ) );
+        }
+        else if ( ! runReplacement( ( l_targetFile, l_result ) -> aReplacementPlan.replace( aBuffers, getRegexTimeoutNanos(), fStatistics ), aTargetFile, aResult ) ) {
+          finishReplacement( aTargetFile, aResult, false );
+        }
+        else {
+          l_writeStage = () -> {
+            try {
+              writeContent( aTargetFileWriter, aBuffers, aTargetFile );
+            }
+            finally {
+              aRecycle.run();
+            }
+            finishReplacement( aTargetFile, aResult, true );
+            return null;
+          };
+        }
+      }
+      finally {
+        if ( l_writeStage == null ) {
+          aRecycle.run();
+        }
+      }
+      return l_writeStage;
+    };
+  }
+  
+  /*
+   * Returns the streaming replacer of a plan made of a single pair, null if the plan cannot be streamed: several
+   * pairs, or a regular expression without --max-match-length.
+   */
+  private TStreamingReplacer createStreamingReplacer( TReplacementPlan aReplacementPlan ) {
+    if ( aReplacementPlan.isSingleLiteral() ) {
+      return new TStreamingReplacer( aReplacementPlan.getLiteralMatcher(), aReplacementPlan.getLiteralReplacement( 0 ) );
+    }
+    if ( aReplacementPlan.isSingleRegex() && ( fMaxMatchLength > 0 ) ) {
+      return new TStreamingReplacer( aReplacementPlan.getRegexPattern( 0 ), aReplacementPlan.getRegexReplacement( 0 ), fMaxMatchLength, getRegexTimeoutNanos() );
+    }
+    return null;
+  }
+  
+  private TReplacementTask streamingTask( TStreamingReplacer aStreamingReplacer ) {
+    return ( l_targetFile, l_result ) -> {
+      fStatistics.increment( TStatistics.TCounter.STREAMED_FILES );
+      long l_startNanoTime = fStatistics.startTimer();
+      boolean l_foundMatch = aStreamingReplacer.replace( l_targetFile, fStatistics );
+      fStatistics.stopTimer( TStatistics.TPhase.STREAM, l_startNanoTime );
+      return l_foundMatch;
+    };
+  }
+  
+  /*
+   * With --memory-budget the in-memory task first acquires the heap bytes its buffers will hold, estimated from the
+   * size of the target file. A target file whose estimate exceeds the budget goes to aStreamingTask, or when
+   * there is none (several pairs, a regular expression without --max-match-length, a dry run) is processed
+   * alone with the whole budget.
+   */
+  private TReplacementTask withinMemoryBudget( TReplacementPlan aReplacementPlan, TReplacementTask aInMemoryTask, TReplacementTask aStreamingTask ) {
+    if ( fMemoryBudget == 0 ) {
+      return aInMemoryTask;
+    }
+    TMemoryBudget l_memoryBudget = new TMemoryBudget( fMemoryBudget );
+    long l_heapBytesPerContentByte = aReplacementPlan.getHeapBytesPerContentByte();
+    return ( l_targetFile, l_result ) -> {
+      long l_estimatedLength = l_result.fAttributes.size() * l_heapBytesPerContentByte;
+      if ( ( l_estimatedLength > l_memoryBudget.getBudget() ) && ( aStreamingTask != null ) ) {
+        return aStreamingTask.replace( l_targetFile, l_result );
       }
+      long l_acquiredLength = l_memoryBudget.acquire( l_estimatedLength );
+      try {
+        return aInMemoryTask.replace( l_targetFile, l_result );
+      }
+      finally {
+        l_memoryBudget.release( l_acquiredLength );
+      }
+    };
+  }
+  
+  private int processTargetFiles( TReplacementPlan aReplacementPlan, TTargetFileDispatcher.TTargetFileSource aTargetFileSource, TReplacementTask aReplacementTask ) throws Exception {
+    return processTargetFiles( aReplacementPlan, aTargetFileSource, new int[] { fThreadCount }, l_targetFile -> {
+      applyReplacement( aReplacementTask, l_targetFile );
+      return null;
+    } );
+  }
+  
+  /*
+   * Runs the replacement task on every target file, in stages of aStageThreadCounts threads. With --cache the
+   * scan cache is loaded before and the changes of this run are saved after, a cache which cannot be saved is
+   * only reported. With --watch the task is then run on each batch of changed target files, the scan cache being
+   * saved after each batch. The statistics and the summary cover the whole run, the sweep and the batches so far:
+   * they are printed and written again after each batch.
+   */
+  private int processTargetFiles( TReplacementPlan aReplacementPlan, TTargetFileDispatcher.TTargetFileSource aTargetFileSource, int[] aStageThreadCounts, TTargetFileDispatcher.TStagedTargetFileTask aTask ) throws Exception {
+    if ( fScanCacheFile != null ) {
+      fScanCache = TScanCache.load( fScanCacheFile );
+      fPlanFingerprint = aReplacementPlan.getFingerprint();
+    }
+    if ( fWatch ) {
+      fWatcher = new TTargetFileWatcher( createWalker() );
+    }
+    fStatistics = new TStatistics( fStatisticsFormat != null );
+    fRunSummary = ( fSummaryFile != null ) ? new TRunSummary( fShard ) : null;
+    int l_failureCount = processTargetFiles( aTargetFileSource, aStageThreadCounts, aTask );
+    saveScanCache();
+    if ( fWatcher != null ) {
+      TTargetFileDispatcher.TTargetFileSource l_changedTargetFileSource = fWatcher.awaitChanges();
+      while ( l_changedTargetFileSource != null ) {
+        fStatistics.start();
+        l_failureCount += processTargetFiles( l_changedTargetFileSource, aStageThreadCounts, aTask );
+        saveScanCache();
+        fOut.flush();
+        l_changedTargetFileSource = fWatcher.awaitChanges();
+      }
+    }
+    fScanCache = null;
+    return l_failureCount;
+  }
+  
+  private void saveScanCache() {
+    if ( fScanCache == null ) {
+      return;
+    }
+    try {
+      fScanCache.save();
+    }
+    catch ( Exception l_exception ) {
+      fErr.println( String.format( "Cannot save CacheFile[%s]: %s", fScanCacheFile, l_exception ) );
+    }
+  }
+  
+  private void applyReplacement( TReplacementTask aReplacementTask, File aTargetFile ) throws Exception {
+    TTargetFileResult l_result = startReplacement( aTargetFile );
+    if ( l_result != null ) {
+      finishReplacement( aTargetFile, l_result, runReplacement( aReplacementTask, aTargetFile, l_result ) );
     }
   }
   
-  public void searchAndReplaceByRegex( String aPattern, String aReplacement, List<File> aTargetFileList ) throws Exception {
-    Pattern l_regexPattern = null;
+  /*
+   * Returns the result of the target file to process, or null if it is skipped.
+   */
+  private TTargetFileResult startReplacement( File aTargetFile ) throws Exception {
+    // The metadata is read before the content, a change made while the content is read is seen by the next run.
+    BasicFileAttributes l_attributes = Files.readAttributes( aTargetFile.toPath(), BasicFileAttributes.class );
+    if ( ( fWatcher != null ) && fWatcher.isOwnWrite( aTargetFile, l_attributes ) ) {
+      return null;
+    }
+    if ( isSkipped( aTargetFile, l_attributes ) ) {
+      return null;
+    }
+    fStatistics.increment( TStatistics.TCounter.SCANNED_FILES );
+    TTargetFileResult l_result = new TTargetFileResult();
+    l_result.fAttributes = l_attributes;
+    return l_result;
+  }
+  
+  private boolean runReplacement( TReplacementTask aReplacementTask, File aTargetFile, TTargetFileResult aResult ) throws Exception {
     try {
-      if ( ! fDisableFlags ) {
-        /*
-         * DOTALL mode:  In dotall mode, the expression . matches any character, including a line terminator.
-         * By default this expression does not match line terminators.
-         * Dotall mode can also be enabled via the embedded flag expression (?s). 
-         * (The s is a mnemonic for "single-line" mode, which is what this is called in Perl.) 
-         */
-        
-        /*
-         * MULTILINE mode: the expressions ^ and $ match just after or just before, respectively, a line terminator or the end of the input sequence.
-         * By default these expressions only match at the beginning and the end of the entire input sequence.
-         * Multiline mode can also be enabled via the embedded flag expression (?m).
-         */
-        l_regexPattern = Pattern.compile( aPattern, Pattern.DOTALL | Pattern.MULTILINE );
+      return aReplacementTask.replace( aTargetFile, aResult );
+    }
+    catch ( TDeadlineCharSequence.TRegexTimeoutException l_exception ) {
+      // Nothing has been written yet, the target file is reported as failed.
+      fStatistics.increment( TStatistics.TCounter.TIMED_OUT_FILES );
+      throw new TimeoutException( String.format( "Regex search exceeded RegexTimeout[%dms]", fRegexTimeoutMillis ) );
+    }
+  }
+  
+  private void finishReplacement( File aTargetFile, TTargetFileResult aResult, boolean aFoundMatch ) throws Exception {
+    if ( aFoundMatch ) {
+      fStatistics.increment( TStatistics.TCounter.MATCHED_FILES );
+      if ( fRunSummary != null ) {
+        fRunSummary.addMatchedFile( aTargetFile.getCanonicalPath() );
+      }
+    }
+    printFoundMatch( aFoundMatch, aTargetFile, aResult.fMatchCount );
+    if ( ( fWatcher != null ) && aFoundMatch && ! fDryRun && ! fListMatchingFiles ) {
+      fWatcher.recordWrite( aTargetFile );
+    }
+    if ( fScanCache != null ) {
+      if ( aFoundMatch ) {
+        fScanCache.forget( aTargetFile.getCanonicalPath() );
       }
       else {
-        l_regexPattern = Pattern.compile( aPattern );
+        fScanCache.recordNoMatch( aTargetFile.getCanonicalPath(), aResult.fAttributes.size(), aResult.fAttributes.lastModifiedTime().toMillis(), aResult.fContentHash, fPlanFingerprint );
       }
     }
+  }
+  
+  private long getRegexTimeoutNanos() {
+    return TimeUnit.MILLISECONDS.toNanos( fRegexTimeoutMillis );
+  }
+  
+  private int getRegexFlags() {
+    if ( fDisableFlags ) {
+      return 0;
+    }
+    /*
+     * DOTALL mode:  In dotall mode, the expression . matches any character, including a line terminator.
+     * By default this expression does not match line terminators.
+     * Dotall mode can also be enabled via the embedded flag expression (?s). 
+     * (The s is a mnemonic for "single-line" mode, which is what this is called in Perl.) 
+     */
+    
+    /*
+     * MULTILINE mode: the expressions ^ and $ match just after or just before, respectively, a line terminator or the end of the input sequence.
+     * By default these expressions only match at the beginning and the end of the entire input sequence.
+     * Multiline mode can also be enabled via the embedded flag expression (?m).
+     */
+    return Pattern.DOTALL | Pattern.MULTILINE;
+  }
+  
+  /*
+   * Reads the pattern/replacement pairs listed in the manifest file, see the help header for the format.
+   */
+  private TReplacementPlan readManifest( File aManifestFile ) throws Exception {
+    List<String> l_lineList = null;
+    try {
+      l_lineList = Files.readAllLines( aManifestFile.toPath() );
+    }
     catch ( Exception l_exception ) {
-      fErrorMessage = String.format( "Cannot build a regex with Pattern[%s]", aPattern );
-      throw l_exception;
+      throw new Exception( "Cannot read ManifestFile" );
     }
-    for ( File l_targetFile : aTargetFileList ) {
+    File l_manifestDirectory = aManifestFile.getAbsoluteFile().getParentFile();
+    TReplacementPlan l_replacementPlan = new TReplacementPlan( getRegexFlags() );
+    for ( int l_lineIndex = 0; l_lineIndex < l_lineList.size(); ++l_lineIndex ) {
+      String l_line = l_lineList.get( l_lineIndex );
+      if ( l_line.trim().isEmpty() || l_line.startsWith( "#" ) ) {
+        continue;
+      }
+      String[] l_fieldArray = l_line.split( "\t" );
+      if ( ( l_fieldArray.length != 3 ) || ! ( l_fieldArray[ 0 ].equals( "literal" ) || l_fieldArray[ 0 ].equals( "regex" ) ) ) {
+        fErrorMessage = String.format( "Invalid line[%d] in ManifestFile, expected: literal|regex<TAB>PATTERN_FILE<TAB>REPLACEMENT_FILE", l_lineIndex + 1 );
+        throw new Exception();
+      }
+      File l_patternFile = resolveManifestPath( l_manifestDirectory, l_fieldArray[ 1 ] );
+      File l_replacementFile = resolveManifestPath( l_manifestDirectory, l_fieldArray[ 2 ] );
+      byte[] l_patternAsBytes = null;
+      byte[] l_replacementAsBytes = null;
       try {
-        String l_fileContent = new String( Files.readAllBytes( l_targetFile.toPath() ) );
-        Matcher l_matcher = l_regexPattern.matcher( l_fileContent );
-        boolean l_foundMatch = l_matcher.find();
-        if ( l_foundMatch ) {
-          System.out.println( String.format( "FoundMatch[%b] TargetFile[%s]", l_foundMatch, l_targetFile.getCanonicalPath() ) );
-          String l_replacedFileContent = l_matcher.replaceAll( Matcher.quoteReplacement( aReplacement ) );
-          Files.write( l_targetFile.toPath(), l_replacedFileContent.toString().getBytes() );
+        l_patternAsBytes = Files.readAllBytes( l_patternFile.toPath() );
+        l_replacementAsBytes = Files.readAllBytes( l_replacementFile.toPath() );
+      }
+      catch ( Exception l_exception ) {
+        fErrorMessage = String.format( "Cannot read the files listed at line[%d] in ManifestFile", l_lineIndex + 1 );
+        throw l_exception;
+      }
+      if ( l_fieldArray[ 0 ].equals( "literal" ) ) {
+        if ( l_patternAsBytes.length == 0 ) {
+          fErrorMessage = String.format( "Cannot search for an empty literal at line[%d] in ManifestFile", l_lineIndex + 1 );
+          throw new Exception();
+        }
+        l_replacementPlan.addLiteral( l_patternAsBytes, l_replacementAsBytes );
+      }
+      else {
+        String l_regex = new String( l_patternAsBytes );
+        try {
+          l_replacementPlan.addRegex( l_regex, new String( l_replacementAsBytes ) );
         }
-        else if ( fVerboseOutput ) {
-          System.out.println( String.format( "FoundMatch[%b] TargetFile[%s]", l_foundMatch, l_targetFile.getCanonicalPath() ) );
+        catch ( Exception l_exception ) {
+          fErrorMessage = String.format( "Cannot build a regex with Pattern[%s] at line[%d] in ManifestFile", l_regex, l_lineIndex + 1 );
+          throw l_exception;
         }
       }
+    }
+    if ( l_replacementPlan.getRuleCount() == 0 ) {
+      throw new Exception( "ManifestFile does not list any pattern" );
+    }
+    return l_replacementPlan;
+  }
+  
+  private static File resolveManifestPath( File aManifestDirectory, String aPath ) {
+    File l_file = new File( aPath );
+    return l_file.isAbsolute() ? l_file : new File( aManifestDirectory, aPath );
+  }
+  
+  /*
+   * With -l only the paths of the matching target files are printed, so that they can be piped to another
+   * command. aMatchCount is negative when the matches were not counted.
+   */
+  private void printFoundMatch( boolean aFoundMatch, File aTargetFile, int aMatchCount ) throws Exception {
+    if ( fListMatchingFiles ) {
+      if ( aFoundMatch ) {
+        fOut.println( aTargetFile.getCanonicalPath() );
+      }
+      return;
+    }
+    if ( aMatchCount >= 0 ) {
+      if ( aFoundMatch || fVerboseOutput ) {
+        fOut.println( String.format( "FoundMatch[%b] TargetFile[%s] MatchCount[%d]", aFoundMatch, aTargetFile.getCanonicalPath(), aMatchCount ) );
+      }
+      return;
+    }
+    if ( aFoundMatch || fVerboseOutput ) {
+      fOut.println( String.format( "FoundMatch[%b] TargetFile[%s]", aFoundMatch, aTargetFile.getCanonicalPath() ) );
+    }
+  }
+  
+  /*
+   * Runs the task on every target file with the threads of each stage and returns the number of target files
+   * which could not be processed. Each FoundMatch line is printed with a single println() so that lines coming
+   * from different workers are never interleaved. The statistics of the run are printed at the end with --stats,
+   * they add up to those of the previous batches with --watch.
+   */
+  private int processTargetFiles( TTargetFileDispatcher.TTargetFileSource aTargetFileSource, int[] aStageThreadCounts, TTargetFileDispatcher.TStagedTargetFileTask aTask ) throws Exception {
+    TTargetFileDispatcher l_dispatcher = new TTargetFileDispatcher( aStageThreadCounts, aTask );
+    try {
+      aTargetFileSource.submitTo( l_dispatcher );
+    }
+    catch ( Exception l_exception ) {
+      l_dispatcher.awaitCompletion();
+      throw l_exception;
+    }
+    List<TTargetFileDispatcher.TTargetFileFailure> l_failureList = l_dispatcher.awaitCompletion();
+    for ( TTargetFileDispatcher.TTargetFileFailure l_failure : l_failureList ) {
+      fErr.println( String.format( "Cannot apply replacement in TargetFile[%s]: %s", l_failure.getTargetFilePath(), l_failure.getException() ) );
+      if ( fVerboseOutput ) {
+        l_failure.getException().printStackTrace( fErr );
+      }
+    }
+    fStatistics.add( TStatistics.TCounter.FAILED_FILES, l_failureList.size() );
+    fStatistics.stop();
+    long l_skippedFileCount = fStatistics.getSkippedFileCount();
+    if ( l_skippedFileCount > 0 ) {
+      fErr.println( String.format( "Skipped[%d] TargetFile(s): Binary[%d] Oversized[%d] Unchanged[%d]", l_skippedFileCount, fStatistics.get( TStatistics.TCounter.SKIPPED_BINARY_FILES ), fStatistics.get( TStatistics.TCounter.SKIPPED_OVERSIZED_FILES ), fStatistics.get( TStatistics.TCounter.SKIPPED_UNCHANGED_FILES ) ) );
+    }
+    if ( fStatisticsFormat != null ) {
+      fErr.println( fStatisticsFormat.equals( "json" ) ? fStatistics.toJson() : fStatistics.toText() );
+    }
+    if ( fRunSummary != null ) {
+      try {
+        fRunSummary.write( fSummaryFile, fStatistics, l_failureList );
+      }
       catch ( Exception l_exception ) {
-        fErrorMessage = String.format( "Cannot apply replacement in TargetFile[%s]", l_targetFile.getCanonicalPath() );
+        fErrorMessage = String.format( "Cannot write SummaryFile[%s]: %s", fSummaryFile, l_exception );
         throw l_exception;
       }
     }
+    return l_failureList.size();
+  }
+  
+  /*
+   * Tells whether the target file must be skipped, from its metadata and the scan cache and then from its first
+   * bytes only, before the target file is read.
+   */
+  private boolean isSkipped( File aTargetFile, BasicFileAttributes aAttributes ) throws Exception {
+    String l_reason = null;
+    if ( aAttributes.size() > fMaxFileSize ) {
+      fStatistics.increment( TStatistics.TCounter.SKIPPED_OVERSIZED_FILES );
+      l_reason = "oversized";
+    }
+    else if ( ( fScanCache != null ) && fScanCache.isUnchangedWithoutMatch( aTargetFile.getCanonicalPath(), aAttributes.size(), aAttributes.lastModifiedTime().toMillis(), fPlanFingerprint ) ) {
+      fStatistics.increment( TStatistics.TCounter.SKIPPED_UNCHANGED_FILES );
+      l_reason = "unchanged";
+    }
+    else if ( ! fProcessBinaryFiles && isBinary( aTargetFile ) ) {
+      fStatistics.increment( TStatistics.TCounter.SKIPPED_BINARY_FILES );
+      l_reason = "binary";
+    }
+    if ( ( l_reason != null ) && fVerboseOutput ) {
+      fOut.println( String.format( "Skipped[%s] TargetFile[%s]", l_reason, aTargetFile.getCanonicalPath() ) );
+    }
+    return l_reason != null;
+  }
+  
+  private boolean isBinary( File aTargetFile ) throws Exception {
+    long l_startNanoTime = fStatistics.startTimer();
+    boolean l_isBinary = TBinaryFileDetector.isBinary( aTargetFile.toPath() );
+    fStatistics.stopTimer( TStatistics.TPhase.SNIFF, l_startNanoTime );
+    return l_isBinary;
+  }
+  
+  /*
+   * Submits the target files, the directories (only present with -R) are walked and their files are submitted
+   * while the walk is going on.
+   */
+  private void submitTargetFiles( List<File> aTargetFileList, TTargetFileDispatcher aDispatcher ) throws Exception {
+    TTargetFileWalker l_walker = ( fWatcher != null ) ? fWatcher.getWalker() : createWalker();
+    for ( File l_targetFile : aTargetFileList ) {
+      submitTargetFile( l_targetFile, l_walker, aDispatcher );
+    }
+    if ( ! fReadTargetFileList ) {
+      return;
+    }
+    TTargetFileListReader l_reader = new TTargetFileListReader( fIn, fTargetFileListNulDelimited );
+    String l_targetFilePath = l_reader.next();
+    while ( l_targetFilePath != null ) {
+      File l_targetFile = checkTargetFile( l_targetFilePath );
+      if ( l_targetFile != null ) {
+        submitTargetFile( l_targetFile, l_walker, aDispatcher );
+      }
+      l_targetFilePath = l_reader.next();
+    }
+  }
+  
+  private TTargetFileWalker createWalker() {
+    return new TTargetFileWalker( fIncludeGlobList, fExcludeGlobList, fWalkHiddenDirectories, fUseIgnoreFiles, fShard );
+  }
+  
+  private void submitTargetFile( File aTargetFile, TTargetFileWalker aWalker, TTargetFileDispatcher aDispatcher ) throws Exception {
+    if ( aTargetFile.isDirectory() ) {
+      aWalker.walk( aTargetFile, aDispatcher );
+    }
+    else if ( ( fShard == null ) || fShard.contains( getShardKey( aTargetFile ) ) ) {
+      if ( fWatcher != null ) {
+        fWatcher.registerTargetFile( aTargetFile );
+      }
+      aDispatcher.submit( aTargetFile );
+    }
+  }
+  
+  /*
+   * The path of the target file as given, a daemon client being in its own working directory.
+   */
+  private String getShardKey( File aTargetFile ) {
+    String l_path = aTargetFile.getPath();
+    if ( fWorkingDirectory != null ) {
+      String l_workingDirectoryPrefix = fWorkingDirectory.getPath() + File.separator;
+      if ( l_path.startsWith( l_workingDirectoryPrefix ) ) {
+        return l_path.substring( l_workingDirectoryPrefix.length() );
+      }
+    }
+    return l_path;
   }
   
   @Override
   public Integer call() throws Exception {
-    String l_patternAsString = null;
+    if ( fSummaryFileList != null ) {
+      return TRunSummary.merge( fSummaryFileList, fOut, fErr ) ? 0 : 2;
+    }
+    TTargetFileDispatcher.TTargetFileSource l_targetFileSource = l_dispatcher -> submitTargetFiles( fTargetFileList, l_dispatcher );
+    if ( fManifestFile != null ) {
+      int l_failedTargetFileCount = searchAndReplace( readManifest( fManifestFile ), l_targetFileSource );
+      return ( l_failedTargetFileCount == 0 ) ? 0 : 2;
+    }
+    
+    byte[] l_patternAsBytes = null;
     try {
-      l_patternAsString = new String( Files.readAllBytes( fPatternFile.toPath() ) );
+      l_patternAsBytes = Files.readAllBytes( fPatternFile.toPath() );
     }
     catch ( Exception l_exception ) {
       throw new Exception( "Cannot read PatternFile" );
     }
     
-    String l_replacementAsString = null;
+    byte[] l_replacementAsBytes = null;
     try {
-      l_replacementAsString = new String( Files.readAllBytes( fReplacementFile.toPath() ) );
+      l_replacementAsBytes = Files.readAllBytes( fReplacementFile.toPath() );
     }
     catch ( Exception l_exception ) {
       throw new Exception( "Cannot read ReplacementFile" );
     }
     
+    int l_failedTargetFileCount = 0;
     if ( ! fPatternIsRegularExpression ) {
-      searchAndReplaceByLiteral( l_patternAsString, l_replacementAsString, fTargetFileList );
+      l_failedTargetFileCount = searchAndReplaceByLiteral( l_patternAsBytes, l_replacementAsBytes, l_targetFileSource );
     }
     else {
-      searchAndReplaceByRegex( l_patternAsString, l_replacementAsString, fTargetFileList );
+      l_failedTargetFileCount = searchAndReplaceByRegex( new String( l_patternAsBytes ), new String( l_replacementAsBytes ), l_targetFileSource );
     }
-    return 0;
+    return ( l_failedTargetFileCount == 0 ) ? 0 : 2;
   }
   
   public static void main( String[] args ) {
+    List<String> l_argList = Arrays.asList( args );
+    if ( l_argList.contains( "--daemon" ) && ( args.length == 1 ) ) {
+      try {
+        new TDaemonServer().serve();
+      }
+      catch ( Exception l_exception ) {
+        System.err.println( String.format( "Cannot run the daemon: %s", l_exception ) );
+      }
+      System.exit( 1 );
+    }
+    if ( ! l_argList.contains( "--no-daemon" ) && ! l_argList.contains( "--daemon" ) && ! l_argList.contains( "--watch" ) && ! readsTargetFileList( args ) ) {
+      Integer l_exitCode = TDaemonClient.forward( args );
+      if ( l_exitCode != null ) {
+        System.exit( l_exitCode );
+      }
+    }
+    System.exit( run( args, new TBarb() ) );
+  }
+  
+  /*
+   * Runs barb with the command line arguments and returns the exit status. The daemon calls it for each client,
+   * the output going to the streams of aBarb.
+   */
+  public static int run( String[] args, TBarb aBarb ) {
     int l_exitCode = 0;
-    TBarb l_barb = new TBarb();
+    TBarb l_barb = aBarb;
     try {
       l_barb.readCommandLine( args );
       if ( l_barb.isShowHelp() ) {
@@ -230,16 +1279,18 @@ public class TBarb implements Callable<Integer> {
       }
       // String.isBlank() has been introduced in Java11, can't use it below as we compile in java 8.
       if ( ( l_barb.getErrorMessage() != null ) && ( ! l_barb.getErrorMessage().chars().allMatch( Character::isWhitespace ) ) ) {
-        System.err.println( l_barb.getErrorMessage() );
+        l_barb.fErr.println( l_barb.getErrorMessage() );
       }
       else {
-        System.err.println( l_exception.getMessage() );
+        l_barb.fErr.println( l_exception.getMessage() );
       }
       if ( l_barb.isVerboseDebug() ) {
-        l_exception.printStackTrace();
+        l_exception.printStackTrace( l_barb.fErr );
       }
     }
-    System.exit( l_exitCode );
+    l_barb.fOut.flush();
+    l_barb.fErr.flush();
+    return l_exitCode;
   }
   
 }
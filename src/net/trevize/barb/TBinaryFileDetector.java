@@ -0,0 +1,89 @@
+package net.trevize.barb;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/*
+ * Tells whether a file looks binary from its first bytes only: a file is binary if its head contains a NUL byte
+ * or if more than 30% of its head is made of bytes which are not part of a valid UTF-8 sequence. Text files in a
+ * single-byte charset such as ISO-8859-1 stay well below this ratio.
+ */
+public class TBinaryFileDetector {
+  
+  public static final int SNIFF_LENGTH = 8192;
+  
+  private static final double MAX_INVALID_UTF8_RATIO = 0.3;
+  
+  public static boolean isBinary( Path aPath ) throws IOException {
+    byte[] l_head = new byte[ SNIFF_LENGTH ];
+    int l_length = 0;
+    try ( InputStream l_inputStream = Files.newInputStream( aPath ) ) {
+      while ( l_length < l_head.length ) {
+        int l_readLength = l_inputStream.read( l_head, l_length, l_head.length - l_length );
+        if ( l_readLength < 0 ) {
+          break;
+        }
+        l_length += l_readLength;
+      }
+    }
+    return isBinary( l_head, l_length );
+  }
+  
+  public static boolean isBinary( byte[] aHead, int aLength ) {
+    int l_invalidByteCount = 0;
+    int l_index = 0;
+    while ( l_index < aLength ) {
+      int l_byte = aHead[ l_index ] & 0xff;
+      if ( l_byte == 0 ) {
+        return true;
+      }
+      int l_sequenceLength = getUtf8SequenceLength( l_byte );
+      if ( l_sequenceLength == 0 ) {
+        ++l_invalidByteCount;
+        ++l_index;
+        continue;
+      }
+      if ( l_index + l_sequenceLength > aLength ) {
+        // A sequence cut by the end of the head is not counted.
+        break;
+      }
+      boolean l_isValidSequence = true;
+      for ( int l_continuationIndex = 1; l_continuationIndex < l_sequenceLength; ++l_continuationIndex ) {
+        if ( ( aHead[ l_index + l_continuationIndex ] & 0xc0 ) != 0x80 ) {
+          l_isValidSequence = false;
+          break;
+        }
+      }
+      if ( l_isValidSequence ) {
+        l_index += l_sequenceLength;
+      }
+      else {
+        ++l_invalidByteCount;
+        ++l_index;
+      }
+    }
+    return l_invalidByteCount > ( aLength * MAX_INVALID_UTF8_RATIO );
+  }
+  
+  /*
+   * Returns the length of the UTF-8 sequence starting with aLeadByte, or 0 if it cannot start a sequence.
+   */
+  private static int getUtf8SequenceLength( int aLeadByte ) {
+    if ( aLeadByte < 0x80 ) {
+      return 1;
+    }
+    if ( ( aLeadByte >= 0xc2 ) && ( aLeadByte <= 0xdf ) ) {
+      return 2;
+    }
+    if ( ( aLeadByte & 0xf0 ) == 0xe0 ) {
+      return 3;
+    }
+    if ( ( aLeadByte >= 0xf0 ) && ( aLeadByte <= 0xf4 ) ) {
+      return 4;
+    }
+    return 0;
+  }
+  
+}
@@ -0,0 +1,81 @@
+package net.trevize.barb;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+/*
+ * Boyer-Moore-Horspool search of an encoded literal in raw bytes, the content of the target files is never
+ * decoded. An instance is immutable and can be shared by the worker threads.
+ *
+ * The literal is encoded once with the platform charset, the one used to read the pattern and target files.
+ * For UTF-8 and the single-byte charsets an encoded literal can only match on character boundaries.
+ */
+public class TByteLiteralMatcher {
+  
+  private byte[] fLiteral    = null;
+  private int[]  fShiftTable = null;
+  
+  public TByteLiteralMatcher( byte[] aLiteral ) {
+    if ( aLiteral.length == 0 ) {
+      throw new IllegalArgumentException( "Cannot search for an empty literal" );
+    }
+    fLiteral = aLiteral.clone();
+    fShiftTable = new int[ 256 ];
+    Arrays.fill( fShiftTable, fLiteral.length );
+    for ( int l_byteIndex = 0; l_byteIndex < fLiteral.length - 1; ++l_byteIndex ) {
+      fShiftTable[ fLiteral[ l_byteIndex ] & 0xff ] = fLiteral.length - 1 - l_byteIndex;
+    }
+  }
+  
+  public int getLength() {
+    return fLiteral.length;
+  }
+  
+  /*
+   * Returns the index of the first occurrence of the literal lying entirely in [aFrom, aTo), or -1.
+   */
+  public int indexOf( byte[] aContent, int aFrom, int aTo ) {
+    int l_lastIndex = fLiteral.length - 1;
+    byte l_lastByte = fLiteral[ l_lastIndex ];
+    int l_index = aFrom;
+    while ( l_index <= aTo - fLiteral.length ) {
+      byte l_byte = aContent[ l_index + l_lastIndex ];
+      if ( ( l_byte == l_lastByte ) && regionMatches( aContent, l_index ) ) {
+        return l_index;
+      }
+      l_index += fShiftTable[ l_byte & 0xff ];
+    }
+    return -1;
+  }
+  
+  private boolean regionMatches( byte[] aContent, int aIndex ) {
+    for ( int l_byteIndex = 0; l_byteIndex < fLiteral.length - 1; ++l_byteIndex ) {
+      if ( aContent[ aIndex + l_byteIndex ] != fLiteral[ l_byteIndex ] ) {
+        return false;
+      }
+    }
+    return true;
+  }
+  
+  /*
+   * Writes aContent[aFrom, aTo) with every occurrence of the literal replaced, aFirstMatchIndex being the index
+   * of the first occurrence. The unchanged spans are written straight from aContent. Returns the number of
+   * replaced occurrences.
+   */
+  public int writeReplaced( byte[] aContent, int aFrom, int aTo, int aFirstMatchIndex, byte[] aReplacement, OutputStream aOutputStream ) throws IOException {
+    int l_position = aFrom;
+    int l_matchIndex = aFirstMatchIndex;
+    int l_matchCount = 0;
+    while ( l_matchIndex >= 0 ) {
+      ++l_matchCount;
+      aOutputStream.write( aContent, l_position, l_matchIndex - l_position );
+      aOutputStream.write( aReplacement );
+      l_position = l_matchIndex + fLiteral.length;
+      l_matchIndex = indexOf( aContent, l_position, aTo );
+    }
+    aOutputStream.write( aContent, l_position, aTo - l_position );
+    return l_matchCount;
+  }
+  
+}
@@ -0,0 +1,111 @@
+package net.trevize.barb;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+/*
+ * Forwards an invocation to the daemon and replays its output. Only the classes of the protocol are loaded, the
+ * command line is parsed by the daemon.
+ */
+public class TDaemonClient {
+  
+  private static final int CONNECT_TIMEOUT = 1000;
+  
+  /*
+   * Returns the exit status of the run made by the daemon, or null if no daemon accepted the request, in which
+   * case nothing has been run and the caller runs barb in process.
+   */
+  public static Integer forward( String[] args ) {
+    File l_daemonFile = TDaemonServer.getDaemonFile();
+    if ( ! l_daemonFile.isFile() ) {
+      return null;
+    }
+    int l_port = 0;
+    String l_token = null;
+    try {
+      String[] l_fieldArray = new String( Files.readAllBytes( l_daemonFile.toPath() ), StandardCharsets.US_ASCII ).trim().split( " " );
+      l_port = Integer.parseInt( l_fieldArray[ 0 ] );
+      l_token = l_fieldArray[ 1 ];
+    }
+    catch ( IOException | RuntimeException l_exception ) {
+      return null;
+    }
+    
+    Socket l_socket = new Socket();
+    try {
+      l_socket.connect( new InetSocketAddress( InetAddress.getLoopbackAddress(), l_port ), CONNECT_TIMEOUT );
+      DataOutputStream l_outputStream = new DataOutputStream( new BufferedOutputStream( l_socket.getOutputStream() ) );
+      l_outputStream.writeInt( TDaemonServer.PROTOCOL_VERSION );
+      l_outputStream.writeUTF( l_token );
+      l_outputStream.writeUTF( new File( "" ).getAbsolutePath() );
+      l_outputStream.writeInt( args.length );
+      for ( String l_arg : args ) {
+        l_outputStream.writeUTF( l_arg );
+      }
+      l_outputStream.flush();
+      DataInputStream l_inputStream = new DataInputStream( new BufferedInputStream( l_socket.getInputStream() ) );
+      if ( l_inputStream.readByte() != TDaemonServer.ACCEPTED_FRAME ) {
+        return null;
+      }
+      return replayOutput( l_inputStream );
+    }
+    catch ( EOFException l_exception ) {
+      // A stale daemon file, another process refused the token.
+      return null;
+    }
+    catch ( IOException l_exception ) {
+      return null;
+    }
+    finally {
+      try {
+        l_socket.close();
+      }
+      catch ( IOException l_exception ) {
+        // Nothing more to read.
+      }
+    }
+  }
+  
+  /*
+   * Once the request has been accepted it is running: a lost connection is an error, the run is not restarted
+   * in process as the target files may already have been replaced.
+   */
+  private static int replayOutput( DataInputStream aInputStream ) {
+    byte[] l_buffer = new byte[ 8192 ];
+    try {
+      while ( true ) {
+        byte l_frameType = aInputStream.readByte();
+        if ( l_frameType == TDaemonServer.EXIT_FRAME ) {
+          return aInputStream.readInt();
+        }
+        PrintStream l_printStream = ( l_frameType == TDaemonServer.STDERR_FRAME ) ? System.err : System.out;
+        int l_length = aInputStream.readInt();
+        while ( l_length > 0 ) {
+          int l_readLength = aInputStream.read( l_buffer, 0, Math.min( l_buffer.length, l_length ) );
+          if ( l_readLength < 0 ) {
+            throw new EOFException();
+          }
+          l_printStream.write( l_buffer, 0, l_readLength );
+          l_length -= l_readLength;
+        }
+        l_printStream.flush();
+      }
+    }
+    catch ( IOException l_exception ) {
+      System.err.println( String.format( "Lost the connection to the daemon: %s", l_exception ) );
+      return 1;
+    }
+  }
+  
+}
@@ -0,0 +1,206 @@
+package net.trevize.barb;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/*
+ * Serves the barb invocations from a warm JVM: the classes are loaded, the code is compiled by the JIT and the
+ * compiled replacement plans are cached across invocations.
+ *
+ * Unix-domain sockets are only available from Java 16 on while barb targets Java 8, the daemon listens on an
+ * ephemeral port of the loopback interface instead. The port and a random access token are written in the
+ * daemon file, readable by its owner only: a client must send the token before anything else.
+ *
+ * A request is the protocol version, the token, the working directory of the client and its arguments. The
+ * daemon answers with an ACCEPTED frame, then STDOUT and STDERR frames carrying the output of the run as it goes,
+ * and finally an EXIT frame carrying the exit status.
+ */
+public class TDaemonServer {
+  
+  public static final int    PROTOCOL_VERSION         = 1;
+  
+  public static final byte   EXIT_FRAME               = 0;
+  public static final byte   STDOUT_FRAME             = 1;
+  public static final byte   STDERR_FRAME             = 2;
+  public static final byte   ACCEPTED_FRAME           = 3;
+  
+  public static final String DAEMON_FILE_VARIABLE     = "BARB_DAEMON_FILE";
+  public static final String DAEMON_FILE_DESCRIPTION  = "~/.barb/daemon (or $" + DAEMON_FILE_VARIABLE + ")";
+  
+  private static final int   TOKEN_LENGTH             = 32;
+  
+  private ServerSocket    fServerSocket    = null;
+  private String          fToken           = null;
+  private File            fDaemonFile      = null;
+  private TPlanCache      fPlanCache       = new TPlanCache();
+  private ExecutorService fRequestExecutor = null;
+  
+  public static File getDaemonFile() {
+    String l_daemonFilePath = System.getenv( DAEMON_FILE_VARIABLE );
+    if ( ( l_daemonFilePath != null ) && ! l_daemonFilePath.isEmpty() ) {
+      return new File( l_daemonFilePath );
+    }
+    return new File( new File( System.getProperty( "user.home" ), ".barb" ), "daemon" );
+  }
+  
+  /*
+   * Serves the clients until the JVM is stopped, the daemon file is removed on shutdown.
+   */
+  public void serve() throws IOException {
+    fServerSocket = new ServerSocket( 0, 50, InetAddress.getLoopbackAddress() );
+    byte[] l_tokenBytes = new byte[ TOKEN_LENGTH ];
+    new SecureRandom().nextBytes( l_tokenBytes );
+    StringBuilder l_token = new StringBuilder();
+    for ( byte l_byte : l_tokenBytes ) {
+      l_token.append( String.format( "%02x", l_byte ) );
+    }
+    fToken = l_token.toString();
+    fDaemonFile = getDaemonFile();
+    writeDaemonFile();
+    Runtime.getRuntime().addShutdownHook( new Thread( this::deleteDaemonFile ) );
+    fRequestExecutor = Executors.newCachedThreadPool( l_runnable -> {
+      Thread l_thread = new Thread( l_runnable, "barb-daemon-request" );
+      l_thread.setDaemon( true );
+      return l_thread;
+    } );
+    System.err.println( String.format( "Listening on Port[%d], DaemonFile[%s]", fServerSocket.getLocalPort(), fDaemonFile ) );
+    while ( true ) {
+      Socket l_socket = fServerSocket.accept();
+      fRequestExecutor.execute( () -> handle( l_socket ) );
+    }
+  }
+  
+  /*
+   * The daemon file is written to a temporary file only readable by its owner, then moved in place.
+   */
+  private void writeDaemonFile() throws IOException {
+    Path l_directoryPath = fDaemonFile.getAbsoluteFile().getParentFile().toPath();
+    Files.createDirectories( l_directoryPath );
+    Path l_temporaryPath = Files.createTempFile( l_directoryPath, "." + fDaemonFile.getName(), ".barb" );
+    try {
+      try {
+        Files.setPosixFilePermissions( l_temporaryPath, PosixFilePermissions.fromString( "rw-------" ) );
+      }
+      catch ( UnsupportedOperationException l_exception ) {
+        // Not a POSIX file system, the file keeps the default permissions of a temporary file.
+      }
+      Files.write( l_temporaryPath, String.format( "%d %s\n", fServerSocket.getLocalPort(), fToken ).getBytes( StandardCharsets.US_ASCII ) );
+      try {
+        Files.move( l_temporaryPath, fDaemonFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE );
+      }
+      catch ( AtomicMoveNotSupportedException l_exception ) {
+        Files.move( l_temporaryPath, fDaemonFile.toPath(), StandardCopyOption.REPLACE_EXISTING );
+      }
+    }
+    finally {
+      Files.deleteIfExists( l_temporaryPath );
+    }
+  }
+  
+  /*
+   * Only deletes the daemon file if it has not been replaced by another daemon since.
+   */
+  private void deleteDaemonFile() {
+    try {
+      String l_content = new String( Files.readAllBytes( fDaemonFile.toPath() ), StandardCharsets.US_ASCII );
+      if ( l_content.trim().endsWith( fToken ) ) {
+        Files.delete( fDaemonFile.toPath() );
+      }
+    }
+    catch ( IOException l_exception ) {
+      // Already deleted.
+    }
+  }
+  
+  private void handle( Socket aSocket ) {
+    try ( Socket l_socket = aSocket ) {
+      DataInputStream l_inputStream = new DataInputStream( new BufferedInputStream( l_socket.getInputStream() ) );
+      DataOutputStream l_outputStream = new DataOutputStream( new BufferedOutputStream( l_socket.getOutputStream() ) );
+      if ( l_inputStream.readInt() != PROTOCOL_VERSION ) {
+        return;
+      }
+      byte[] l_token = l_inputStream.readUTF().getBytes( StandardCharsets.US_ASCII );
+      if ( ! MessageDigest.isEqual( l_token, fToken.getBytes( StandardCharsets.US_ASCII ) ) ) {
+        return;
+      }
+      File l_workingDirectory = new File( l_inputStream.readUTF() );
+      String[] l_argArray = new String[ l_inputStream.readInt() ];
+      for ( int l_argIndex = 0; l_argIndex < l_argArray.length; ++l_argIndex ) {
+        l_argArray[ l_argIndex ] = l_inputStream.readUTF();
+      }
+      l_outputStream.writeByte( ACCEPTED_FRAME );
+      l_outputStream.flush();
+      
+      PrintStream l_out = new PrintStream( new BufferedOutputStream( new TFrameOutputStream( l_outputStream, STDOUT_FRAME ) ), true );
+      PrintStream l_err = new PrintStream( new BufferedOutputStream( new TFrameOutputStream( l_outputStream, STDERR_FRAME ) ), true );
+      int l_exitCode = TBarb.run( l_argArray, new TBarb( l_out, l_err, l_workingDirectory, fPlanCache ) );
+      l_out.flush();
+      l_err.flush();
+      synchronized ( l_outputStream ) {
+        l_outputStream.writeByte( EXIT_FRAME );
+        l_outputStream.writeInt( l_exitCode );
+        l_outputStream.flush();
+      }
+    }
+    catch ( IOException l_exception ) {
+      // The client went away, there is nobody left to report to.
+    }
+  }
+  
+  /*
+   * Sends every write as a frame of the given type, the frames of the two output streams of a request are
+   * serialized on the socket stream.
+   */
+  private static class TFrameOutputStream extends OutputStream {
+    
+    private DataOutputStream fOutputStream = null;
+    private byte             fFrameType    = 0;
+    
+    public TFrameOutputStream( DataOutputStream aOutputStream, byte aFrameType ) {
+      fOutputStream = aOutputStream;
+      fFrameType = aFrameType;
+    }
+    
+    @Override
+    public void write( int aByte ) throws IOException {
+      write( new byte[] { (byte) aByte }, 0, 1 );
+    }
+    
+    @Override
+    public void write( byte[] aBytes, int aOffset, int aLength ) throws IOException {
+      synchronized ( fOutputStream ) {
+        fOutputStream.writeByte( fFrameType );
+        fOutputStream.writeInt( aLength );
+        fOutputStream.write( aBytes, aOffset, aLength );
+      }
+    }
+    
+    @Override
+    public void flush() throws IOException {
+      synchronized ( fOutputStream ) {
+        fOutputStream.flush();
+      }
+    }
+    
+  }
+  
+}
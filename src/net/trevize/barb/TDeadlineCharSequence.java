@@ -0,0 +1,66 @@
+package net.trevize.barb;
+
+/*
+ * A char sequence which gives up once its deadline has passed: a regular expression running over it throws a
+ * TRegexTimeoutException from Matcher.find() instead of backtracking forever. The clock is only read every
+ * CHECK_INTERVAL chars, the matchers read chars one at a time.
+ *
+ * An instance is used by a single matcher at a time, the sub-sequences (the groups of a match) are not checked.
+ */
+public class TDeadlineCharSequence implements CharSequence {
+  
+  public static class TRegexTimeoutException extends RuntimeException {
+    
+    private static final long serialVersionUID = 1L;
+    
+  }
+  
+  private static final int CHECK_INTERVAL = 1 << 12;
+  
+  private CharSequence fCharSequence     = null;
+  private long         fDeadlineNanoTime = 0;
+  private int          fCountdown        = CHECK_INTERVAL;
+  
+  public TDeadlineCharSequence( CharSequence aCharSequence, long aDeadlineNanoTime ) {
+    fCharSequence = aCharSequence;
+    fDeadlineNanoTime = aDeadlineNanoTime;
+  }
+  
+  /*
+   * Returns aCharSequence itself when there is no timeout (aTimeoutNanos <= 0), otherwise a char sequence
+   * expiring aTimeoutNanos after aStartNanoTime.
+   */
+  public static CharSequence wrap( CharSequence aCharSequence, long aTimeoutNanos, long aStartNanoTime ) {
+    if ( aTimeoutNanos <= 0 ) {
+      return aCharSequence;
+    }
+    return new TDeadlineCharSequence( aCharSequence, aStartNanoTime + aTimeoutNanos );
+  }
+  
+  @Override
+  public char charAt( int aIndex ) {
+    if ( --fCountdown == 0 ) {
+      fCountdown = CHECK_INTERVAL;
+      if ( System.nanoTime() - fDeadlineNanoTime > 0 ) {
+        throw new TRegexTimeoutException();
+      }
+    }
+    return fCharSequence.charAt( aIndex );
+  }
+  
+  @Override
+  public int length() {
+    return fCharSequence.length();
+  }
+  
+  @Override
+  public CharSequence subSequence( int aStart, int aEnd ) {
+    return fCharSequence.subSequence( aStart, aEnd );
+  }
+  
+  @Override
+  public String toString() {
+    return fCharSequence.toString();
+  }
+  
+}
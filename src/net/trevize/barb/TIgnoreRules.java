@@ -0,0 +1,219 @@
+package net.trevize.barb;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Pattern;
+
+/*
+ * The rules of the .gitignore and .ignore files of a directory, each one compiled into a regular expression
+ * matched against the path relative to the directory. Follows the gitignore format:
+ *   - blank lines and lines starting with '#' are skipped, trailing spaces are trimmed unless escaped;
+ *   - a rule starting with '!' re-includes what a previous rule ignored;
+ *   - a rule ending with '/' only matches directories;
+ *   - a rule containing a '/' elsewhere than at its end is anchored to the directory, otherwise it matches a
+ *     name at any depth;
+ *   - '*', '?' and '[...]' do not match '/'. A '**' between two '/', or leading and followed by a '/', matches
+ *     zero or more directories, a '**' ending the rule after a '/' matches everything inside a directory.
+ * The rules of .ignore come after those of .gitignore: the last matching rule wins.
+ */
+public class TIgnoreRules {
+  
+  public static final String[] IGNORE_FILE_NAMES = { ".gitignore", ".ignore" };
+  
+  public static final int NOT_MATCHED = 0;
+  public static final int IGNORED     = 1;
+  public static final int RE_INCLUDED = 2;
+  
+  private static class TRule {
+    
+    private Pattern fPattern         = null;
+    private boolean fIsNegated       = false;
+    private boolean fIsDirectoryOnly = false;
+    
+  }
+  
+  private List<TRule> fRuleList = new ArrayList<>();
+  
+  /*
+   * Returns the rules of the ignore files of aDirectory, or null if it has no ignore file or no rule.
+   */
+  public static TIgnoreRules load( Path aDirectory ) throws IOException {
+    TIgnoreRules l_ignoreRules = new TIgnoreRules();
+    for ( String l_ignoreFileName : IGNORE_FILE_NAMES ) {
+      Path l_ignoreFile = aDirectory.resolve( l_ignoreFileName );
+      if ( ! Files.isRegularFile( l_ignoreFile ) ) {
+        continue;
+      }
+      for ( String l_line : new String( Files.readAllBytes( l_ignoreFile ), StandardCharsets.UTF_8 ).split( "\r?\n" ) ) {
+        l_ignoreRules.addRule( l_line );
+      }
+    }
+    return l_ignoreRules.fRuleList.isEmpty() ? null : l_ignoreRules;
+  }
+  
+  /*
+   * aRelativePath uses '/' as separator.
+   */
+  public int match( String aRelativePath, boolean aIsDirectory ) {
+    for ( int l_ruleIndex = fRuleList.size() - 1; l_ruleIndex >= 0; --l_ruleIndex ) {
+      TRule l_rule = fRuleList.get( l_ruleIndex );
+      if ( ( l_rule.fIsDirectoryOnly && ! aIsDirectory ) || ! l_rule.fPattern.matcher( aRelativePath ).matches() ) {
+        continue;
+      }
+      return l_rule.fIsNegated ? RE_INCLUDED : IGNORED;
+    }
+    return NOT_MATCHED;
+  }
+  
+  void addRule( String aLine ) {
+    String l_line = trimTrailingSpaces( aLine );
+    if ( l_line.isEmpty() || l_line.startsWith( "#" ) ) {
+      return;
+    }
+    TRule l_rule = new TRule();
+    if ( l_line.startsWith( "!" ) ) {
+      l_rule.fIsNegated = true;
+      l_line = l_line.substring( 1 );
+    }
+    if ( l_line.endsWith( "/" ) ) {
+      l_rule.fIsDirectoryOnly = true;
+      l_line = l_line.substring( 0, l_line.length() - 1 );
+    }
+    if ( l_line.isEmpty() ) {
+      return;
+    }
+    boolean l_isAnchored = l_line.indexOf( '/' ) >= 0;
+    if ( l_line.startsWith( "/" ) ) {
+      l_line = l_line.substring( 1 );
+    }
+    StringBuilder l_regex = new StringBuilder();
+    if ( ! l_isAnchored ) {
+      l_regex.append( "(?:.*/)?" );
+    }
+    appendGlob( l_line, l_regex );
+    l_rule.fPattern = Pattern.compile( l_regex.toString(), Pattern.DOTALL );
+    fRuleList.add( l_rule );
+  }
+  
+  private static String trimTrailingSpaces( String aLine ) {
+    int l_end = aLine.length();
+    while ( ( l_end > 0 ) && ( aLine.charAt( l_end - 1 ) == ' ' ) && ! ( ( l_end > 1 ) && ( aLine.charAt( l_end - 2 ) == '\\' ) ) ) {
+      --l_end;
+    }
+    return aLine.substring( 0, l_end );
+  }
+  
+  private static void appendGlob( String aGlob, StringBuilder aRegex ) {
+    int l_length = aGlob.length();
+    int l_index = 0;
+    while ( l_index < l_length ) {
+      char l_char = aGlob.charAt( l_index );
+      if ( ( l_char == '*' ) && ( l_index + 1 < l_length ) && ( aGlob.charAt( l_index + 1 ) == '*' ) ) {
+        boolean l_isAfterSlash = ( l_index == 0 ) || ( aGlob.charAt( l_index - 1 ) == '/' );
+        int l_afterIndex = l_index + 2;
+        if ( l_isAfterSlash && ( l_afterIndex == l_length ) ) {
+          aRegex.append( ".*" );
+          l_index = l_afterIndex;
+          continue;
+        }
+        if ( l_isAfterSlash && ( aGlob.charAt( l_afterIndex ) == '/' ) ) {
+          aRegex.append( "(?:.*/)?" );
+          l_index = l_afterIndex + 1;
+          continue;
+        }
+        // Elsewhere '**' is a plain '*'.
+        while ( ( l_index < l_length ) && ( aGlob.charAt( l_index ) == '*' ) ) {
+          ++l_index;
+        }
+        aRegex.append( "[^/]*" );
+        continue;
+      }
+      switch ( l_char ) {
+        case '*':
+          aRegex.append( "[^/]*" );
+          break;
+        case '?':
+          aRegex.append( "[^/]" );
+          break;
+        case '[': {
+          int l_classEnd = findClassEnd( aGlob, l_index );
+          if ( l_classEnd < 0 ) {
+            aRegex.append( "\\[" );
+            break;
+          }
+          aRegex.append( translateClass( aGlob.substring( l_index + 1, l_classEnd ) ) );
+          l_index = l_classEnd;
+          break;
+        }
+        case '\\':
+          if ( l_index + 1 < l_length ) {
+            ++l_index;
+          }
+          aRegex.append( Pattern.quote( String.valueOf( aGlob.charAt( l_index ) ) ) );
+          break;
+        default:
+          aRegex.append( Pattern.quote( String.valueOf( l_char ) ) );
+          break;
+      }
+      ++l_index;
+    }
+  }
+  
+  /*
+   * Returns the index of the ']' closing the class opened at aStart, or -1 if it is not closed.
+   */
+  private static int findClassEnd( String aGlob, int aStart ) {
+    int l_index = aStart + 1;
+    if ( ( l_index < aGlob.length() ) && ( ( aGlob.charAt( l_index ) == '!' ) || ( aGlob.charAt( l_index ) == '^' ) ) ) {
+      ++l_index;
+    }
+    // A ']' right after the opening bracket is a char of the class.
+    if ( ( l_index < aGlob.length() ) && ( aGlob.charAt( l_index ) == ']' ) ) {
+      ++l_index;
+    }
+    while ( l_index < aGlob.length() ) {
+      char l_char = aGlob.charAt( l_index );
+      if ( l_char == '\\' ) {
+        l_index += 2;
+        continue;
+      }
+      if ( l_char == ']' ) {
+        return l_index;
+      }
+      ++l_index;
+    }
+    return -1;
+  }
+  
+  private static String translateClass( String aClass ) {
+    // A class never matches the separator.
+    StringBuilder l_class = new StringBuilder( "(?!/)[" );
+    int l_index = 0;
+    if ( ! aClass.isEmpty() && ( ( aClass.charAt( 0 ) == '!' ) || ( aClass.charAt( 0 ) == '^' ) ) ) {
+      l_class.append( '^' );
+      l_index = 1;
+    }
+    for ( ; l_index < aClass.length(); ++l_index ) {
+      char l_char = aClass.charAt( l_index );
+      if ( ( l_char == '\\' ) && ( l_index + 1 < aClass.length() ) ) {
+        l_char = aClass.charAt( ++l_index );
+      }
+      else if ( l_char == '-' ) {
+        l_class.append( l_char );
+        continue;
+      }
+      if ( Character.isLetterOrDigit( l_char ) ) {
+        l_class.append( l_char );
+      }
+      else {
+        l_class.append( '\\' ).append( l_char );
+      }
+    }
+    return l_class.append( ']' ).toString();
+  }
+  
+}
@@ -0,0 +1,230 @@
+package net.trevize.barb;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/*
+ * An unanchored DFA built lazily from the program of a TAutomatonRegex, a state being the set of the char set and
+ * match instructions the NFA can be in. It only tells whether a match can end somewhere after a given index:
+ * the assertions are taken as always holding, so the DFA may report a match which the Pike VM does not confirm,
+ * but never misses one.
+ *
+ * The states are built on demand, the transitions on ASCII chars are cached in a table. Beyond MAX_STATE_COUNT
+ * states the cache is flushed and rebuilt from the current state. An instance is used by a single thread.
+ */
+class TLazyDfa {
+  
+  private static final int MAX_STATE_COUNT = 4096;
+  private static final int UNKNOWN_STATE   = -1;
+  
+  private static final byte UNKNOWN_START_CHAR = 0;
+  private static final byte START_CHAR         = 1;
+  private static final byte NOT_START_CHAR     = 2;
+  
+  private static class TState {
+    
+    private int[]                   fPcArray         = null;
+    private boolean                 fIsMatch         = false;
+    private int[]                   fAsciiStateArray = new int[ 128 ];
+    private Map<Character, Integer> fOtherStateMap   = new HashMap<>();
+    
+    private TState( int[] aPcArray, boolean aIsMatch ) {
+      fPcArray = aPcArray;
+      fIsMatch = aIsMatch;
+      Arrays.fill( fAsciiStateArray, UNKNOWN_STATE );
+    }
+    
+  }
+  
+  private TAutomatonRegex      fRegex           = null;
+  private int[]                fStartPcArray    = null;
+  private int                  fStartStateIndex = UNKNOWN_STATE;
+  private List<TState>         fStateList       = new ArrayList<>();
+  private Map<String, Integer> fStateMap        = new HashMap<>();
+  private byte[]               fStartCharArray  = new byte[ 128 ];
+  private int[]                fPcStack         = null;
+  private boolean[]            fVisitedArray    = null;
+  
+  public TLazyDfa( TAutomatonRegex aRegex ) {
+    fRegex = aRegex;
+    // A pushed instruction pushes at most two others once visited.
+    fPcStack = new int[ 3 * aRegex.fLength + 1 ];
+    fVisitedArray = new boolean[ aRegex.fLength ];
+    fStartPcArray = closure( new int[] { 0 } );
+  }
+  
+  /*
+   * Returns true if a match may end at or after aFromIndex, for a match starting at or after aFromIndex.
+   */
+  public boolean mayMatch( CharSequence aText, int aFromIndex ) {
+    if ( fStartStateIndex == UNKNOWN_STATE ) {
+      fStartStateIndex = getState( fStartPcArray );
+    }
+    TState l_state = fStateList.get( fStartStateIndex );
+    int l_length = aText.length();
+    for ( int l_index = aFromIndex; ; ++l_index ) {
+      if ( l_state.fIsMatch ) {
+        return true;
+      }
+      if ( l_index == l_length ) {
+        return false;
+      }
+      char l_char = aText.charAt( l_index );
+      int l_nextStateIndex = ( l_char < 128 ) ? l_state.fAsciiStateArray[ l_char ] : l_state.fOtherStateMap.getOrDefault( l_char, UNKNOWN_STATE );
+      if ( l_nextStateIndex == UNKNOWN_STATE ) {
+        l_nextStateIndex = computeNextState( l_state, l_char );
+      }
+      l_state = fStateList.get( l_nextStateIndex );
+    }
+  }
+  
+  /*
+   * Returns the first index at or after aFromIndex at which a match may start, the length of the text if none:
+   * the chars no char set of the start state contains are skipped. Nothing is skipped if the start state
+   * matches empty.
+   */
+  public int skipToStart( CharSequence aText, int aFromIndex ) {
+    if ( fStartStateIndex == UNKNOWN_STATE ) {
+      fStartStateIndex = getState( fStartPcArray );
+    }
+    if ( fStateList.get( fStartStateIndex ).fIsMatch ) {
+      return aFromIndex;
+    }
+    int l_length = aText.length();
+    for ( int l_index = aFromIndex; l_index < l_length; ++l_index ) {
+      char l_char = aText.charAt( l_index );
+      if ( l_char >= 128 ) {
+        if ( isStartChar( l_char ) ) {
+          return l_index;
+        }
+        continue;
+      }
+      if ( fStartCharArray[ l_char ] == UNKNOWN_START_CHAR ) {
+        fStartCharArray[ l_char ] = isStartChar( l_char ) ? START_CHAR : NOT_START_CHAR;
+      }
+      if ( fStartCharArray[ l_char ] == START_CHAR ) {
+        return l_index;
+      }
+    }
+    return l_length;
+  }
+  
+  private boolean isStartChar( char aChar ) {
+    for ( int l_pc : fStartPcArray ) {
+      if ( ( fRegex.fOpcodeArray[ l_pc ] == TAutomatonRegex.CHAR_SET_OPCODE ) && fRegex.fCharSetArray[ l_pc ].contains( aChar ) ) {
+        return true;
+      }
+    }
+    return false;
+  }
+  
+  private int computeNextState( TState aState, char aChar ) {
+    int l_nextPcCount = 0;
+    int[] l_nextPcArray = new int[ aState.fPcArray.length ];
+    for ( int l_pc : aState.fPcArray ) {
+      if ( ( fRegex.fOpcodeArray[ l_pc ] == TAutomatonRegex.CHAR_SET_OPCODE ) && fRegex.fCharSetArray[ l_pc ].contains( aChar ) ) {
+        l_nextPcArray[ l_nextPcCount++ ] = l_pc + 1;
+      }
+    }
+    int[] l_closurePcArray = closure( Arrays.copyOf( l_nextPcArray, l_nextPcCount ) );
+    // Unanchored: a match can also start at the next index.
+    int[] l_statePcArray = union( l_closurePcArray, fStartPcArray );
+    if ( fStateList.size() >= MAX_STATE_COUNT ) {
+      fStateList.clear();
+      fStateMap.clear();
+      fStartStateIndex = UNKNOWN_STATE;
+      return getState( l_statePcArray );
+    }
+    int l_nextStateIndex = getState( l_statePcArray );
+    if ( aChar < 128 ) {
+      aState.fAsciiStateArray[ aChar ] = l_nextStateIndex;
+    }
+    else {
+      aState.fOtherStateMap.put( aChar, l_nextStateIndex );
+    }
+    return l_nextStateIndex;
+  }
+  
+  private int getState( int[] aPcArray ) {
+    String l_key = Arrays.toString( aPcArray );
+    Integer l_stateIndex = fStateMap.get( l_key );
+    if ( l_stateIndex != null ) {
+      return l_stateIndex;
+    }
+    boolean l_isMatch = false;
+    for ( int l_pc : aPcArray ) {
+      l_isMatch |= fRegex.fOpcodeArray[ l_pc ] == TAutomatonRegex.MATCH_OPCODE;
+    }
+    fStateList.add( new TState( aPcArray, l_isMatch ) );
+    fStateMap.put( l_key, fStateList.size() - 1 );
+    return fStateList.size() - 1;
+  }
+  
+  /*
+   * Follows the instructions which do not consume a char, returns the sorted char set and match instructions
+   * reached.
+   */
+  private int[] closure( int[] aPcArray ) {
+    Arrays.fill( fVisitedArray, false );
+    int l_stackSize = 0;
+    for ( int l_pc : aPcArray ) {
+      fPcStack[ l_stackSize++ ] = l_pc;
+    }
+    int[] l_reachedPcArray = new int[ fRegex.fLength ];
+    int l_reachedPcCount = 0;
+    while ( l_stackSize > 0 ) {
+      int l_pc = fPcStack[ --l_stackSize ];
+      if ( fVisitedArray[ l_pc ] ) {
+        continue;
+      }
+      fVisitedArray[ l_pc ] = true;
+      switch ( fRegex.fOpcodeArray[ l_pc ] ) {
+        case TAutomatonRegex.SPLIT_OPCODE:
+          fPcStack[ l_stackSize++ ] = fRegex.fArgArray[ l_pc ];
+          fPcStack[ l_stackSize++ ] = fRegex.fOtherArgArray[ l_pc ];
+          break;
+        case TAutomatonRegex.EMPTY_OPCODE:
+          fPcStack[ l_stackSize++ ] = fRegex.fArgArray[ l_pc ];
+          fPcStack[ l_stackSize++ ] = l_pc + 1;
+          break;
+        case TAutomatonRegex.JUMP_OPCODE:
+          fPcStack[ l_stackSize++ ] = fRegex.fArgArray[ l_pc ];
+          break;
+        case TAutomatonRegex.SAVE_OPCODE:
+        case TAutomatonRegex.ASSERTION_OPCODE:
+          fPcStack[ l_stackSize++ ] = l_pc + 1;
+          break;
+        default:
+          l_reachedPcArray[ l_reachedPcCount++ ] = l_pc;
+          break;
+      }
+    }
+    int[] l_sortedPcArray = Arrays.copyOf( l_reachedPcArray, l_reachedPcCount );
+    Arrays.sort( l_sortedPcArray );
+    return l_sortedPcArray;
+  }
+  
+  private static int[] union( int[] aPcArray, int[] aOtherPcArray ) {
+    int[] l_pcArray = new int[ aPcArray.length + aOtherPcArray.length ];
+    int l_pcCount = 0;
+    int l_index = 0;
+    int l_otherIndex = 0;
+    while ( ( l_index < aPcArray.length ) || ( l_otherIndex < aOtherPcArray.length ) ) {
+      if ( ( l_otherIndex == aOtherPcArray.length ) || ( ( l_index < aPcArray.length ) && ( aPcArray[ l_index ] < aOtherPcArray[ l_otherIndex ] ) ) ) {
+        l_pcArray[ l_pcCount++ ] = aPcArray[ l_index++ ];
+      }
+      else if ( ( l_index == aPcArray.length ) || ( aOtherPcArray[ l_otherIndex ] < aPcArray[ l_index ] ) ) {
+        l_pcArray[ l_pcCount++ ] = aOtherPcArray[ l_otherIndex++ ];
+      }
+      else {
+        l_pcArray[ l_pcCount++ ] = aPcArray[ l_index++ ];
+        ++l_otherIndex;
+      }
+    }
+    return Arrays.copyOf( l_pcArray, l_pcCount );
+  }
+  
+}
@@ -0,0 +1,55 @@
+package net.trevize.barb;
+
+import java.util.ArrayDeque;
+
+/*
+ * A budget of heap bytes shared by the worker threads: before reading a target file in memory a worker acquires
+ * the bytes its buffers will hold, estimated from the file size, and releases them once the file is processed.
+ * The workers wait while the budget is spent, so that a few large files landing together do not exhaust the heap.
+ * The waiting workers are served in arrival order: a large file is not starved by a stream of small ones.
+ *
+ * A worker never holds more than one share, and a share never exceeds the budget: a waiting worker is always
+ * served once the shares acquired before are released. With --io-threads a share goes with its target file from
+ * the reading thread to the writing one, which releases it without waiting for any other share.
+ */
+public class TMemoryBudget {
+  
+  private long               fBudget         = 0;
+  private long               fAcquiredLength = 0;
+  private ArrayDeque<Object> fWaiterQueue    = new ArrayDeque<>();
+  
+  public TMemoryBudget( long aBudget ) {
+    fBudget = aBudget;
+  }
+  
+  public long getBudget() {
+    return fBudget;
+  }
+  
+  /*
+   * Blocks until aLength bytes are available and returns the share acquired, aLength capped to the budget.
+   */
+  public synchronized long acquire( long aLength ) throws InterruptedException {
+    long l_length = Math.min( aLength, fBudget );
+    Object l_waiter = new Object();
+    fWaiterQueue.add( l_waiter );
+    try {
+      while ( ( fWaiterQueue.peek() != l_waiter ) || ( fAcquiredLength + l_length > fBudget ) ) {
+        wait();
+      }
+    }
+    finally {
+      // Also when interrupted, the next waiters must not wait for this one.
+      fWaiterQueue.remove( l_waiter );
+      notifyAll();
+    }
+    fAcquiredLength += l_length;
+    return l_length;
+  }
+  
+  public synchronized void release( long aLength ) {
+    fAcquiredLength -= aLength;
+    notifyAll();
+  }
+  
+}
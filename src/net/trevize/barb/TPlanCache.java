@@ -0,0 +1,45 @@
+package net.trevize.barb;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/*
+ * The compiled replacement plans kept by the daemon, keyed by the fingerprint of their pairs and by their regular
+ * expression engine: the patterns read again from the same pattern and replacement files are not compiled
+ * again. The least recently used plan is dropped beyond MAX_PLAN_COUNT plans.
+ */
+public class TPlanCache {
+  
+  private static final int MAX_PLAN_COUNT = 64;
+  
+  private Map<String, TReplacementPlan> fPlanMap = new LinkedHashMap<String, TReplacementPlan>( 16, 0.75f, true ) {
+    
+    private static final long serialVersionUID = 1L;
+    
+    @Override
+    protected boolean removeEldestEntry( Map.Entry<String, TReplacementPlan> aEldestEntry ) {
+      return size() > MAX_PLAN_COUNT;
+    }
+    
+  };
+  
+  /*
+   * Returns the compiled plan with the same pairs and engine as aReplacementPlan, compiling and caching
+   * aReplacementPlan if there is none. The compilation is done outside of the lock.
+   */
+  public TReplacementPlan getCompiledPlan( TReplacementPlan aReplacementPlan ) {
+    String l_key = aReplacementPlan.getFingerprint() + ( aReplacementPlan.isAutomatonEngine() ? "/automaton" : "/java" );
+    synchronized ( fPlanMap ) {
+      TReplacementPlan l_compiledPlan = fPlanMap.get( l_key );
+      if ( l_compiledPlan != null ) {
+        return l_compiledPlan;
+      }
+    }
+    aReplacementPlan.compile();
+    synchronized ( fPlanMap ) {
+      fPlanMap.put( l_key, aReplacementPlan );
+    }
+    return aReplacementPlan;
+  }
+  
+}
@@ -0,0 +1,49 @@
+package net.trevize.barb;
+
+import java.util.regex.Matcher;
+
+/*
+ * The operations the replacement plan needs from a regular expression matcher: find() and the bounds of the
+ * last match and of its groups, with the semantics of java.util.regex.Matcher. Implemented over a Matcher, and
+ * by TAutomatonMatcher.
+ */
+public interface TRegexMatcher {
+  
+  boolean find();
+  
+  int start();
+  
+  int end();
+  
+  /*
+   * Returns -1 if the group did not take part in the last match.
+   */
+  int start( int aGroupIndex );
+  
+  static TRegexMatcher of( Matcher aMatcher ) {
+    return new TRegexMatcher() {
+      
+      @Override
+      public boolean find() {
+        return aMatcher.find();
+      }
+      
+      @Override
+      public int start() {
+        return aMatcher.start();
+      }
+      
+      @Override
+      public int end() {
+        return aMatcher.end();
+      }
+      
+      @Override
+      public int start( int aGroupIndex ) {
+        return aMatcher.start( aGroupIndex );
+      }
+      
+    };
+  }
+  
+}
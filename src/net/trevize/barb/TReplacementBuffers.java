@@ -0,0 +1,590 @@
+package net.trevize.barb;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+/*
+ * The buffers a worker thread reuses from one target file to the next: the content read, the content replaced
+ * by the literals, the decoded chars, the chars replaced by the regular expressions and the encoded output. Once
+ * the buffers have grown to the size of the target files, a target file is read, decoded, replaced and encoded
+ * without allocating. A buffer grown past MAX_RETAINED_LENGTH is dropped after the target file, so that a few
+ * huge target files do not pin their size in every worker thread. With --io-threads the buffers are pooled
+ * instead, and travel with their target file from the reading thread to the replacing and writing ones.
+ *
+ * The content is decoded and encoded with the platform charset, malformed and unmappable input being replaced
+ * as new String( byte[] ) and String.getBytes() do. The last regular expression pass encodes its many short
+ * unchanged spans one at a time: UTF-8 is encoded inline and a single-byte charset goes through code tables,
+ * the CharsetEncoder only sees the other charsets, or the chars a table does not cover.
+ */
+public class TReplacementBuffers {
+  
+  /*
+   * A byte array output stream whose buffer is read and written without being copied.
+   */
+  public static class TByteOutput extends ByteArrayOutputStream {
+    
+    private ByteBuffer fByteBuffer = null;
+    
+    private TByteOutput() {
+      super( INITIAL_LENGTH );
+    }
+    
+    public byte[] getBuffer() {
+      return buf;
+    }
+    
+    public int getLength() {
+      return count;
+    }
+    
+    /*
+     * Appends aBytes, unlike write() without synchronization.
+     */
+    public void append( byte[] aBytes ) {
+      ensureCapacity( aBytes.length );
+      System.arraycopy( aBytes, 0, buf, count, aBytes.length );
+      count += aBytes.length;
+    }
+    
+    /*
+     * Appends the bytes of aContent in [aFrom, aTo), mapped by aRoundTripTable unless it is null.
+     */
+    private void appendRoundTrip( byte[] aContent, int aFrom, int aTo, byte[] aRoundTripTable ) {
+      ensureCapacity( aTo - aFrom );
+      if ( aRoundTripTable == null ) {
+        System.arraycopy( aContent, aFrom, buf, count, aTo - aFrom );
+        count += aTo - aFrom;
+        return;
+      }
+      byte[] l_buffer = buf;
+      int l_count = count;
+      for ( int l_index = aFrom; l_index < aTo; ++l_index ) {
+        l_buffer[ l_count++ ] = aRoundTripTable[ aContent[ l_index ] & 0xff ];
+      }
+      count = l_count;
+    }
+    
+    /*
+     * Appends the chars from aFrom while they are mapped to a single byte, by aEncodeTable or as ASCII when it is
+     * null, and returns the index of the first char which is not. The capacity must have been ensured.
+     */
+    private int appendMapped( char[] aChars, int aFrom, int aTo, byte[] aEncodeTable ) {
+      byte[] l_buffer = buf;
+      int l_count = count;
+      int l_index = aFrom;
+      if ( aEncodeTable != null ) {
+        while ( ( l_index < aTo ) && ! Character.isSurrogate( aChars[ l_index ] ) ) {
+          l_buffer[ l_count++ ] = aEncodeTable[ aChars[ l_index++ ] ];
+        }
+      }
+      else {
+        while ( ( l_index < aTo ) && ( aChars[ l_index ] < 0x80 ) ) {
+          l_buffer[ l_count++ ] = (byte) aChars[ l_index++ ];
+        }
+      }
+      count = l_count;
+      return l_index;
+    }
+    
+    /*
+     * write() may have grown the buffer, the ByteBuffer is checked to wrap the current one.
+     */
+    private ByteBuffer getByteBuffer() {
+      if ( ( fByteBuffer == null ) || ( fByteBuffer.array() != buf ) ) {
+        fByteBuffer = ByteBuffer.wrap( buf );
+      }
+      return fByteBuffer;
+    }
+    
+    private void ensureCapacity( int aAddedLength ) {
+      if ( aAddedLength > buf.length - count ) {
+        buf = Arrays.copyOf( buf, Math.max( 2 * buf.length, count + aAddedLength ) );
+      }
+    }
+    
+    /*
+     * Appends the chars of aChars in [aFrom, aTo) encoded in UTF-8, a lone surrogate being replaced by '?' as the
+     * UTF-8 encoder does. Spares the setup of a CharsetEncoder call for each of the many short spans. The room for
+     * the worst case of 3 bytes per char is made chunk by chunk, not for the whole span at once.
+     */
+    private void encodeUtf8( char[] aChars, int aFrom, int aTo ) {
+      byte[] l_buffer = buf;
+      int l_count = count;
+      int l_chunkEnd = aFrom;
+      for ( int l_index = aFrom; l_index < aTo; ++l_index ) {
+        if ( l_index >= l_chunkEnd ) {
+          l_chunkEnd = Math.min( aTo, l_index + ENCODE_CHUNK_LENGTH );
+          count = l_count;
+          // One more char for a surrogate pair across the end of the chunk.
+          ensureCapacity( 3 * ( l_chunkEnd - l_index ) + 1 );
+          l_buffer = buf;
+        }
+        char l_char = aChars[ l_index ];
+        if ( l_char < 0x80 ) {
+          l_buffer[ l_count++ ] = (byte) l_char;
+        }
+        else if ( l_char < 0x800 ) {
+          l_buffer[ l_count++ ] = (byte) ( 0xc0 | ( l_char >> 6 ) );
+          l_buffer[ l_count++ ] = (byte) ( 0x80 | ( l_char & 0x3f ) );
+        }
+        else if ( Character.isSurrogate( l_char ) ) {
+          if ( Character.isHighSurrogate( l_char ) && ( l_index + 1 < aTo ) && Character.isLowSurrogate( aChars[ l_index + 1 ] ) ) {
+            int l_codePoint = Character.toCodePoint( l_char, aChars[ ++l_index ] );
+            l_buffer[ l_count++ ] = (byte) ( 0xf0 | ( l_codePoint >> 18 ) );
+            l_buffer[ l_count++ ] = (byte) ( 0x80 | ( ( l_codePoint >> 12 ) & 0x3f ) );
+            l_buffer[ l_count++ ] = (byte) ( 0x80 | ( ( l_codePoint >> 6 ) & 0x3f ) );
+            l_buffer[ l_count++ ] = (byte) ( 0x80 | ( l_codePoint & 0x3f ) );
+          }
+          else {
+            l_buffer[ l_count++ ] = '?';
+          }
+        }
+        else {
+          l_buffer[ l_count++ ] = (byte) ( 0xe0 | ( l_char >> 12 ) );
+          l_buffer[ l_count++ ] = (byte) ( 0x80 | ( ( l_char >> 6 ) & 0x3f ) );
+          l_buffer[ l_count++ ] = (byte) ( 0x80 | ( l_char & 0x3f ) );
+        }
+      }
+      count = l_count;
+    }
+    
+    /*
+     * Appends aChars encoded, growing the buffer as long as the encoder overflows it.
+     */
+    private void encode( CharsetEncoder aEncoder, CharBuffer aChars ) {
+      aEncoder.reset();
+      ensureCapacity( (int) ( aChars.remaining() * aEncoder.averageBytesPerChar() ) + 16 );
+      while ( true ) {
+        ByteBuffer l_byteBuffer = getByteBuffer();
+        l_byteBuffer.limit( buf.length ).position( count );
+        CoderResult l_coderResult = aEncoder.encode( aChars, l_byteBuffer, true );
+        if ( l_coderResult.isUnderflow() ) {
+          l_coderResult = aEncoder.flush( l_byteBuffer );
+        }
+        count = l_byteBuffer.position();
+        if ( l_coderResult.isUnderflow() ) {
+          return;
+        }
+        ensureCapacity( (int) ( aChars.remaining() * aEncoder.maxBytesPerChar() ) + 16 );
+      }
+    }
+    
+  }
+  
+  /*
+   * A growable char array searched by the regular expressions. The CharBuffer wrapping the array is used to
+   * decode into it and to encode its spans, it is never given to a matcher.
+   */
+  public static class TCharOutput implements CharSequence {
+    
+    private char[]     fArray      = new char[ INITIAL_LENGTH ];
+    private int        fLength     = 0;
+    private CharBuffer fCharBuffer = null;
+    
+    @Override
+    public int length() {
+      return fLength;
+    }
+    
+    @Override
+    public char charAt( int aIndex ) {
+      if ( aIndex >= fLength ) {
+        throw new IndexOutOfBoundsException( String.format( "Index %d out of bounds for length %d", aIndex, fLength ) );
+      }
+      return fArray[ aIndex ];
+    }
+    
+    @Override
+    public CharSequence subSequence( int aStart, int aEnd ) {
+      return toString().substring( aStart, aEnd );
+    }
+    
+    @Override
+    public String toString() {
+      return new String( fArray, 0, fLength );
+    }
+    
+    public void clear() {
+      fLength = 0;
+    }
+    
+    public void append( TCharOutput aChars, int aFrom, int aTo ) {
+      ensureCapacity( aTo - aFrom );
+      System.arraycopy( aChars.fArray, aFrom, fArray, fLength, aTo - aFrom );
+      fLength += aTo - aFrom;
+    }
+    
+    public void append( char[] aChars ) {
+      ensureCapacity( aChars.length );
+      System.arraycopy( aChars, 0, fArray, fLength, aChars.length );
+      fLength += aChars.length;
+    }
+    
+    private void ensureCapacity( int aAddedLength ) {
+      if ( aAddedLength > fArray.length - fLength ) {
+        fArray = Arrays.copyOf( fArray, Math.max( 2 * fArray.length, fLength + aAddedLength ) );
+        fCharBuffer = null;
+      }
+    }
+    
+    private CharBuffer getCharBuffer() {
+      if ( fCharBuffer == null ) {
+        fCharBuffer = CharBuffer.wrap( fArray );
+      }
+      return fCharBuffer;
+    }
+    
+    private CharBuffer getSpan( int aFrom, int aTo ) {
+      CharBuffer l_charBuffer = getCharBuffer();
+      l_charBuffer.limit( aTo ).position( aFrom );
+      return l_charBuffer;
+    }
+    
+  }
+  
+  public static final int MAX_RETAINED_LENGTH = 1 << 22;
+  
+  private static final int INITIAL_LENGTH      = 1 << 13;
+  private static final int ENCODE_CHUNK_LENGTH = 1 << 13;
+  
+  private static final ThreadLocal<TReplacementBuffers> BUFFERS = ThreadLocal.withInitial( TReplacementBuffers::new );
+  
+  private static final Charset CHARSET             = Charset.defaultCharset();
+  private static final boolean IS_UTF8             = CHARSET.equals( StandardCharsets.UTF_8 );
+  private static final boolean IS_ASCII_COMPATIBLE = isAsciiCompatible();
+  private static final boolean IS_SPAN_ENCODABLE   = checkSpanEncodable();
+  
+  /*
+   * The code tables of a single-byte charset, null otherwise. A surrogate is left to the encoder, which replaces
+   * a pair as a whole.
+   */
+  private static final char[] DECODE_TABLE = buildDecodeTable();
+  private static final byte[] ENCODE_TABLE = ( DECODE_TABLE != null ) ? buildEncodeTable() : null;
+  
+  /*
+   * With a single-byte charset, the decoded content has a char per byte: a span of the decoded content is
+   * encoded from the bytes it was decoded from, mapped by this table (a byte the charset does not define comes
+   * back as a replacement) or only copied when the table is the identity.
+   */
+  private static final byte[]  ROUND_TRIP_TABLE       = ( DECODE_TABLE != null ) ? buildRoundTripTable() : null;
+  private static final boolean IS_ROUND_TRIP_IDENTITY = isRoundTripIdentity();
+  
+  private byte[]         fContent            = new byte[ INITIAL_LENGTH ];
+  private int            fContentLength      = 0;
+  private ByteBuffer     fContentBuffer      = null;
+  private TByteOutput    fLiteralOutput      = new TByteOutput();
+  private TByteOutput    fOutput             = new TByteOutput();
+  private TByteOutput    fReplacedOutput     = null;
+  private TCharOutput    fDecodedChars       = new TCharOutput();
+  private TCharOutput    fReplacedChars      = new TCharOutput();
+  private TCharOutput    fOtherReplacedChars = new TCharOutput();
+  private CharsetDecoder fDecoder            = null;
+  private CharsetEncoder fEncoder            = null;
+  private byte[]         fDecodedContent     = null;
+  
+  private TReplacementBuffers() {
+    fDecoder = CHARSET.newDecoder().onMalformedInput( CodingErrorAction.REPLACE ).onUnmappableCharacter( CodingErrorAction.REPLACE );
+    fEncoder = CHARSET.newEncoder().onMalformedInput( CodingErrorAction.REPLACE ).onUnmappableCharacter( CodingErrorAction.REPLACE );
+  }
+  
+  private static boolean isAsciiCompatible() {
+    byte[] l_asciiBytes = new byte[ 0x80 ];
+    for ( int l_byte = 0; l_byte < 0x80; ++l_byte ) {
+      l_asciiBytes[ l_byte ] = (byte) l_byte;
+    }
+    return Arrays.equals( new String( l_asciiBytes, StandardCharsets.US_ASCII ).getBytes( CHARSET ), l_asciiBytes );
+  }
+  
+  /*
+   * Tells whether the spans of a text can be encoded one by one, which is not the case of a charset writing a
+   * byte order mark each time it starts encoding (UTF-16).
+   */
+  private static boolean checkSpanEncodable() {
+    byte[] l_firstBytes = "a\u00e9".getBytes( CHARSET );
+    byte[] l_secondBytes = "b\u3042".getBytes( CHARSET );
+    byte[] l_spanBytes = Arrays.copyOf( l_firstBytes, l_firstBytes.length + l_secondBytes.length );
+    System.arraycopy( l_secondBytes, 0, l_spanBytes, l_firstBytes.length, l_secondBytes.length );
+    return Arrays.equals( "a\u00e9b\u3042".getBytes( CHARSET ), l_spanBytes );
+  }
+  
+  public static boolean isSpanEncodable() {
+    return IS_SPAN_ENCODABLE;
+  }
+  
+  private static char[] buildDecodeTable() {
+    if ( ( CHARSET.newDecoder().maxCharsPerByte() != 1 ) || ( CHARSET.newEncoder().maxBytesPerChar() != 1 ) ) {
+      return null;
+    }
+    char[] l_decodeTable = new char[ 0x100 ];
+    for ( int l_byte = 0; l_byte < 0x100; ++l_byte ) {
+      String l_char = new String( new byte[] { (byte) l_byte }, CHARSET );
+      if ( l_char.length() != 1 ) {
+        return null;
+      }
+      l_decodeTable[ l_byte ] = l_char.charAt( 0 );
+    }
+    return l_decodeTable;
+  }
+  
+  private static byte[] buildRoundTripTable() {
+    byte[] l_roundTripTable = new byte[ 0x100 ];
+    for ( int l_byte = 0; l_byte < 0x100; ++l_byte ) {
+      l_roundTripTable[ l_byte ] = ENCODE_TABLE[ DECODE_TABLE[ l_byte ] ];
+    }
+    return l_roundTripTable;
+  }
+  
+  private static boolean isRoundTripIdentity() {
+    if ( ROUND_TRIP_TABLE == null ) {
+      return false;
+    }
+    for ( int l_byte = 0; l_byte < 0x100; ++l_byte ) {
+      if ( ROUND_TRIP_TABLE[ l_byte ] != (byte) l_byte ) {
+        return false;
+      }
+    }
+    return true;
+  }
+  
+  private static byte[] buildEncodeTable() {
+    byte[] l_encodeTable = new byte[ 0x10000 ];
+    for ( int l_char = 0; l_char < 0x10000; ++l_char ) {
+      if ( ! Character.isSurrogate( (char) l_char ) ) {
+        l_encodeTable[ l_char ] = String.valueOf( (char) l_char ).getBytes( CHARSET )[ 0 ];
+      }
+    }
+    return l_encodeTable;
+  }
+  
+  /*
+   * Returns the buffers of the current thread.
+   */
+  public static TReplacementBuffers get() {
+    return BUFFERS.get();
+  }
+  
+  /*
+   * Returns buffers bound to no thread, used by one thread at a time.
+   */
+  public static TReplacementBuffers create() {
+    return new TReplacementBuffers();
+  }
+  
+  /*
+   * Reads the whole target file into the content buffer, which is grown to the file size beforehand.
+   */
+  public void read( Path aTargetPath ) throws IOException {
+    fContentLength = 0;
+    try ( InputStream l_inputStream = Files.newInputStream( aTargetPath ) ) {
+      long l_size = Files.size( aTargetPath );
+      if ( l_size > Integer.MAX_VALUE - 16 ) {
+        throw new IOException( String.format( "Cannot read TargetFile[%s] in memory, too large", aTargetPath ) );
+      }
+      // One more byte to see the end of the file without growing.
+      ensureContentCapacity( (int) l_size + 1 );
+      while ( true ) {
+        int l_readLength = l_inputStream.read( fContent, fContentLength, fContent.length - fContentLength );
+        if ( l_readLength < 0 ) {
+          return;
+        }
+        fContentLength += l_readLength;
+        if ( fContentLength == fContent.length ) {
+          // The file grew while being read.
+          ensureContentCapacity( fContent.length );
+        }
+      }
+    }
+  }
+  
+  /*
+   * Sets the content to a copy of aContent.
+   */
+  public void setContent( byte[] aContent ) {
+    fContentLength = 0;
+    ensureContentCapacity( aContent.length );
+    System.arraycopy( aContent, 0, fContent, 0, aContent.length );
+    fContentLength = aContent.length;
+  }
+  
+  public byte[] getContent() {
+    return fContent;
+  }
+  
+  public int getContentLength() {
+    return fContentLength;
+  }
+  
+  private void ensureContentCapacity( int aAddedLength ) {
+    if ( aAddedLength > fContent.length - fContentLength ) {
+      fContent = Arrays.copyOf( fContent, Math.max( 2 * fContent.length, fContentLength + aAddedLength ) );
+      fContentBuffer = null;
+    }
+  }
+  
+  /*
+   * Returns the output of the replacement by the literals, cleared and sized for the content: it does not go
+   * through a chain of doublings, each one holding the previous array while copying it.
+   */
+  TByteOutput getLiteralOutput() {
+    fLiteralOutput.reset();
+    fLiteralOutput.ensureCapacity( getOutputLength( fContentLength ) );
+    return fLiteralOutput;
+  }
+  
+  /*
+   * Returns the output of the replacement by the regular expressions, cleared and sized for the content.
+   */
+  TByteOutput getOutput() {
+    fOutput.reset();
+    fOutput.ensureCapacity( getOutputLength( fContentLength ) );
+    return fOutput;
+  }
+  
+  /*
+   * The replaced content of the target file, set by TReplacementPlan.replace().
+   */
+  public TByteOutput getReplacedOutput() {
+    return fReplacedOutput;
+  }
+  
+  void setReplacedOutput( TByteOutput aReplacedOutput ) {
+    fReplacedOutput = aReplacedOutput;
+  }
+  
+  /*
+   * Decodes the first aLength bytes of aContent, the content buffer or the buffer of the literal output.
+   */
+  TCharOutput decode( byte[] aContent, int aLength ) {
+    ByteBuffer l_byteBuffer = null;
+    if ( aContent == fLiteralOutput.getBuffer() ) {
+      l_byteBuffer = fLiteralOutput.getByteBuffer();
+    }
+    else if ( aContent == fContent ) {
+      if ( fContentBuffer == null ) {
+        fContentBuffer = ByteBuffer.wrap( fContent );
+      }
+      l_byteBuffer = fContentBuffer;
+    }
+    else {
+      l_byteBuffer = ByteBuffer.wrap( aContent );
+    }
+    l_byteBuffer.limit( aLength ).position( 0 );
+    TCharOutput l_chars = fDecodedChars;
+    l_chars.clear();
+    l_chars.ensureCapacity( (int) ( aLength * fDecoder.maxCharsPerByte() ) + 1 );
+    if ( DECODE_TABLE != null ) {
+      char[] l_array = l_chars.fArray;
+      for ( int l_index = 0; l_index < aLength; ++l_index ) {
+        l_array[ l_index ] = DECODE_TABLE[ aContent[ l_index ] & 0xff ];
+      }
+      l_chars.fLength = aLength;
+      fDecodedContent = aContent;
+      return l_chars;
+    }
+    CharBuffer l_charBuffer = l_chars.getCharBuffer();
+    l_charBuffer.clear();
+    fDecoder.reset();
+    fDecoder.decode( l_byteBuffer, l_charBuffer, true );
+    fDecoder.flush( l_charBuffer );
+    l_chars.fLength = l_charBuffer.position();
+    return l_chars;
+  }
+  
+  /*
+   * Returns the replaced chars buffer which is not aChars, cleared and sized for aChars.
+   */
+  TCharOutput getReplacedChars( TCharOutput aChars ) {
+    TCharOutput l_replacedChars = ( aChars == fReplacedChars ) ? fOtherReplacedChars : fReplacedChars;
+    l_replacedChars.clear();
+    l_replacedChars.ensureCapacity( getOutputLength( aChars.length() ) );
+    return l_replacedChars;
+  }
+  
+  /*
+   * The initial length of an output replacing an input of aInputLength, with room for replacements a bit longer
+   * than their matches in total.
+   */
+  private static int getOutputLength( int aInputLength ) {
+    return (int) Math.min( Integer.MAX_VALUE - 16, (long) aInputLength + ( aInputLength >> 3 ) + 16 );
+  }
+  
+  /*
+   * Appends to aOutput the encoded chars of aChars in [aFrom, aTo). Each span is encoded on its own, a surrogate
+   * pair split by a match is replaced as String.getBytes() replaces a lone surrogate.
+   */
+  void encode( TCharOutput aChars, int aFrom, int aTo, TByteOutput aOutput ) {
+    if ( IS_UTF8 ) {
+      aOutput.encodeUtf8( aChars.fArray, aFrom, aTo );
+      return;
+    }
+    if ( ( aChars == fDecodedChars ) && ( ROUND_TRIP_TABLE != null ) ) {
+      aOutput.appendRoundTrip( fDecodedContent, aFrom, aTo, IS_ROUND_TRIP_IDENTITY ? null : ROUND_TRIP_TABLE );
+      return;
+    }
+    if ( ( ENCODE_TABLE == null ) && ! IS_ASCII_COMPATIBLE ) {
+      if ( aFrom < aTo ) {
+        aOutput.encode( fEncoder, aChars.getSpan( aFrom, aTo ) );
+      }
+      return;
+    }
+    // The chars of the table (or the ASCII chars) are copied, the encoder only sees the runs of other chars.
+    aOutput.ensureCapacity( aTo - aFrom );
+    char[] l_array = aChars.fArray;
+    int l_index = aFrom;
+    while ( l_index < aTo ) {
+      l_index = aOutput.appendMapped( l_array, l_index, aTo, ENCODE_TABLE );
+      int l_runStart = l_index;
+      while ( ( l_index < aTo ) && ! isMapped( l_array[ l_index ] ) ) {
+        ++l_index;
+      }
+      if ( l_runStart < l_index ) {
+        aOutput.encode( fEncoder, aChars.getSpan( l_runStart, l_index ) );
+      }
+    }
+  }
+  
+  private static boolean isMapped( char aChar ) {
+    return ( ENCODE_TABLE != null ) ? ! Character.isSurrogate( aChar ) : ( aChar < 0x80 );
+  }
+  
+  /*
+   * Drops the buffers grown past MAX_RETAINED_LENGTH, to be called once the target file is processed.
+   */
+  public void release() {
+    fReplacedOutput = null;
+    fDecodedContent = null;
+    fContentLength = 0;
+    if ( fContent.length > MAX_RETAINED_LENGTH ) {
+      fContent = new byte[ INITIAL_LENGTH ];
+      fContentBuffer = null;
+    }
+    if ( fLiteralOutput.getBuffer().length > MAX_RETAINED_LENGTH ) {
+      fLiteralOutput = new TByteOutput();
+    }
+    if ( fOutput.getBuffer().length > MAX_RETAINED_LENGTH ) {
+      fOutput = new TByteOutput();
+    }
+    if ( fDecodedChars.fArray.length > MAX_RETAINED_LENGTH ) {
+      fDecodedChars = new TCharOutput();
+    }
+    if ( fReplacedChars.fArray.length > MAX_RETAINED_LENGTH ) {
+      fReplacedChars = new TCharOutput();
+    }
+    if ( fOtherReplacedChars.fArray.length > MAX_RETAINED_LENGTH ) {
+      fOtherReplacedChars = new TCharOutput();
+    }
+  }
+  
+}
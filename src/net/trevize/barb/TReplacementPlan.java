@@ -0,0 +1,692 @@
+package net.trevize.barb;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.UncheckedIOException;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+/*
+ * The compiled set of pattern/replacement pairs applied to every target file.
+ *
+ * The literal pairs are applied first, in a single pass on the raw bytes: with a Boyer-Moore-Horspool matcher
+ * when there is one literal, with an Aho-Corasick automaton (leftmost-longest) otherwise. The regular expression
+ * pairs are then applied on the decoded content, consecutive regular expressions being combined into a single
+ * alternation whenever possible; at a given index the first listed regular expression which matches wins.
+ * Within a pass the inserted replacements are not searched again. A regular expression pass is skipped without
+ * decoding the content when none of the literals required by its regular expressions is found in the raw bytes.
+ *
+ * The regular expressions are given a time budget per target file: past aRegexTimeoutNanos (when positive) the
+ * search throws a TDeadlineCharSequence.TRegexTimeoutException and the target file is left as it is. With the
+ * automaton engine the passes TAutomatonRegex supports are searched in linear time instead, except by
+ * containsMatch() which needs the partial match information of java.util.regex.
+ *
+ * An instance is immutable once compiled and can be shared by the worker threads.
+ */
+public class TReplacementPlan {
+  
+  /*
+   * A pass of one or several regular expressions combined into an alternation, each of them being wrapped into
+   * a capturing group whose index is used to find the replacement of a match.
+   */
+  private static class TRegexPass {
+    
+    private Pattern         fPattern         = null;
+    private TAutomatonRegex fAutomaton       = null;
+    private List<String>    fRegexList       = new ArrayList<>();
+    private List<Integer>   fGroupIndexList  = new ArrayList<>();
+    private List<String>    fReplacementList = new ArrayList<>();
+    
+    private char[][] fReplacementCharsArray = null;
+    private byte[][] fReplacementBytesArray = null;
+    
+    private TByteLiteralMatcher fPrefilterMatcher      = null;
+    private TAhoCorasickMatcher fPrefilterMultiMatcher = null;
+    
+    /*
+     * Returns false if the raw content contains none of the literals required by the regular expressions of
+     * the pass, in which case the pass cannot match.
+     */
+    public boolean mayMatch( byte[] aContent, int aLength ) {
+      if ( fPrefilterMatcher != null ) {
+        return fPrefilterMatcher.indexOf( aContent, 0, aLength ) >= 0;
+      }
+      if ( fPrefilterMultiMatcher != null ) {
+        return fPrefilterMultiMatcher.find( aContent, 0, aLength, new int[ 1 ] ) >= 0;
+      }
+      return true;
+    }
+    
+    /*
+     * The replacements are converted once, to chars for the passes followed by other passes and to bytes encoded
+     * with the platform charset for the last pass.
+     */
+    private void buildReplacements() {
+      fReplacementCharsArray = new char[ fReplacementList.size() ][];
+      fReplacementBytesArray = new byte[ fReplacementList.size() ][];
+      for ( int l_ruleIndex = 0; l_ruleIndex < fReplacementList.size(); ++l_ruleIndex ) {
+        fReplacementCharsArray[ l_ruleIndex ] = fReplacementList.get( l_ruleIndex ).toCharArray();
+        fReplacementBytesArray[ l_ruleIndex ] = fReplacementList.get( l_ruleIndex ).getBytes();
+      }
+    }
+    
+    private void buildPrefilter() {
+      CharsetEncoder l_encoder = Charset.defaultCharset().newEncoder();
+      List<byte[]> l_requiredLiteralList = new ArrayList<>();
+      for ( String l_regex : fRegexList ) {
+        List<String> l_regexRequiredLiteralList = TRequiredLiteralExtractor.extract( l_regex );
+        if ( l_regexRequiredLiteralList == null ) {
+          return;
+        }
+        for ( String l_requiredLiteral : l_regexRequiredLiteralList ) {
+          // The replacement char stands for undecodable bytes, which an encoded literal would not match.
+          if ( ! l_encoder.canEncode( l_requiredLiteral ) || ( l_requiredLiteral.indexOf( '\uFFFD' ) >= 0 ) ) {
+            return;
+          }
+          l_requiredLiteralList.add( l_requiredLiteral.getBytes() );
+        }
+      }
+      if ( l_requiredLiteralList.size() == 1 ) {
+        fPrefilterMatcher = new TByteLiteralMatcher( l_requiredLiteralList.get( 0 ) );
+      }
+      else {
+        fPrefilterMultiMatcher = new TAhoCorasickMatcher( l_requiredLiteralList.toArray( new byte[ 0 ][] ) );
+      }
+    }
+    
+    /*
+     * Returns a matcher of the automaton engine when the pass was compiled for it and the text has no
+     * surrogates, a matcher of java.util.regex otherwise.
+     */
+    public TRegexMatcher matcher( CharSequence aText ) {
+      if ( fAutomaton != null ) {
+        TAutomatonMatcher l_matcher = fAutomaton.matcher( aText );
+        if ( l_matcher != null ) {
+          return l_matcher;
+        }
+      }
+      return TRegexMatcher.of( fPattern.matcher( aText ) );
+    }
+    
+    /*
+     * Returns the index of the regular expression of the pass which found the current match of aMatcher.
+     */
+    public int getRuleIndex( TRegexMatcher aMatcher ) {
+      if ( fReplacementList.size() == 1 ) {
+        return 0;
+      }
+      for ( int l_ruleIndex = 0; l_ruleIndex < fGroupIndexList.size(); ++l_ruleIndex ) {
+        if ( aMatcher.start( fGroupIndexList.get( l_ruleIndex ) ) >= 0 ) {
+          return l_ruleIndex;
+        }
+      }
+      throw new IllegalStateException( "No alternative of the combined regular expression matched" );
+    }
+    
+  }
+  
+  /*
+   * The size of the chunks read by containsMatch(), and the initial size of its char buffer.
+   */
+  public static final int CHUNK_SIZE = 1 << 16;
+  
+  private static final Pattern BACK_REFERENCE_PATTERN = Pattern.compile( "\\\\[1-9]|\\\\k<" );
+  
+  private int                 fRegexFlags              = 0;
+  private List<byte[]>        fLiteralList             = new ArrayList<>();
+  private List<byte[]>        fLiteralReplacementList  = new ArrayList<>();
+  private List<String>        fRegexList               = new ArrayList<>();
+  private List<String>        fRegexReplacementList    = new ArrayList<>();
+  private TByteLiteralMatcher fLiteralMatcher          = null;
+  private TAhoCorasickMatcher fMultiLiteralMatcher     = null;
+  private byte[][]            fLiteralReplacementArray = null;
+  private List<TRegexPass>    fRegexPassList           = null;
+  private boolean             fIsAutomatonEngine       = false;
+  private List<String>        fAutomatonFallbackList   = new ArrayList<>();
+  
+  public TReplacementPlan( int aRegexFlags ) {
+    fRegexFlags = aRegexFlags;
+  }
+  
+  public void addLiteral( byte[] aLiteral, byte[] aReplacement ) {
+    if ( aLiteral.length == 0 ) {
+      throw new IllegalArgumentException( "Cannot search for an empty literal" );
+    }
+    fLiteralList.add( aLiteral );
+    fLiteralReplacementList.add( aReplacement );
+  }
+  
+  /*
+   * The regular expression is compiled on its own, so that a syntax error is reported for this pair.
+   */
+  public void addRegex( String aRegex, String aReplacement ) throws PatternSyntaxException {
+    Pattern.compile( aRegex, fRegexFlags );
+    fRegexList.add( aRegex );
+    fRegexReplacementList.add( aReplacement );
+  }
+  
+  public int getRuleCount() {
+    return fLiteralList.size() + fRegexList.size();
+  }
+  
+  public boolean isSingleLiteral() {
+    return ( fLiteralList.size() == 1 ) && fRegexList.isEmpty();
+  }
+  
+  public boolean isSingleRegex() {
+    return fLiteralList.isEmpty() && ( fRegexList.size() == 1 );
+  }
+  
+  public TByteLiteralMatcher getLiteralMatcher() {
+    return fLiteralMatcher;
+  }
+  
+  public byte[] getLiteralReplacement( int aLiteralIndex ) {
+    return fLiteralReplacementArray[ aLiteralIndex ];
+  }
+  
+  public Pattern getRegexPattern( int aRegexIndex ) {
+    return Pattern.compile( fRegexList.get( aRegexIndex ), fRegexFlags );
+  }
+  
+  public int getRegexCount() {
+    return fRegexList.size();
+  }
+  
+  public String getRegex( int aRegexIndex ) {
+    return fRegexList.get( aRegexIndex );
+  }
+  
+  public String getRegexReplacement( int aRegexIndex ) {
+    return fRegexReplacementList.get( aRegexIndex );
+  }
+  
+  /*
+   * Returns a hash of everything the result of the plan depends on: the pairs in their order, the regular
+   * expression flags and the platform charset. Two plans with the same fingerprint replace the same content.
+   */
+  public long getFingerprint() {
+    MessageDigest l_digest = null;
+    try {
+      l_digest = MessageDigest.getInstance( "SHA-256" );
+    }
+    catch ( NoSuchAlgorithmException l_exception ) {
+      throw new IllegalStateException( l_exception );
+    }
+    updateDigest( l_digest, Charset.defaultCharset().name().getBytes( StandardCharsets.UTF_8 ) );
+    updateDigest( l_digest, Integer.toString( fRegexFlags ).getBytes( StandardCharsets.UTF_8 ) );
+    for ( int l_literalIndex = 0; l_literalIndex < fLiteralList.size(); ++l_literalIndex ) {
+      updateDigest( l_digest, new byte[] { 'l' } );
+      updateDigest( l_digest, fLiteralList.get( l_literalIndex ) );
+      updateDigest( l_digest, fLiteralReplacementList.get( l_literalIndex ) );
+    }
+    for ( int l_regexIndex = 0; l_regexIndex < fRegexList.size(); ++l_regexIndex ) {
+      updateDigest( l_digest, new byte[] { 'r' } );
+      updateDigest( l_digest, fRegexList.get( l_regexIndex ).getBytes( StandardCharsets.UTF_8 ) );
+      updateDigest( l_digest, fRegexReplacementList.get( l_regexIndex ).getBytes( StandardCharsets.UTF_8 ) );
+    }
+    byte[] l_hash = l_digest.digest();
+    long l_fingerprint = 0;
+    for ( int l_byteIndex = 0; l_byteIndex < 8; ++l_byteIndex ) {
+      l_fingerprint = ( l_fingerprint << 8 ) | ( l_hash[ l_byteIndex ] & 0xff );
+    }
+    return l_fingerprint;
+  }
+  
+  /*
+   * The length prefix keeps the boundaries between the fields, ("ab", "c") and ("a", "bc") differ.
+   */
+  private static void updateDigest( MessageDigest aDigest, byte[] aBytes ) {
+    int l_length = aBytes.length;
+    aDigest.update( new byte[] { (byte) ( l_length >>> 24 ), (byte) ( l_length >>> 16 ), (byte) ( l_length >>> 8 ), (byte) l_length } );
+    aDigest.update( aBytes );
+  }
+  
+  public void compile() {
+    fLiteralReplacementArray = fLiteralReplacementList.toArray( new byte[ 0 ][] );
+    if ( fLiteralList.size() == 1 ) {
+      fLiteralMatcher = new TByteLiteralMatcher( fLiteralList.get( 0 ) );
+    }
+    else if ( fLiteralList.size() > 1 ) {
+      fMultiLiteralMatcher = new TAhoCorasickMatcher( fLiteralList.toArray( new byte[ 0 ][] ) );
+    }
+    
+    fRegexPassList = new ArrayList<>();
+    TRegexPass l_regexPass = null;
+    StringBuilder l_combinedRegex = null;
+    int l_groupCount = 0;
+    for ( int l_regexIndex = 0; l_regexIndex < fRegexList.size(); ++l_regexIndex ) {
+      String l_regex = fRegexList.get( l_regexIndex );
+      String l_replacement = fRegexReplacementList.get( l_regexIndex );
+      // A back reference designates a group by its index, the regular expression gets its own pass.
+      boolean l_isCombinable = ! BACK_REFERENCE_PATTERN.matcher( l_regex ).find();
+      if ( ( l_regexPass != null ) && l_isCombinable ) {
+        String l_candidateRegex = l_combinedRegex + "|(" + l_regex + ")";
+        try {
+          Pattern l_candidatePattern = Pattern.compile( l_candidateRegex, fRegexFlags );
+          l_regexPass.fPattern = l_candidatePattern;
+          l_regexPass.fRegexList.add( l_regex );
+          l_regexPass.fGroupIndexList.add( l_groupCount + 1 );
+          l_regexPass.fReplacementList.add( l_replacement );
+          l_combinedRegex.setLength( 0 );
+          l_combinedRegex.append( l_candidateRegex );
+          l_groupCount = l_candidatePattern.matcher( "" ).groupCount();
+          continue;
+        }
+        catch ( PatternSyntaxException l_exception ) {
+          // For example a named group defined by two regular expressions, a new pass is started.
+        }
+      }
+      TRegexPass l_newRegexPass = new TRegexPass();
+      l_newRegexPass.fRegexList.add( l_regex );
+      l_newRegexPass.fReplacementList.add( l_replacement );
+      if ( l_isCombinable ) {
+        try {
+          l_newRegexPass.fPattern = Pattern.compile( "(" + l_regex + ")", fRegexFlags );
+        }
+        catch ( PatternSyntaxException l_exception ) {
+          // Valid alone but not in a group, as a \Q never closed by \E or a (?x) comment swallowing the ')'.
+          l_isCombinable = false;
+        }
+      }
+      if ( l_isCombinable ) {
+        l_combinedRegex = new StringBuilder( "(" + l_regex + ")" );
+        l_newRegexPass.fGroupIndexList.add( 1 );
+        l_groupCount = l_newRegexPass.fPattern.matcher( "" ).groupCount();
+        l_regexPass = l_newRegexPass;
+      }
+      else {
+        l_newRegexPass.fPattern = Pattern.compile( l_regex, fRegexFlags );
+        l_newRegexPass.fGroupIndexList.add( 0 );
+        l_regexPass = null;
+      }
+      fRegexPassList.add( l_newRegexPass );
+    }
+    // A pass left with a single regular expression does not need the wrapping group.
+    for ( TRegexPass l_singleRegexPass : fRegexPassList ) {
+      if ( l_singleRegexPass.fRegexList.size() == 1 ) {
+        l_singleRegexPass.fPattern = Pattern.compile( l_singleRegexPass.fRegexList.get( 0 ), fRegexFlags );
+        l_singleRegexPass.fGroupIndexList.set( 0, 0 );
+      }
+    }
+    for ( TRegexPass l_prefilteredRegexPass : fRegexPassList ) {
+      l_prefilteredRegexPass.buildPrefilter();
+      l_prefilteredRegexPass.buildReplacements();
+    }
+    if ( fIsAutomatonEngine ) {
+      for ( TRegexPass l_automatonRegexPass : fRegexPassList ) {
+        try {
+          l_automatonRegexPass.fAutomaton = TAutomatonRegex.compile( l_automatonRegexPass.fPattern.pattern(), fRegexFlags );
+        }
+        catch ( TAutomatonRegex.TUnsupportedRegexException l_exception ) {
+          fAutomatonFallbackList.add( String.format( "Pattern[%s] left to java.util.regex, %s", l_automatonRegexPass.fPattern.pattern(), l_exception.getMessage() ) );
+        }
+      }
+    }
+  }
+  
+  /*
+   * With the automaton engine, the regular expressions are searched in linear time by TAutomatonMatcher, except
+   * those TAutomatonRegex does not support. Must be set before compile().
+   */
+  public void setAutomatonEngine( boolean aIsAutomatonEngine ) {
+    fIsAutomatonEngine = aIsAutomatonEngine;
+  }
+  
+  public boolean isAutomatonEngine() {
+    return fIsAutomatonEngine;
+  }
+  
+  /*
+   * Returns the reasons why the passes compiled for the automaton engine were left to java.util.regex.
+   */
+  public List<String> getAutomatonFallbackList() {
+    return fAutomatonFallbackList;
+  }
+  
+  public int getRegexPassCount() {
+    return fRegexPassList.size();
+  }
+  
+  /*
+   * Estimates the heap bytes held by the buffers of TReplacementBuffers per byte of a target file replaced in
+   * memory: the content, the literal output, the decoded chars (two bytes per char), the replaced chars of the
+   * passes before the last one (two buffers at most) and the encoded output. One more for a buffer grown when
+   * the replacements are longer than their matches.
+   */
+  public int getHeapBytesPerContentByte() {
+    int l_length = 2;
+    if ( ( fLiteralMatcher != null ) || ( fMultiLiteralMatcher != null ) ) {
+      l_length += 1;
+    }
+    if ( ! fRegexPassList.isEmpty() ) {
+      l_length += 2 + 2 * Math.min( fRegexPassList.size() - 1, 2 ) + 1;
+    }
+    return l_length;
+  }
+  
+  /*
+   * Returns the replaced content, or null if no pair matched.
+   */
+  public byte[] replace( byte[] aContent, long aRegexTimeoutNanos, TStatistics aStatistics ) {
+    TReplacementBuffers l_buffers = TReplacementBuffers.get();
+    try {
+      l_buffers.setContent( aContent );
+      if ( ! replace( l_buffers, aRegexTimeoutNanos, aStatistics ) ) {
+        return null;
+      }
+      return l_buffers.getReplacedOutput().toByteArray();
+    }
+    finally {
+      l_buffers.release();
+    }
+  }
+  
+  /*
+   * Replaces the content of aBuffers, returns false if no pair matched. Otherwise the replaced content is left in
+   * aBuffers.getReplacedOutput().
+   *
+   * The literal pairs copy the unchanged spans and their replacements from byte array to byte array. The passes
+   * of regular expressions followed by another pass copy the chars the same way, the last pass encodes its
+   * unchanged spans directly into the output and copies the encoded bytes of its replacements: the content is
+   * only encoded once, and not at all when the regular expressions do not match.
+   */
+  public boolean replace( TReplacementBuffers aBuffers, long aRegexTimeoutNanos, TStatistics aStatistics ) {
+    byte[] l_content = aBuffers.getContent();
+    int l_contentLength = aBuffers.getContentLength();
+    TReplacementBuffers.TByteOutput l_replacedOutput = null;
+    
+    long l_startNanoTime = aStatistics.startTimer();
+    TReplacementBuffers.TByteOutput l_literalOutput = replaceLiterals( l_content, l_contentLength, aBuffers, aStatistics );
+    aStatistics.stopTimer( TStatistics.TPhase.LITERAL_SEARCH, l_startNanoTime );
+    if ( l_literalOutput != null ) {
+      l_replacedOutput = l_literalOutput;
+      l_content = l_literalOutput.getBuffer();
+      l_contentLength = l_literalOutput.getLength();
+    }
+    
+    if ( ! fRegexPassList.isEmpty() ) {
+      long l_regexStartNanoTime = System.nanoTime();
+      TReplacementBuffers.TCharOutput l_chars = null;
+      boolean l_foundRegexMatch = false;
+      boolean l_isEncoded = false;
+      for ( int l_passIndex = 0; l_passIndex < fRegexPassList.size(); ++l_passIndex ) {
+        TRegexPass l_regexPass = fRegexPassList.get( l_passIndex );
+        // Once a pass has replaced something, the required literals of the next passes may come from its
+        // replacements: the prefilter only applies to the content as read (and literal-replaced).
+        if ( ! l_foundRegexMatch ) {
+          l_startNanoTime = aStatistics.startTimer();
+          boolean l_mayMatch = l_regexPass.mayMatch( l_content, l_contentLength );
+          aStatistics.stopTimer( TStatistics.TPhase.PREFILTER, l_startNanoTime );
+          if ( ! l_mayMatch ) {
+            continue;
+          }
+        }
+        if ( l_chars == null ) {
+          l_startNanoTime = aStatistics.startTimer();
+          l_chars = aBuffers.decode( l_content, l_contentLength );
+          aStatistics.stopTimer( TStatistics.TPhase.DECODE, l_startNanoTime );
+        }
+        // Without span encoding the last pass also writes chars, encoded at once below.
+        boolean l_isLastPass = ( l_passIndex == fRegexPassList.size() - 1 ) && TReplacementBuffers.isSpanEncodable();
+        TReplacementBuffers.TCharOutput l_replacedChars = l_isLastPass ? null : aBuffers.getReplacedChars( l_chars );
+        TReplacementBuffers.TByteOutput l_output = l_isLastPass ? aBuffers.getOutput() : null;
+        l_startNanoTime = aStatistics.startTimer();
+        boolean l_foundPassMatch = false;
+        try {
+          l_foundPassMatch = replaceRegex( l_regexPass, l_chars, TDeadlineCharSequence.wrap( l_chars, aRegexTimeoutNanos, l_regexStartNanoTime ), l_replacedChars, l_output, aBuffers, aStatistics );
+        }
+        finally {
+          // Also counts the time spent until a timeout.
+          aStatistics.stopTimer( TStatistics.TPhase.REGEX_SEARCH, l_startNanoTime );
+        }
+        if ( l_foundPassMatch ) {
+          l_foundRegexMatch = true;
+          if ( l_isLastPass ) {
+            l_replacedOutput = l_output;
+            l_isEncoded = true;
+          }
+          else {
+            l_chars = l_replacedChars;
+          }
+        }
+      }
+      if ( l_foundRegexMatch && ! l_isEncoded ) {
+        l_startNanoTime = aStatistics.startTimer();
+        l_replacedOutput = aBuffers.getOutput();
+        aBuffers.encode( l_chars, 0, l_chars.length(), l_replacedOutput );
+        aStatistics.stopTimer( TStatistics.TPhase.ENCODE, l_startNanoTime );
+      }
+    }
+    
+    aBuffers.setReplacedOutput( l_replacedOutput );
+    return l_replacedOutput != null;
+  }
+  
+  private TReplacementBuffers.TByteOutput replaceLiterals( byte[] aContent, int aLength, TReplacementBuffers aBuffers, TStatistics aStatistics ) {
+    if ( fLiteralMatcher != null ) {
+      int l_firstMatchIndex = fLiteralMatcher.indexOf( aContent, 0, aLength );
+      if ( l_firstMatchIndex < 0 ) {
+        return null;
+      }
+      TReplacementBuffers.TByteOutput l_output = aBuffers.getLiteralOutput();
+      try {
+        aStatistics.add( TStatistics.TCounter.MATCHES, fLiteralMatcher.writeReplaced( aContent, 0, aLength, l_firstMatchIndex, fLiteralReplacementArray[ 0 ], l_output ) );
+      }
+      catch ( IOException l_exception ) {
+        throw new UncheckedIOException( l_exception );
+      }
+      return l_output;
+    }
+    if ( fMultiLiteralMatcher != null ) {
+      int[] l_literalIndexHolder = new int[ 1 ];
+      int l_matchIndex = fMultiLiteralMatcher.find( aContent, 0, aLength, l_literalIndexHolder );
+      if ( l_matchIndex < 0 ) {
+        return null;
+      }
+      TReplacementBuffers.TByteOutput l_output = aBuffers.getLiteralOutput();
+      int l_position = 0;
+      while ( l_matchIndex >= 0 ) {
+        aStatistics.increment( TStatistics.TCounter.MATCHES );
+        l_output.write( aContent, l_position, l_matchIndex - l_position );
+        l_output.append( fLiteralReplacementArray[ l_literalIndexHolder[ 0 ] ] );
+        l_position = l_matchIndex + fMultiLiteralMatcher.getLiteralLength( l_literalIndexHolder[ 0 ] );
+        l_matchIndex = fMultiLiteralMatcher.find( aContent, l_position, aLength, l_literalIndexHolder );
+      }
+      l_output.write( aContent, l_position, aLength - l_position );
+      return l_output;
+    }
+    return null;
+  }
+  
+  /*
+   * aMatchedContent is aContent, wrapped when the search has a deadline. The replaced content goes to
+   * aReplacedChars, or encoded to aOutput when aReplacedChars is null. Returns false, having written nothing, if
+   * the pass does not match.
+   */
+  private boolean replaceRegex( TRegexPass aRegexPass, TReplacementBuffers.TCharOutput aContent, CharSequence aMatchedContent, TReplacementBuffers.TCharOutput aReplacedChars, TReplacementBuffers.TByteOutput aOutput, TReplacementBuffers aBuffers, TStatistics aStatistics ) {
+    TRegexMatcher l_matcher = aRegexPass.matcher( aMatchedContent );
+    if ( ! l_matcher.find() ) {
+      return false;
+    }
+    int l_position = 0;
+    do {
+      aStatistics.increment( TStatistics.TCounter.MATCHES );
+      int l_ruleIndex = aRegexPass.getRuleIndex( l_matcher );
+      if ( aReplacedChars != null ) {
+        aReplacedChars.append( aContent, l_position, l_matcher.start() );
+        aReplacedChars.append( aRegexPass.fReplacementCharsArray[ l_ruleIndex ] );
+      }
+      else {
+        aBuffers.encode( aContent, l_position, l_matcher.start(), aOutput );
+        aOutput.append( aRegexPass.fReplacementBytesArray[ l_ruleIndex ] );
+      }
+      l_position = l_matcher.end();
+    }
+    while ( l_matcher.find() );
+    if ( aReplacedChars != null ) {
+      aReplacedChars.append( aContent, l_position, aContent.length() );
+    }
+    else {
+      aBuffers.encode( aContent, l_position, aContent.length(), aOutput );
+    }
+    return true;
+  }
+  
+  /*
+   * Counts the matches without building any replaced content. Every pass is searched in the content as read, so
+   * with several passes a match which would only appear after the replacements of an earlier pass is not
+   * counted.
+   */
+  public int countMatches( TReplacementBuffers aBuffers, long aRegexTimeoutNanos, TStatistics aStatistics ) {
+    byte[] l_content = aBuffers.getContent();
+    int l_contentLength = aBuffers.getContentLength();
+    int l_matchCount = 0;
+    long l_startNanoTime = aStatistics.startTimer();
+    if ( fLiteralMatcher != null ) {
+      int l_matchIndex = fLiteralMatcher.indexOf( l_content, 0, l_contentLength );
+      while ( l_matchIndex >= 0 ) {
+        ++l_matchCount;
+        l_matchIndex = fLiteralMatcher.indexOf( l_content, l_matchIndex + fLiteralMatcher.getLength(), l_contentLength );
+      }
+    }
+    else if ( fMultiLiteralMatcher != null ) {
+      int[] l_literalIndexHolder = new int[ 1 ];
+      int l_matchIndex = fMultiLiteralMatcher.find( l_content, 0, l_contentLength, l_literalIndexHolder );
+      while ( l_matchIndex >= 0 ) {
+        ++l_matchCount;
+        int l_position = l_matchIndex + fMultiLiteralMatcher.getLiteralLength( l_literalIndexHolder[ 0 ] );
+        l_matchIndex = fMultiLiteralMatcher.find( l_content, l_position, l_contentLength, l_literalIndexHolder );
+      }
+    }
+    aStatistics.stopTimer( TStatistics.TPhase.LITERAL_SEARCH, l_startNanoTime );
+    
+    long l_regexStartNanoTime = System.nanoTime();
+    TReplacementBuffers.TCharOutput l_decodedContent = null;
+    for ( TRegexPass l_regexPass : fRegexPassList ) {
+      l_startNanoTime = aStatistics.startTimer();
+      boolean l_mayMatch = l_regexPass.mayMatch( l_content, l_contentLength );
+      aStatistics.stopTimer( TStatistics.TPhase.PREFILTER, l_startNanoTime );
+      if ( ! l_mayMatch ) {
+        continue;
+      }
+      if ( l_decodedContent == null ) {
+        l_startNanoTime = aStatistics.startTimer();
+        l_decodedContent = aBuffers.decode( l_content, l_contentLength );
+        aStatistics.stopTimer( TStatistics.TPhase.DECODE, l_startNanoTime );
+      }
+      l_startNanoTime = aStatistics.startTimer();
+      TRegexMatcher l_matcher = l_regexPass.matcher( TDeadlineCharSequence.wrap( l_decodedContent, aRegexTimeoutNanos, l_regexStartNanoTime ) );
+      try {
+        while ( l_matcher.find() ) {
+          ++l_matchCount;
+        }
+      }
+      finally {
+        aStatistics.stopTimer( TStatistics.TPhase.REGEX_SEARCH, l_startNanoTime );
+      }
+    }
+    aStatistics.add( TStatistics.TCounter.MATCHES, l_matchCount );
+    return l_matchCount;
+  }
+  
+  /*
+   * Tells whether the plan would replace something in the file, reading it only until a first match is
+   * confirmed. A pass can only see the replacements of the previous passes if one of them matched, so the plan
+   * matches the file if and only if one of its passes matches the content as read.
+   *
+   * The literals are searched chunk by chunk, the end of a chunk which could be the beginning of a literal being
+   * carried over to the next one. The regular expressions are searched in the decoded prefix read so far, which
+   * is doubled as long as the matcher needs more input to decide: a match is only confirmed when the matcher
+   * did not hit the end of the prefix.
+   */
+  public boolean containsMatch( Path aPath, long aRegexTimeoutNanos, TStatistics aStatistics ) throws IOException {
+    if ( ( ( fLiteralMatcher != null ) || ( fMultiLiteralMatcher != null ) ) && containsLiteral( aPath, aStatistics ) ) {
+      return true;
+    }
+    return ! fRegexPassList.isEmpty() && containsRegexMatch( aPath, aRegexTimeoutNanos, aStatistics );
+  }
+  
+  private boolean containsLiteral( Path aPath, TStatistics aStatistics ) throws IOException {
+    int l_maxLiteralLength = 0;
+    for ( byte[] l_literal : fLiteralList ) {
+      l_maxLiteralLength = Math.max( l_maxLiteralLength, l_literal.length );
+    }
+    int l_overlapLength = l_maxLiteralLength - 1;
+    int[] l_literalIndexHolder = new int[ 1 ];
+    try ( InputStream l_inputStream = Files.newInputStream( aPath ) ) {
+      byte[] l_buffer = new byte[ CHUNK_SIZE + l_overlapLength ];
+      int l_length = 0;
+      while ( true ) {
+        long l_startNanoTime = aStatistics.startTimer();
+        int l_readLength = l_inputStream.read( l_buffer, l_length, l_buffer.length - l_length );
+        aStatistics.stopTimer( TStatistics.TPhase.READ, l_startNanoTime );
+        if ( l_readLength < 0 ) {
+          return false;
+        }
+        aStatistics.add( TStatistics.TCounter.READ_BYTES, l_readLength );
+        l_length += l_readLength;
+        l_startNanoTime = aStatistics.startTimer();
+        int l_matchIndex = ( fLiteralMatcher != null ) ? fLiteralMatcher.indexOf( l_buffer, 0, l_length ) : fMultiLiteralMatcher.find( l_buffer, 0, l_length, l_literalIndexHolder );
+        aStatistics.stopTimer( TStatistics.TPhase.LITERAL_SEARCH, l_startNanoTime );
+        if ( l_matchIndex >= 0 ) {
+          return true;
+        }
+        int l_keepLength = Math.min( l_overlapLength, l_length );
+        System.arraycopy( l_buffer, l_length - l_keepLength, l_buffer, 0, l_keepLength );
+        l_length = l_keepLength;
+      }
+    }
+  }
+  
+  private boolean containsRegexMatch( Path aPath, long aRegexTimeoutNanos, TStatistics aStatistics ) throws IOException {
+    long l_regexStartNanoTime = System.nanoTime();
+    try ( Reader l_reader = new InputStreamReader( Files.newInputStream( aPath ) ) ) {
+      char[] l_buffer = new char[ CHUNK_SIZE ];
+      int l_length = 0;
+      boolean l_endOfFile = false;
+      while ( true ) {
+        long l_startNanoTime = aStatistics.startTimer();
+        while ( ( l_length < l_buffer.length ) && ! l_endOfFile ) {
+          int l_readLength = l_reader.read( l_buffer, l_length, l_buffer.length - l_length );
+          if ( l_readLength < 0 ) {
+            l_endOfFile = true;
+          }
+          else {
+            l_length += l_readLength;
+          }
+        }
+        aStatistics.stopTimer( TStatistics.TPhase.DECODE, l_startNanoTime );
+        l_startNanoTime = aStatistics.startTimer();
+        CharSequence l_prefix = TDeadlineCharSequence.wrap( CharBuffer.wrap( l_buffer, 0, l_length ), aRegexTimeoutNanos, l_regexStartNanoTime );
+        for ( TRegexPass l_regexPass : fRegexPassList ) {
+          Matcher l_matcher = l_regexPass.fPattern.matcher( l_prefix );
+          if ( l_matcher.find() && ( l_endOfFile || ! l_matcher.hitEnd() ) ) {
+            aStatistics.stopTimer( TStatistics.TPhase.REGEX_SEARCH, l_startNanoTime );
+            return true;
+          }
+        }
+        aStatistics.stopTimer( TStatistics.TPhase.REGEX_SEARCH, l_startNanoTime );
+        if ( l_endOfFile ) {
+          return false;
+        }
+        l_buffer = Arrays.copyOf( l_buffer, l_buffer.length * 2 );
+      }
+    }
+  }
+  
+}
@@ -0,0 +1,364 @@
+package net.trevize.barb;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/*
+ * Extracts from a regular expression a set of literals such that any match contains at least one of them.
+ * Target files containing none of these literals cannot match and are rejected by a byte scan before being
+ * decoded.
+ *
+ * The analysis is conservative: a sequence keeps its best requirement (the longest run of mandatory chars, or
+ * the requirement of a mandatory group), an alternation requires one of the requirements of its branches. Char
+ * classes, '.', escapes standing for several chars, back references and lookarounds end a run of chars. Optional
+ * atoms are dropped. When no requirement can be found, or when an inline flag changes the meaning of the chars
+ * (case insensitivity, comments), extract() returns null.
+ */
+public class TRequiredLiteralExtractor {
+  
+  private static final int MAX_LITERAL_COUNT = 64;
+  
+  /*
+   * The requirement of a part of the regular expression: one of the literals of the set, or nothing known when
+   * the set is null.
+   */
+  private static class TRequirement {
+    
+    private Set<String> fLiteralSet = null;
+    
+    public TRequirement( Set<String> aLiteralSet ) {
+      fLiteralSet = aLiteralSet;
+    }
+    
+    public boolean isKnown() {
+      return fLiteralSet != null;
+    }
+    
+    public int getQuality() {
+      if ( fLiteralSet == null ) {
+        return 0;
+      }
+      int l_minLength = Integer.MAX_VALUE;
+      for ( String l_literal : fLiteralSet ) {
+        l_minLength = Math.min( l_minLength, l_literal.length() );
+      }
+      return l_minLength;
+    }
+    
+  }
+  
+  private static class TUnsupportedFlagException extends Exception {
+    
+    private static final long serialVersionUID = 1L;
+    
+  }
+  
+  private String fRegex = null;
+  private int    fIndex = 0;
+  
+  private TRequiredLiteralExtractor( String aRegex ) {
+    fRegex = aRegex;
+  }
+  
+  public static List<String> extract( String aRegex ) {
+    TRequiredLiteralExtractor l_extractor = new TRequiredLiteralExtractor( aRegex );
+    try {
+      TRequirement l_requirement = l_extractor.parseAlternation();
+      if ( ( l_extractor.fIndex < aRegex.length() ) || ! l_requirement.isKnown() ) {
+        return null;
+      }
+      if ( l_requirement.fLiteralSet.size() > MAX_LITERAL_COUNT ) {
+        return null;
+      }
+      return new ArrayList<>( l_requirement.fLiteralSet );
+    }
+    catch ( TUnsupportedFlagException | RuntimeException l_exception ) {
+      return null;
+    }
+  }
+  
+  private boolean hasNext() {
+    return fIndex < fRegex.length();
+  }
+  
+  private char peek() {
+    return fRegex.charAt( fIndex );
+  }
+  
+  private TRequirement parseAlternation() throws TUnsupportedFlagException {
+    Set<String> l_literalSet = new LinkedHashSet<>();
+    boolean l_isKnown = true;
+    while ( true ) {
+      TRequirement l_branchRequirement = parseSequence();
+      if ( l_branchRequirement.isKnown() ) {
+        l_literalSet.addAll( l_branchRequirement.fLiteralSet );
+      }
+      else {
+        l_isKnown = false;
+      }
+      if ( hasNext() && ( peek() == '|' ) ) {
+        ++fIndex;
+        continue;
+      }
+      break;
+    }
+    return new TRequirement( l_isKnown ? l_literalSet : null );
+  }
+  
+  /*
+   * Parses up to the end of the regular expression, a '|' or a ')' closing the current group.
+   */
+  private TRequirement parseSequence() throws TUnsupportedFlagException {
+    TRequirement l_bestRequirement = new TRequirement( null );
+    StringBuilder l_run = new StringBuilder();
+    while ( hasNext() && ( peek() != '|' ) && ( peek() != ')' ) ) {
+      char l_char = peek();
+      if ( l_char == '(' ) {
+        l_bestRequirement = best( l_bestRequirement, l_run );
+        l_run.setLength( 0 );
+        TRequirement l_groupRequirement = parseGroup();
+        if ( ! skipQuantifier() ) {
+          l_bestRequirement = best( l_bestRequirement, l_groupRequirement );
+        }
+        continue;
+      }
+      String l_literal = parseAtomLiteral();
+      if ( l_literal == null ) {
+        // The atom does not stand for a single known char, it ends the run.
+        l_bestRequirement = best( l_bestRequirement, l_run );
+        l_run.setLength( 0 );
+        skipQuantifier();
+        continue;
+      }
+      int l_quantifierStart = fIndex;
+      boolean l_isOptional = skipQuantifier();
+      boolean l_isRepeated = fIndex > l_quantifierStart;
+      if ( l_isOptional ) {
+        // Only the last char of a \Q...\E quote is optional.
+        l_run.append( l_literal, 0, l_literal.length() - 1 );
+        l_bestRequirement = best( l_bestRequirement, l_run );
+        l_run.setLength( 0 );
+      }
+      else if ( l_isRepeated ) {
+        l_run.append( l_literal );
+        l_bestRequirement = best( l_bestRequirement, l_run );
+        l_run.setLength( 0 );
+      }
+      else {
+        l_run.append( l_literal );
+      }
+    }
+    return best( l_bestRequirement, l_run );
+  }
+  
+  private static TRequirement best( TRequirement aRequirement, CharSequence aRun ) {
+    if ( aRun.length() == 0 ) {
+      return aRequirement;
+    }
+    Set<String> l_literalSet = new LinkedHashSet<>();
+    l_literalSet.add( aRun.toString() );
+    return best( aRequirement, new TRequirement( l_literalSet ) );
+  }
+  
+  private static TRequirement best( TRequirement aRequirement, TRequirement aOtherRequirement ) {
+    int l_otherQuality = aOtherRequirement.getQuality();
+    int l_quality = aRequirement.getQuality();
+    if ( ( l_otherQuality > l_quality ) || ( ( l_otherQuality == l_quality ) && ( l_quality > 0 ) && ( aOtherRequirement.fLiteralSet.size() < aRequirement.fLiteralSet.size() ) ) ) {
+      return aOtherRequirement;
+    }
+    return aRequirement;
+  }
+  
+  private TRequirement parseGroup() throws TUnsupportedFlagException {
+    ++fIndex;
+    boolean l_isLookaround = false;
+    if ( hasNext() && ( peek() == '?' ) ) {
+      ++fIndex;
+      char l_kind = peek();
+      if ( ( l_kind == '=' ) || ( l_kind == '!' ) ) {
+        l_isLookaround = true;
+        ++fIndex;
+      }
+      else if ( ( l_kind == '<' ) && ( ( fRegex.charAt( fIndex + 1 ) == '=' ) || ( fRegex.charAt( fIndex + 1 ) == '!' ) ) ) {
+        l_isLookaround = true;
+        fIndex += 2;
+      }
+      else if ( l_kind == '<' ) {
+        fIndex = fRegex.indexOf( '>', fIndex ) + 1;
+      }
+      else if ( ( l_kind == ':' ) || ( l_kind == '>' ) ) {
+        ++fIndex;
+      }
+      else {
+        // Inline flags, either (?flags) or (?flags:X).
+        int l_flagsEnd = fIndex;
+        while ( ( fRegex.charAt( l_flagsEnd ) != ')' ) && ( fRegex.charAt( l_flagsEnd ) != ':' ) ) {
+          ++l_flagsEnd;
+        }
+        String l_flags = fRegex.substring( fIndex, l_flagsEnd );
+        if ( l_flags.indexOf( 'i' ) >= 0 || l_flags.indexOf( 'x' ) >= 0 || l_flags.indexOf( 'u' ) >= 0 || l_flags.indexOf( 'U' ) >= 0 ) {
+          throw new TUnsupportedFlagException();
+        }
+        fIndex = l_flagsEnd;
+        if ( fRegex.charAt( fIndex ) == ')' ) {
+          ++fIndex;
+          return new TRequirement( null );
+        }
+        ++fIndex;
+      }
+    }
+    TRequirement l_requirement = parseAlternation();
+    if ( ! hasNext() || ( peek() != ')' ) ) {
+      throw new IllegalArgumentException( "Unbalanced group" );
+    }
+    ++fIndex;
+    return l_isLookaround ? new TRequirement( null ) : l_requirement;
+  }
+  
+  /*
+   * Skips the quantifier following an atom, if any, and returns true if the atom can be absent from a match.
+   */
+  private boolean skipQuantifier() {
+    if ( ! hasNext() ) {
+      return false;
+    }
+    boolean l_isOptional = false;
+    char l_char = peek();
+    if ( ( l_char == '*' ) || ( l_char == '?' ) ) {
+      l_isOptional = true;
+      ++fIndex;
+    }
+    else if ( l_char == '+' ) {
+      ++fIndex;
+    }
+    else if ( l_char == '{' ) {
+      int l_end = fRegex.indexOf( '}', fIndex );
+      String l_bounds = fRegex.substring( fIndex + 1, l_end );
+      int l_commaIndex = l_bounds.indexOf( ',' );
+      String l_min = ( l_commaIndex < 0 ) ? l_bounds : l_bounds.substring( 0, l_commaIndex );
+      l_isOptional = Integer.parseInt( l_min.trim() ) == 0;
+      fIndex = l_end + 1;
+    }
+    else {
+      return false;
+    }
+    // Lazy or possessive quantifier.
+    if ( hasNext() && ( ( peek() == '?' ) || ( peek() == '+' ) ) ) {
+      ++fIndex;
+    }
+    return l_isOptional;
+  }
+  
+  /*
+   * Parses an atom other than a group. Returns the chars it stands for, or null if it does not stand for a
+   * fixed string.
+   */
+  private String parseAtomLiteral() {
+    char l_char = peek();
+    ++fIndex;
+    switch ( l_char ) {
+      case '.':
+      case '^':
+      case '$':
+        return null;
+      case '[':
+        skipCharClass();
+        return null;
+      case '\\':
+        return parseEscape();
+      default:
+        return String.valueOf( l_char );
+    }
+  }
+  
+  private void skipCharClass() {
+    int l_depth = 1;
+    if ( hasNext() && ( peek() == '^' ) ) {
+      ++fIndex;
+    }
+    // A ']' right after the opening bracket is a char of the class.
+    if ( hasNext() && ( peek() == ']' ) ) {
+      ++fIndex;
+    }
+    while ( l_depth > 0 ) {
+      char l_char = fRegex.charAt( fIndex++ );
+      if ( l_char == '\\' ) {
+        ++fIndex;
+      }
+      else if ( l_char == '[' ) {
+        ++l_depth;
+      }
+      else if ( l_char == ']' ) {
+        --l_depth;
+      }
+    }
+  }
+  
+  private String parseEscape() {
+    char l_char = fRegex.charAt( fIndex++ );
+    switch ( l_char ) {
+      case 't':
+        return "\t";
+      case 'n':
+        return "\n";
+      case 'r':
+        return "\r";
+      case 'f':
+        return "\f";
+      case 'a':
+        return "\u0007";
+      case 'e':
+        return "\u001B";
+      case 'x':
+        if ( peek() == '{' ) {
+          int l_end = fRegex.indexOf( '}', fIndex );
+          String l_codePoint = new String( Character.toChars( Integer.parseInt( fRegex.substring( fIndex + 1, l_end ), 16 ) ) );
+          fIndex = l_end + 1;
+          return l_codePoint;
+        }
+        fIndex += 2;
+        return String.valueOf( (char) Integer.parseInt( fRegex.substring( fIndex - 2, fIndex ), 16 ) );
+      case 'u':
+        fIndex += 4;
+        return String.valueOf( (char) Integer.parseInt( fRegex.substring( fIndex - 4, fIndex ), 16 ) );
+      case 'Q': {
+        int l_end = fRegex.indexOf( "\\E", fIndex );
+        if ( l_end < 0 ) {
+          l_end = fRegex.length();
+        }
+        String l_quote = fRegex.substring( fIndex, l_end );
+        fIndex = Math.min( fRegex.length(), l_end + 2 );
+        return l_quote.isEmpty() ? null : l_quote;
+      }
+      case 'p':
+      case 'P':
+        if ( hasNext() && ( peek() == '{' ) ) {
+          fIndex = fRegex.indexOf( '}', fIndex ) + 1;
+        }
+        else {
+          ++fIndex;
+        }
+        return null;
+      case 'k':
+        fIndex = fRegex.indexOf( '>', fIndex ) + 1;
+        return null;
+      case 'c':
+        ++fIndex;
+        return null;
+      default:
+        if ( Character.isLetterOrDigit( l_char ) ) {
+          // Predefined classes, boundaries, back references, octal escapes...
+          if ( l_char == '0' ) {
+            while ( hasNext() && ( peek() >= '0' ) && ( peek() <= '7' ) ) {
+              ++fIndex;
+            }
+          }
+          return null;
+        }
+        return String.valueOf( l_char );
+    }
+  }
+  
+}
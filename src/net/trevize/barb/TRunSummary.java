@@ -0,0 +1,192 @@
+package net.trevize.barb;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+
+/*
+ * The summary of a run written with --summary, meant to be merged with the summaries of the other shards of the
+ * same sweep by --merge-summaries. A text file with one Key[value] per line:
+ *   Shard[I/N]                  absent when the run was not sharded;
+ *   scannedFiles[12] ...        the counters of the run, named as in the JSON statistics;
+ *   MatchedFile[PATH] ...       the target files with a match, sorted;
+ *   FailedFile[PATH] ...        the target files which could not be processed, sorted.
+ * The summary is written to a temporary file which then replaces SUMMARY_FILE, a run which stopped on a fatal
+ * error writes none: its shard is reported missing by the merge. With --watch it is written again after each
+ * batch and covers the whole run: the counters add up the sweep and the batches, a target file processed by
+ * several batches is counted each time but listed once.
+ */
+public class TRunSummary {
+  
+  private static final String SHARD_KEY        = "Shard";
+  private static final String MATCHED_FILE_KEY = "MatchedFile";
+  private static final String FAILED_FILE_KEY  = "FailedFile";
+  
+  private TShard      fShard              = null;
+  private Set<String> fMatchedFilePathSet = ConcurrentHashMap.newKeySet();
+  private Set<String> fFailedFilePathSet  = new TreeSet<>();
+  
+  public TRunSummary( TShard aShard ) {
+    fShard = aShard;
+  }
+  
+  /*
+   * Called by the worker threads.
+   */
+  public void addMatchedFile( String aTargetFilePath ) {
+    fMatchedFilePathSet.add( aTargetFilePath );
+  }
+  
+  /*
+   * aFailureList is added to the failures of the previous batches.
+   */
+  public void write( File aSummaryFile, TStatistics aStatistics, List<TTargetFileDispatcher.TTargetFileFailure> aFailureList ) throws IOException {
+    StringBuilder l_summary = new StringBuilder();
+    if ( fShard != null ) {
+      appendLine( l_summary, SHARD_KEY, fShard.toString() );
+    }
+    for ( TStatistics.TCounter l_counter : TStatistics.TCounter.values() ) {
+      appendLine( l_summary, l_counter.getJsonName(), String.valueOf( aStatistics.get( l_counter ) ) );
+    }
+    List<String> l_matchedFilePathList = new ArrayList<>( fMatchedFilePathSet );
+    Collections.sort( l_matchedFilePathList );
+    for ( String l_matchedFilePath : l_matchedFilePathList ) {
+      appendLine( l_summary, MATCHED_FILE_KEY, l_matchedFilePath );
+    }
+    for ( TTargetFileDispatcher.TTargetFileFailure l_failure : aFailureList ) {
+      fFailedFilePathSet.add( l_failure.getTargetFilePath() );
+    }
+    for ( String l_failedFilePath : fFailedFilePathSet ) {
+      appendLine( l_summary, FAILED_FILE_KEY, l_failedFilePath );
+    }
+    Path l_summaryPath = aSummaryFile.getAbsoluteFile().toPath();
+    Path l_temporaryPath = Files.createTempFile( l_summaryPath.getParent(), "." + l_summaryPath.getFileName(), ".barb" );
+    try {
+      Files.write( l_temporaryPath, l_summary.toString().getBytes( StandardCharsets.UTF_8 ) );
+      try {
+        Files.move( l_temporaryPath, l_summaryPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE );
+      }
+      catch ( AtomicMoveNotSupportedException l_exception ) {
+        Files.move( l_temporaryPath, l_summaryPath, StandardCopyOption.REPLACE_EXISTING );
+      }
+    }
+    finally {
+      Files.deleteIfExists( l_temporaryPath );
+    }
+  }
+  
+  /*
+   * Merges the summaries of the shards of a sweep: the counters are summed and the file lists concatenated, the
+   * merged summary is printed to aOut in the same format. Returns false after printing the problems to aErr if
+   * the summaries do not cover each shard exactly once, or if some target file failed.
+   */
+  public static boolean merge( List<File> aSummaryFileList, PrintStream aOut, PrintStream aErr ) throws Exception {
+    Map<String, Long> l_counterMap = new LinkedHashMap<>();
+    for ( TStatistics.TCounter l_counter : TStatistics.TCounter.values() ) {
+      l_counterMap.put( l_counter.getJsonName(), 0L );
+    }
+    List<String> l_matchedFilePathList = new ArrayList<>();
+    List<String> l_failedFilePathList = new ArrayList<>();
+    Map<Integer, File> l_shardFileMap = new TreeMap<>();
+    int l_shardCount = 0;
+    int l_unshardedCount = 0;
+    boolean l_isComplete = true;
+    for ( File l_summaryFile : aSummaryFileList ) {
+      TShard l_shard = null;
+      List<String> l_lineList = Files.readAllLines( l_summaryFile.toPath(), StandardCharsets.UTF_8 );
+      for ( int l_lineIndex = 0; l_lineIndex < l_lineList.size(); ++l_lineIndex ) {
+        String l_line = l_lineList.get( l_lineIndex );
+        if ( l_line.isEmpty() ) {
+          continue;
+        }
+        int l_openIndex = l_line.indexOf( '[' );
+        if ( ( l_openIndex < 1 ) || ! l_line.endsWith( "]" ) ) {
+          throw new Exception( String.format( "Invalid line[%d] in SummaryFile[%s]", l_lineIndex + 1, l_summaryFile ) );
+        }
+        String l_key = l_line.substring( 0, l_openIndex );
+        String l_value = l_line.substring( l_openIndex + 1, l_line.length() - 1 );
+        if ( l_key.equals( SHARD_KEY ) ) {
+          l_shard = TShard.parse( l_value );
+          if ( l_shard == null ) {
+            throw new Exception( String.format( "Invalid Shard[%s] in SummaryFile[%s]", l_value, l_summaryFile ) );
+          }
+        }
+        else if ( l_key.equals( MATCHED_FILE_KEY ) ) {
+          l_matchedFilePathList.add( l_value );
+        }
+        else if ( l_key.equals( FAILED_FILE_KEY ) ) {
+          l_failedFilePathList.add( l_value );
+        }
+        else {
+          long l_count = 0;
+          try {
+            l_count = Long.parseLong( l_value );
+          }
+          catch ( NumberFormatException l_exception ) {
+            throw new Exception( String.format( "Invalid line[%d] in SummaryFile[%s]", l_lineIndex + 1, l_summaryFile ) );
+          }
+          Long l_total = l_counterMap.get( l_key );
+          l_counterMap.put( l_key, ( l_total == null ) ? l_count : l_total + l_count );
+        }
+      }
+      if ( l_shard == null ) {
+        ++l_unshardedCount;
+        continue;
+      }
+      if ( ( l_shardCount != 0 ) && ( l_shard.getCount() != l_shardCount ) ) {
+        aErr.println( String.format( "Shard[%s] of SummaryFile[%s] does not split the sweep in %d shards", l_shard, l_summaryFile, l_shardCount ) );
+        l_isComplete = false;
+        continue;
+      }
+      l_shardCount = l_shard.getCount();
+      File l_otherSummaryFile = l_shardFileMap.put( l_shard.getIndex(), l_summaryFile );
+      if ( l_otherSummaryFile != null ) {
+        aErr.println( String.format( "Shard[%s] is summarized twice, in SummaryFile[%s] and SummaryFile[%s]", l_shard, l_otherSummaryFile, l_summaryFile ) );
+        l_isComplete = false;
+      }
+    }
+    if ( ( l_unshardedCount > 0 ) && ( l_shardCount > 0 ) ) {
+      aErr.println( String.format( "%d SummaryFile(s) of unsharded runs merged with the summaries of shards", l_unshardedCount ) );
+      l_isComplete = false;
+    }
+    for ( int l_shardIndex = 1; l_shardIndex <= l_shardCount; ++l_shardIndex ) {
+      if ( ! l_shardFileMap.containsKey( l_shardIndex ) ) {
+        aErr.println( String.format( "Missing Shard[%d/%d]", l_shardIndex, l_shardCount ) );
+        l_isComplete = false;
+      }
+    }
+    StringBuilder l_summary = new StringBuilder();
+    for ( Map.Entry<String, Long> l_counterEntry : l_counterMap.entrySet() ) {
+      appendLine( l_summary, l_counterEntry.getKey(), String.valueOf( l_counterEntry.getValue() ) );
+    }
+    Collections.sort( l_matchedFilePathList );
+    for ( String l_matchedFilePath : l_matchedFilePathList ) {
+      appendLine( l_summary, MATCHED_FILE_KEY, l_matchedFilePath );
+    }
+    Collections.sort( l_failedFilePathList );
+    for ( String l_failedFilePath : l_failedFilePathList ) {
+      appendLine( l_summary, FAILED_FILE_KEY, l_failedFilePath );
+    }
+    aOut.print( l_summary );
+    return l_isComplete && l_failedFilePathList.isEmpty();
+  }
+  
+  private static void appendLine( StringBuilder aSummary, String aKey, String aValue ) {
+    aSummary.append( aKey ).append( '[' ).append( aValue ).append( "]\n" );
+  }
+  
+}
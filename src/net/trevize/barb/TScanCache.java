@@ -0,0 +1,208 @@
+package net.trevize.barb;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/*
+ * Persistent cache of the target files in which a replacement plan found no match. A later run with the same
+ * plan skips such a file without opening it when its size and last modification time did not change. When only
+ * the modification time changed (a checkout touching the file for example), the content hash avoids applying the
+ * plan again.
+ *
+ * The cache file is big-endian: the magic "BRBC", the format version and the number of entries, then for each
+ * entry the canonical path (as written by DataOutput.writeUTF), the size, the last modification time in
+ * milliseconds, the FNV-1a 64 hash of the content and the fingerprint of the plan which found no match. A cache
+ * file which cannot be read, or written by another version, is ignored and rewritten.
+ *
+ * Several runs can share the cache file: save() takes an exclusive lock on the sidecar file CACHE_FILE.lock,
+ * merges the entries changed by this run into the entries currently on disk and atomically replaces the cache
+ * file. The lookups and updates can be done concurrently by the worker threads.
+ */
+public class TScanCache {
+  
+  public static final long UNKNOWN_CONTENT_HASH = 0;
+  
+  private static final int  MAGIC                   = 0x42524243;
+  private static final int  VERSION                 = 1;
+  
+  /*
+   * A file modified less than this before being read is not recorded: a change within the granularity of the
+   * file system timestamps would leave its size and last modification time unchanged.
+   */
+  private static final long RACY_MODIFICATION_DELAY = 2000;
+  
+  private static final long FNV_OFFSET_BASIS        = 0xcbf29ce484222325L;
+  private static final long FNV_PRIME               = 0x100000001b3L;
+  
+  private static class TEntry {
+    
+    private long fSize             = 0;
+    private long fLastModifiedTime = 0;
+    private long fContentHash      = 0;
+    private long fFingerprint      = 0;
+    
+    public TEntry( long aSize, long aLastModifiedTime, long aContentHash, long aFingerprint ) {
+      fSize = aSize;
+      fLastModifiedTime = aLastModifiedTime;
+      fContentHash = aContentHash;
+      fFingerprint = aFingerprint;
+    }
+    
+  }
+  
+  private File                fCacheFile       = null;
+  private Map<String, TEntry> fEntryMap        = null;
+  private Map<String, TEntry> fChangedEntryMap = new ConcurrentHashMap<>();
+  private Set<String>         fRemovedPathSet  = ConcurrentHashMap.newKeySet();
+  
+  private TScanCache( File aCacheFile, Map<String, TEntry> aEntryMap ) {
+    fCacheFile = aCacheFile;
+    fEntryMap = new ConcurrentHashMap<>( aEntryMap );
+  }
+  
+  public static TScanCache load( File aCacheFile ) {
+    return new TScanCache( aCacheFile, readEntryMap( aCacheFile ) );
+  }
+  
+  /*
+   * Returns true if the plan with aFingerprint found no match in the file the last time it was read, and if the
+   * file has still the same size and last modification time.
+   */
+  public boolean isUnchangedWithoutMatch( String aPath, long aSize, long aLastModifiedTime, long aFingerprint ) {
+    TEntry l_entry = fEntryMap.get( aPath );
+    return ( l_entry != null ) && ( l_entry.fSize == aSize ) && ( l_entry.fLastModifiedTime == aLastModifiedTime ) && ( l_entry.fFingerprint == aFingerprint );
+  }
+  
+  /*
+   * Returns true if the plan with aFingerprint found no match in a previous content of the file having the same
+   * size and hash.
+   */
+  public boolean hasSameContentWithoutMatch( String aPath, long aSize, long aContentHash, long aFingerprint ) {
+    TEntry l_entry = fEntryMap.get( aPath );
+    return ( l_entry != null ) && ( aContentHash != UNKNOWN_CONTENT_HASH ) && ( l_entry.fSize == aSize ) && ( l_entry.fContentHash == aContentHash ) && ( l_entry.fFingerprint == aFingerprint );
+  }
+  
+  /*
+   * Records that the plan with aFingerprint found no match in the file, aSize and aLastModifiedTime having been
+   * read before its content. aContentHash is UNKNOWN_CONTENT_HASH if the content was not hashed, the entry then
+   * only matches on the file metadata.
+   */
+  public void recordNoMatch( String aPath, long aSize, long aLastModifiedTime, long aContentHash, long aFingerprint ) {
+    if ( System.currentTimeMillis() - aLastModifiedTime < RACY_MODIFICATION_DELAY ) {
+      forget( aPath );
+      return;
+    }
+    TEntry l_entry = new TEntry( aSize, aLastModifiedTime, aContentHash, aFingerprint );
+    fRemovedPathSet.remove( aPath );
+    fEntryMap.put( aPath, l_entry );
+    fChangedEntryMap.put( aPath, l_entry );
+  }
+  
+  public void forget( String aPath ) {
+    if ( fEntryMap.remove( aPath ) != null ) {
+      fChangedEntryMap.remove( aPath );
+      fRemovedPathSet.add( aPath );
+    }
+  }
+  
+  /*
+   * FNV-1a 64 hash of the first aLength bytes of aContent, never equal to UNKNOWN_CONTENT_HASH.
+   */
+  public static long hash( byte[] aContent, int aLength ) {
+    long l_hash = FNV_OFFSET_BASIS;
+    for ( int l_byteIndex = 0; l_byteIndex < aLength; ++l_byteIndex ) {
+      l_hash ^= aContent[ l_byteIndex ] & 0xff;
+      l_hash *= FNV_PRIME;
+    }
+    return ( l_hash == UNKNOWN_CONTENT_HASH ) ? 1 : l_hash;
+  }
+  
+  /*
+   * Merges the changes of this run into the cache file, under the lock shared with the other runs.
+   */
+  public void save() throws IOException {
+    if ( fChangedEntryMap.isEmpty() && fRemovedPathSet.isEmpty() ) {
+      return;
+    }
+    Path l_cachePath = fCacheFile.getAbsoluteFile().toPath();
+    Path l_lockPath = l_cachePath.resolveSibling( l_cachePath.getFileName() + ".lock" );
+    try ( FileChannel l_lockChannel = FileChannel.open( l_lockPath, StandardOpenOption.CREATE, StandardOpenOption.WRITE ) ) {
+      // The lock is released when the channel is closed.
+      l_lockChannel.lock();
+      Map<String, TEntry> l_entryMap = readEntryMap( fCacheFile );
+      l_entryMap.keySet().removeAll( fRemovedPathSet );
+      l_entryMap.putAll( fChangedEntryMap );
+      Path l_temporaryPath = Files.createTempFile( l_cachePath.getParent(), "." + l_cachePath.getFileName(), ".barb" );
+      try {
+        writeEntryMap( l_temporaryPath, l_entryMap );
+        try {
+          Files.move( l_temporaryPath, l_cachePath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE );
+        }
+        catch ( AtomicMoveNotSupportedException l_exception ) {
+          Files.move( l_temporaryPath, l_cachePath, StandardCopyOption.REPLACE_EXISTING );
+        }
+      }
+      finally {
+        Files.deleteIfExists( l_temporaryPath );
+      }
+    }
+    fChangedEntryMap.clear();
+    fRemovedPathSet.clear();
+  }
+  
+  /*
+   * Returns the entries of the cache file, none if it does not exist or cannot be read.
+   */
+  private static Map<String, TEntry> readEntryMap( File aCacheFile ) {
+    Map<String, TEntry> l_entryMap = new HashMap<>();
+    if ( ! aCacheFile.isFile() ) {
+      return l_entryMap;
+    }
+    try ( DataInputStream l_inputStream = new DataInputStream( new BufferedInputStream( Files.newInputStream( aCacheFile.toPath() ), 1 << 16 ) ) ) {
+      if ( ( l_inputStream.readInt() != MAGIC ) || ( l_inputStream.readInt() != VERSION ) ) {
+        return l_entryMap;
+      }
+      int l_entryCount = l_inputStream.readInt();
+      for ( int l_entryIndex = 0; l_entryIndex < l_entryCount; ++l_entryIndex ) {
+        String l_path = l_inputStream.readUTF();
+        l_entryMap.put( l_path, new TEntry( l_inputStream.readLong(), l_inputStream.readLong(), l_inputStream.readLong(), l_inputStream.readLong() ) );
+      }
+    }
+    catch ( IOException l_exception ) {
+      // A truncated or unreadable cache file, none of its entries is trusted.
+      l_entryMap.clear();
+    }
+    return l_entryMap;
+  }
+  
+  private static void writeEntryMap( Path aPath, Map<String, TEntry> aEntryMap ) throws IOException {
+    try ( DataOutputStream l_outputStream = new DataOutputStream( new BufferedOutputStream( Files.newOutputStream( aPath ), 1 << 16 ) ) ) {
+      l_outputStream.writeInt( MAGIC );
+      l_outputStream.writeInt( VERSION );
+      l_outputStream.writeInt( aEntryMap.size() );
+      for ( Map.Entry<String, TEntry> l_mapEntry : aEntryMap.entrySet() ) {
+        TEntry l_entry = l_mapEntry.getValue();
+        l_outputStream.writeUTF( l_mapEntry.getKey() );
+        l_outputStream.writeLong( l_entry.fSize );
+        l_outputStream.writeLong( l_entry.fLastModifiedTime );
+        l_outputStream.writeLong( l_entry.fContentHash );
+        l_outputStream.writeLong( l_entry.fFingerprint );
+      }
+    }
+  }
+  
+}
@@ -0,0 +1,102 @@
+package net.trevize.barb;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+
+/*
+ * One of the N disjoint slices of a sweep, so that separate barb processes (on other nodes or containers) can
+ * each process a slice of the same target files without any coordination. A target file belongs to the shard
+ * given by a stable hash of its key modulo N: the key of a target file named on the command line or read from the
+ * standard input is its path as given, the key of a file found by walking a DIRECTORY is its path relative to
+ * the DIRECTORY, with '/' as separator. The assignment only depends on the key and N, not on the node, the mount
+ * point of the tree, the JVM or the order of the walk.
+ *
+ * Shards are numbered from 1 to N, as written on the command line: 1/4 is the first of four.
+ */
+public class TShard {
+  
+  private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+  private static final long FNV_PRIME        = 0x100000001b3L;
+  
+  private int fIndex = 0;
+  private int fCount = 0;
+  
+  public TShard( int aIndex, int aCount ) {
+    fIndex = aIndex;
+    fCount = aCount;
+  }
+  
+  /*
+   * Parses a shard written I/N, returns null if it is not valid.
+   */
+  public static TShard parse( String aShard ) {
+    int l_slashIndex = aShard.indexOf( '/' );
+    if ( l_slashIndex < 0 ) {
+      return null;
+    }
+    int l_index = 0;
+    int l_count = 0;
+    try {
+      l_index = Integer.parseInt( aShard.substring( 0, l_slashIndex ).trim() );
+      l_count = Integer.parseInt( aShard.substring( l_slashIndex + 1 ).trim() );
+    }
+    catch ( NumberFormatException l_exception ) {
+      return null;
+    }
+    if ( ( l_count < 1 ) || ( l_index < 1 ) || ( l_index > l_count ) ) {
+      return null;
+    }
+    return new TShard( l_index, l_count );
+  }
+  
+  public int getIndex() {
+    return fIndex;
+  }
+  
+  public int getCount() {
+    return fCount;
+  }
+  
+  public boolean contains( String aKey ) {
+    return ( Long.remainderUnsigned( hash( toKey( aKey ) ), fCount ) + 1 ) == fIndex;
+  }
+  
+  @Override
+  public String toString() {
+    return fIndex + "/" + fCount;
+  }
+  
+  /*
+   * The same file gets the same key whatever the platform separator, and whether or not it is written with
+   * leading "./".
+   */
+  private static String toKey( String aPath ) {
+    String l_key = aPath;
+    if ( File.separatorChar != '/' ) {
+      l_key = l_key.replace( File.separatorChar, '/' );
+    }
+    while ( l_key.startsWith( "./" ) ) {
+      l_key = l_key.substring( 2 );
+    }
+    return l_key;
+  }
+  
+  /*
+   * FNV-1a 64 of the UTF-8 bytes, then the finalizer of MurmurHash3 so that keys differing only by their last
+   * char spread evenly over a small number of shards.
+   */
+  static long hash( String aKey ) {
+    long l_hash = FNV_OFFSET_BASIS;
+    for ( byte l_byte : aKey.getBytes( StandardCharsets.UTF_8 ) ) {
+      l_hash ^= l_byte & 0xff;
+      l_hash *= FNV_PRIME;
+    }
+    l_hash ^= l_hash >>> 33;
+    l_hash *= 0xff51afd7ed558ccdL;
+    l_hash ^= l_hash >>> 33;
+    l_hash *= 0xc4ceb9a53fe1a185L;
+    l_hash ^= l_hash >>> 33;
+    return l_hash;
+  }
+  
+}
@@ -0,0 +1,157 @@
+package net.trevize.barb;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/*
+ * Counters of a run, updated concurrently by the worker threads. The counters are always maintained, the
+ * cumulative time spent in each phase is only measured when the statistics are timed: otherwise startTimer()
+ * and stopTimer() do not even read the clock.
+ *
+ * The phase times are summed over the worker threads, with several threads their total exceeds the elapsed
+ * time of the run.
+ */
+public class TStatistics {
+  
+  public enum TCounter {
+    
+    SCANNED_FILES( "scannedFiles" ),
+    MATCHED_FILES( "matchedFiles" ),
+    SKIPPED_BINARY_FILES( "skippedBinaryFiles" ),
+    SKIPPED_OVERSIZED_FILES( "skippedOversizedFiles" ),
+    SKIPPED_UNCHANGED_FILES( "skippedUnchangedFiles" ),
+    FAILED_FILES( "failedFiles" ),
+    TIMED_OUT_FILES( "timedOutFiles" ),
+    STREAMED_FILES( "streamedFiles" ),
+    MATCHES( "matches" ),
+    READ_BYTES( "readBytes" ),
+    WRITTEN_BYTES( "writtenBytes" );
+    
+    private String fJsonName = null;
+    
+    private TCounter( String aJsonName ) {
+      fJsonName = aJsonName;
+    }
+    
+    public String getJsonName() {
+      return fJsonName;
+    }
+    
+  }
+  
+  public enum TPhase {
+    
+    SNIFF( "Sniff", "sniff" ),
+    READ( "Read", "read" ),
+    LITERAL_SEARCH( "LiteralSearch", "literalSearch" ),
+    PREFILTER( "Prefilter", "prefilter" ),
+    DECODE( "Decode", "decode" ),
+    REGEX_SEARCH( "RegexSearch", "regexSearch" ),
+    ENCODE( "Encode", "encode" ),
+    WRITE( "Write", "write" ),
+    STREAM( "Stream", "stream" );
+    
+    private String fTextName = null;
+    private String fJsonName = null;
+    
+    private TPhase( String aTextName, String aJsonName ) {
+      fTextName = aTextName;
+      fJsonName = aJsonName;
+    }
+    
+  }
+  
+  private boolean     fTimed               = false;
+  private LongAdder[] fCounterAdderArray   = null;
+  private LongAdder[] fPhaseNanoAdderArray = null;
+  private long        fStartNanoTime       = 0;
+  private long        fElapsedNanoTime     = 0;
+  
+  public TStatistics( boolean aTimed ) {
+    fTimed = aTimed;
+    fCounterAdderArray = new LongAdder[ TCounter.values().length ];
+    for ( int l_counterIndex = 0; l_counterIndex < fCounterAdderArray.length; ++l_counterIndex ) {
+      fCounterAdderArray[ l_counterIndex ] = new LongAdder();
+    }
+    fPhaseNanoAdderArray = new LongAdder[ TPhase.values().length ];
+    for ( int l_phaseIndex = 0; l_phaseIndex < fPhaseNanoAdderArray.length; ++l_phaseIndex ) {
+      fPhaseNanoAdderArray[ l_phaseIndex ] = new LongAdder();
+    }
+    fStartNanoTime = System.nanoTime();
+  }
+  
+  public void increment( TCounter aCounter ) {
+    fCounterAdderArray[ aCounter.ordinal() ].increment();
+  }
+  
+  public void add( TCounter aCounter, long aValue ) {
+    fCounterAdderArray[ aCounter.ordinal() ].add( aValue );
+  }
+  
+  public long get( TCounter aCounter ) {
+    return fCounterAdderArray[ aCounter.ordinal() ].sum();
+  }
+  
+  public long getSkippedFileCount() {
+    return get( TCounter.SKIPPED_BINARY_FILES ) + get( TCounter.SKIPPED_OVERSIZED_FILES ) + get( TCounter.SKIPPED_UNCHANGED_FILES );
+  }
+  
+  public long startTimer() {
+    return fTimed ? System.nanoTime() : 0;
+  }
+  
+  public void stopTimer( TPhase aPhase, long aStartNanoTime ) {
+    if ( fTimed ) {
+      fPhaseNanoAdderArray[ aPhase.ordinal() ].add( System.nanoTime() - aStartNanoTime );
+    }
+  }
+  
+  /*
+   * Starts a batch of target files with --watch, the wait between the batches is not part of the elapsed time.
+   */
+  public void start() {
+    fStartNanoTime = System.nanoTime();
+  }
+  
+  /*
+   * Ends the run or a batch, the elapsed time is measured from the creation of the statistics or from start().
+   */
+  public void stop() {
+    fElapsedNanoTime += System.nanoTime() - fStartNanoTime;
+  }
+  
+  public String toText() {
+    StringBuilder l_text = new StringBuilder();
+    l_text.append( String.format( "Files: Scanned[%d] Matched[%d] Skipped[%d] Failed[%d] TimedOut[%d] Streamed[%d]\n", get( TCounter.SCANNED_FILES ), get( TCounter.MATCHED_FILES ), getSkippedFileCount(), get( TCounter.FAILED_FILES ), get( TCounter.TIMED_OUT_FILES ), get( TCounter.STREAMED_FILES ) ) );
+    l_text.append( String.format( "Matches[%d]\n", get( TCounter.MATCHES ) ) );
+    l_text.append( String.format( "Bytes: Read[%d] Written[%d]\n", get( TCounter.READ_BYTES ), get( TCounter.WRITTEN_BYTES ) ) );
+    double l_elapsedSeconds = fElapsedNanoTime / 1e9;
+    double l_throughput = ( l_elapsedSeconds > 0 ) ? ( get( TCounter.READ_BYTES ) / ( 1024.0 * 1024.0 ) / l_elapsedSeconds ) : 0;
+    l_text.append( String.format( "Time: Elapsed[%.3fs] Throughput[%.1fMB/s]\n", l_elapsedSeconds, l_throughput ) );
+    l_text.append( "Phases:" );
+    for ( TPhase l_phase : TPhase.values() ) {
+      l_text.append( String.format( " %s[%.3fs]", l_phase.fTextName, fPhaseNanoAdderArray[ l_phase.ordinal() ].sum() / 1e9 ) );
+    }
+    return l_text.toString();
+  }
+  
+  /*
+   * A single line JSON object, the times are in nanoseconds.
+   */
+  public String toJson() {
+    StringBuilder l_json = new StringBuilder();
+    l_json.append( "{\"elapsedNanos\":" ).append( fElapsedNanoTime );
+    for ( TCounter l_counter : TCounter.values() ) {
+      l_json.append( ",\"" ).append( l_counter.fJsonName ).append( "\":" ).append( get( l_counter ) );
+    }
+    l_json.append( ",\"phaseNanos\":{" );
+    for ( TPhase l_phase : TPhase.values() ) {
+      if ( l_phase.ordinal() > 0 ) {
+        l_json.append( ',' );
+      }
+      l_json.append( '"' ).append( l_phase.fJsonName ).append( "\":" ).append( fPhaseNanoAdderArray[ l_phase.ordinal() ].sum() );
+    }
+    l_json.append( "}}" );
+    return l_json.toString();
+  }
+  
+}
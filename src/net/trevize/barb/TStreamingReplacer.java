@@ -0,0 +1,314 @@
+package net.trevize.barb;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.CharBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/*
+ * Replaces the matches of a literal or of a regular expression while reading the target file through a
+ * fixed-size window, so that the memory used does not depend on the file size. A literal is searched in the
+ * raw bytes, a regular expression in the decoded chars.
+ *
+ * The end of a window which could be the beginning of a match is carried over to the next window:
+ * literal length minus one bytes for a literal, the declared maximum match length for a regular expression.
+ * For a regular expression the same amount of already written chars is also kept before the window, so that
+ * lookbehinds and anchors see the preceding text.
+ *
+ * Nothing is written as long as no match has been found. On the first match the unchanged prefix is copied
+ * to a temporary file next to the target file (by FileChannel.transferTo() for a literal), the rest is written
+ * as the reading goes and the temporary file finally replaces the target file.
+ */
+public class TStreamingReplacer {
+  
+  public static final int WINDOW_SIZE = 1 << 20;
+  
+  private TByteLiteralMatcher fLiteralMatcher    = null;
+  private byte[]              fReplacementBytes  = null;
+  private Pattern             fRegexPattern      = null;
+  private String              fReplacement       = null;
+  private int                 fOverlapLength     = 0;
+  private int                 fContextLength     = 0;
+  private int                 fMaxMatchLength    = 0;
+  private long                fRegexTimeoutNanos = 0;
+  
+  public TStreamingReplacer( TByteLiteralMatcher aLiteralMatcher, byte[] aReplacementBytes ) {
+    fLiteralMatcher = aLiteralMatcher;
+    fReplacementBytes = aReplacementBytes;
+    fOverlapLength = aLiteralMatcher.getLength() - 1;
+  }
+  
+  /*
+   * The regular expression gets aRegexTimeoutNanos (when positive) per target file, see TDeadlineCharSequence.
+   */
+  public TStreamingReplacer( Pattern aRegexPattern, String aReplacement, int aMaxMatchLength, long aRegexTimeoutNanos ) {
+    fRegexPattern = aRegexPattern;
+    fRegexTimeoutNanos = aRegexTimeoutNanos;
+    fReplacement = aReplacement;
+    fMaxMatchLength = aMaxMatchLength;
+    fOverlapLength = aMaxMatchLength;
+    fContextLength = aMaxMatchLength;
+  }
+  
+  /*
+   * Returns true if at least one match has been found (and replaced) in the target file.
+   */
+  public boolean replace( File aTargetFile, TStatistics aStatistics ) throws IOException {
+    TWindowOutput l_output = new TWindowOutput( aTargetFile.toPath() );
+    try {
+      if ( fLiteralMatcher != null ) {
+        replaceLiteral( aTargetFile.toPath(), l_output, aStatistics );
+      }
+      else {
+        replaceRegex( aTargetFile.toPath(), l_output, aStatistics );
+      }
+      aStatistics.add( TStatistics.TCounter.READ_BYTES, Files.size( aTargetFile.toPath() ) );
+      if ( ! l_output.commit() ) {
+        return false;
+      }
+      aStatistics.add( TStatistics.TCounter.WRITTEN_BYTES, Files.size( aTargetFile.toPath() ) );
+      return true;
+    }
+    finally {
+      l_output.discard();
+    }
+  }
+  
+  private void replaceLiteral( Path aTargetPath, TWindowOutput aOutput, TStatistics aStatistics ) throws IOException {
+    try ( InputStream l_inputStream = Files.newInputStream( aTargetPath ) ) {
+      byte[] l_buffer = new byte[ WINDOW_SIZE + fOverlapLength ];
+      long l_bufferOffset = 0;
+      int l_length = 0;
+      boolean l_endOfFile = false;
+      while ( true ) {
+        while ( ( l_length < l_buffer.length ) && ! l_endOfFile ) {
+          int l_readLength = l_inputStream.read( l_buffer, l_length, l_buffer.length - l_length );
+          if ( l_readLength < 0 ) {
+            l_endOfFile = true;
+          }
+          else {
+            l_length += l_readLength;
+          }
+        }
+        int l_commitLimit = l_endOfFile ? l_length : ( l_length - fOverlapLength );
+        
+        int l_position = 0;
+        int l_matchIndex = fLiteralMatcher.indexOf( l_buffer, l_position, l_length );
+        while ( ( l_matchIndex >= 0 ) && ( l_matchIndex < l_commitLimit ) ) {
+          aStatistics.increment( TStatistics.TCounter.MATCHES );
+          aOutput.replace( l_buffer, l_bufferOffset, l_position, l_matchIndex, fReplacementBytes );
+          l_position = l_matchIndex + fLiteralMatcher.getLength();
+          l_matchIndex = fLiteralMatcher.indexOf( l_buffer, l_position, l_length );
+        }
+        
+        int l_emitEnd = Math.max( l_position, l_commitLimit );
+        aOutput.copy( l_buffer, l_position, l_emitEnd );
+        if ( l_endOfFile ) {
+          break;
+        }
+        
+        System.arraycopy( l_buffer, l_emitEnd, l_buffer, 0, l_length - l_emitEnd );
+        l_bufferOffset += l_emitEnd;
+        l_length -= l_emitEnd;
+      }
+    }
+  }
+  
+  private void replaceRegex( Path aTargetPath, TWindowOutput aOutput, TStatistics aStatistics ) throws IOException {
+    long l_regexStartNanoTime = System.nanoTime();
+    try ( Reader l_reader = new InputStreamReader( Files.newInputStream( aTargetPath ) ) ) {
+      char[] l_buffer = new char[ WINDOW_SIZE + fOverlapLength + fContextLength ];
+      long l_bufferOffset = 0;
+      int l_length = 0;
+      int l_position = 0;
+      boolean l_endOfFile = false;
+      while ( true ) {
+        while ( ( l_length < l_buffer.length ) && ! l_endOfFile ) {
+          int l_readLength = l_reader.read( l_buffer, l_length, l_buffer.length - l_length );
+          if ( l_readLength < 0 ) {
+            l_endOfFile = true;
+          }
+          else {
+            l_length += l_readLength;
+          }
+        }
+        int l_commitLimit = l_endOfFile ? l_length : ( l_length - fOverlapLength );
+        
+        Matcher l_matcher = fRegexPattern.matcher( TDeadlineCharSequence.wrap( CharBuffer.wrap( l_buffer, 0, l_length ), fRegexTimeoutNanos, l_regexStartNanoTime ) );
+        l_matcher.useTransparentBounds( true );
+        l_matcher.useAnchoringBounds( false );
+        l_matcher.region( l_position, l_length );
+        while ( l_matcher.find() ) {
+          if ( l_matcher.start() >= l_commitLimit ) {
+            break;
+          }
+          if ( ( l_matcher.end() - l_matcher.start() ) > fMaxMatchLength ) {
+            throw new IOException( String.format( "Found a match longer than the maximum match length[%d]", fMaxMatchLength ) );
+          }
+          aStatistics.increment( TStatistics.TCounter.MATCHES );
+          aOutput.replace( l_buffer, l_bufferOffset, l_position, l_matcher.start(), fReplacement );
+          l_position = l_matcher.end();
+        }
+        
+        int l_emitEnd = Math.max( l_position, l_commitLimit );
+        aOutput.copy( l_buffer, l_position, l_emitEnd );
+        l_position = l_emitEnd;
+        if ( l_endOfFile ) {
+          break;
+        }
+        
+        int l_keepStart = Math.max( 0, l_position - fContextLength );
+        System.arraycopy( l_buffer, l_keepStart, l_buffer, 0, l_length - l_keepStart );
+        l_bufferOffset += l_keepStart;
+        l_length -= l_keepStart;
+        l_position -= l_keepStart;
+      }
+    }
+  }
+  
+  /*
+   * The output of the replacement, the temporary file is only created on the first match.
+   */
+  private static class TWindowOutput {
+    
+    private Path         fTargetPath    = null;
+    private Path         fTemporaryPath = null;
+    private FileChannel  fChannel       = null;
+    private OutputStream fOutputStream  = null;
+    private Writer       fWriter        = null;
+    
+    public TWindowOutput( Path aTargetPath ) {
+      fTargetPath = aTargetPath;
+    }
+    
+    public void replace( byte[] aBuffer, long aBufferOffset, int aFrom, int aMatchStart, byte[] aReplacement ) throws IOException {
+      if ( fOutputStream == null ) {
+        open();
+        copyPrefixBytes( aBufferOffset + aFrom );
+      }
+      fOutputStream.write( aBuffer, aFrom, aMatchStart - aFrom );
+      fOutputStream.write( aReplacement );
+    }
+    
+    public void copy( byte[] aBuffer, int aFrom, int aTo ) throws IOException {
+      if ( fOutputStream != null ) {
+        fOutputStream.write( aBuffer, aFrom, aTo - aFrom );
+      }
+    }
+    
+    public void replace( char[] aBuffer, long aBufferOffset, int aFrom, int aMatchStart, String aReplacement ) throws IOException {
+      if ( fOutputStream == null ) {
+        open();
+        fWriter = new OutputStreamWriter( fOutputStream );
+        copyPrefixChars( aBufferOffset + aFrom );
+      }
+      fWriter.write( aBuffer, aFrom, aMatchStart - aFrom );
+      fWriter.write( aReplacement );
+    }
+    
+    public void copy( char[] aBuffer, int aFrom, int aTo ) throws IOException {
+      if ( fWriter != null ) {
+        fWriter.write( aBuffer, aFrom, aTo - aFrom );
+      }
+    }
+    
+    private void open() throws IOException {
+      Path l_directoryPath = fTargetPath.toAbsolutePath().getParent();
+      fTemporaryPath = Files.createTempFile( l_directoryPath, "." + fTargetPath.getFileName(), ".barb" );
+      try {
+        Files.setPosixFilePermissions( fTemporaryPath, Files.getPosixFilePermissions( fTargetPath ) );
+      }
+      catch ( UnsupportedOperationException l_exception ) {
+        // Not a POSIX file system, the temporary file keeps the default permissions.
+      }
+      fChannel = FileChannel.open( fTemporaryPath, StandardOpenOption.WRITE );
+      fOutputStream = new BufferedOutputStream( Channels.newOutputStream( fChannel ) );
+    }
+    
+    /*
+     * Copies the first aPrefixLength bytes of the target file, they have already been read without any match.
+     * Nothing has been written to the temporary file yet, the kernel copies the prefix straight into it.
+     */
+    private void copyPrefixBytes( long aPrefixLength ) throws IOException {
+      try ( FileChannel l_targetChannel = FileChannel.open( fTargetPath, StandardOpenOption.READ ) ) {
+        long l_copiedLength = 0;
+        while ( l_copiedLength < aPrefixLength ) {
+          long l_transferredLength = l_targetChannel.transferTo( l_copiedLength, aPrefixLength - l_copiedLength, fChannel );
+          if ( l_transferredLength <= 0 ) {
+            throw new IOException( "TargetFile has been truncated while being read" );
+          }
+          l_copiedLength += l_transferredLength;
+        }
+      }
+    }
+    
+    /*
+     * Copies the first aPrefixLength chars of the target file, they have already been read without any match.
+     */
+    private void copyPrefixChars( long aPrefixLength ) throws IOException {
+      try ( Reader l_reader = new InputStreamReader( Files.newInputStream( fTargetPath ) ) ) {
+        char[] l_buffer = new char[ 8192 ];
+        long l_remainingLength = aPrefixLength;
+        while ( l_remainingLength > 0 ) {
+          int l_readLength = l_reader.read( l_buffer, 0, (int) Math.min( l_buffer.length, l_remainingLength ) );
+          if ( l_readLength < 0 ) {
+            throw new IOException( "TargetFile has been truncated while being read" );
+          }
+          fWriter.write( l_buffer, 0, l_readLength );
+          l_remainingLength -= l_readLength;
+        }
+      }
+    }
+    
+    public boolean commit() throws IOException {
+      if ( fOutputStream == null ) {
+        return false;
+      }
+      close();
+      try {
+        Files.move( fTemporaryPath, fTargetPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE );
+      }
+      catch ( AtomicMoveNotSupportedException l_exception ) {
+        Files.move( fTemporaryPath, fTargetPath, StandardCopyOption.REPLACE_EXISTING );
+      }
+      fTemporaryPath = null;
+      return true;
+    }
+    
+    private void close() throws IOException {
+      if ( fWriter != null ) {
+        fWriter.close();
+      }
+      else if ( fOutputStream != null ) {
+        fOutputStream.close();
+      }
+      fWriter = null;
+      fOutputStream = null;
+      fChannel = null;
+    }
+    
+    public void discard() throws IOException {
+      close();
+      if ( fTemporaryPath != null ) {
+        Files.deleteIfExists( fTemporaryPath );
+      }
+    }
+    
+  }
+  
+}
@@ -0,0 +1,189 @@
+package net.trevize.barb;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * Spreads the target files over a pool of worker threads.
+ * A failing target file does not stop the others, its failure is recorded and returned by awaitCompletion().
+ * With a single thread the task is run directly by the submitting thread.
+ * At most MAX_PENDING_TARGET_FILES_PER_THREAD target files per worker thread wait for a worker, submit() blocks
+ * beyond: a source listing millions of files is read at the pace of the workers.
+ *
+ * A staged task runs as a pipeline, each stage on its own pool of threads: a stage returns the next stage of the
+ * target file, which is handed over to the threads of the next pool. At most MAX_PENDING_STAGES_PER_THREAD
+ * handed over target files per thread wait for a thread of a later pool, the thread handing over blocks beyond:
+ * the target files held between two stages, with their content, are bounded. A failure in any stage is
+ * recorded for the target file, awaitCompletion() waits for the pools one after the other.
+ */
+public class TTargetFileDispatcher {
+  
+  public interface TTargetFileTask {
+    void run( File aTargetFile ) throws Exception;
+  }
+  
+  public interface TTargetFileSource {
+    void submitTo( TTargetFileDispatcher aDispatcher ) throws Exception;
+  }
+  
+  /*
+   * A stage of a staged task, returns the next stage of the target file or null once it is processed.
+   */
+  public interface TTargetFileStage {
+    TTargetFileStage run() throws Exception;
+  }
+  
+  /*
+   * Runs the first stage of a target file and returns the next one, or null.
+   */
+  public interface TStagedTargetFileTask {
+    TTargetFileStage run( File aTargetFile ) throws Exception;
+  }
+  
+  public static class TTargetFileFailure implements Comparable<TTargetFileFailure> {
+    
+    private String    fTargetFilePath = null;
+    private Exception fException      = null;
+    
+    public TTargetFileFailure( File aTargetFile, Exception aException ) {
+      fTargetFilePath = TTargetFileDispatcher.getTargetFilePath( aTargetFile );
+      fException = aException;
+    }
+    
+    public String getTargetFilePath() {
+      return fTargetFilePath;
+    }
+    
+    public Exception getException() {
+      return fException;
+    }
+    
+    @Override
+    public int compareTo( TTargetFileFailure aOther ) {
+      return fTargetFilePath.compareTo( aOther.fTargetFilePath );
+    }
+    
+  }
+  
+  private static final int MAX_PENDING_TARGET_FILES_PER_THREAD = 64;
+  private static final int MAX_PENDING_STAGES_PER_THREAD       = 2;
+  
+  private TStagedTargetFileTask                     fTask             = null;
+  private ExecutorService[]                         fExecutorServices = null;
+  private Semaphore[]                               fPendingPermits   = null;
+  private ConcurrentLinkedQueue<TTargetFileFailure> fFailureQueue     = null;
+  
+  public TTargetFileDispatcher( int aThreadCount, TTargetFileTask aTask ) {
+    this( new int[] { aThreadCount }, l_targetFile -> {
+      aTask.run( l_targetFile );
+      return null;
+    } );
+  }
+  
+  /*
+   * aStageThreadCounts gives the number of threads of each stage, the stages beyond run on the thread of the last
+   * one.
+   */
+  public TTargetFileDispatcher( int[] aStageThreadCounts, TStagedTargetFileTask aTask ) {
+    fTask = aTask;
+    fFailureQueue = new ConcurrentLinkedQueue<>();
+    if ( ( aStageThreadCounts.length == 1 ) && ( aStageThreadCounts[ 0 ] <= 1 ) ) {
+      return;
+    }
+    fExecutorServices = new ExecutorService[ aStageThreadCounts.length ];
+    fPendingPermits = new Semaphore[ aStageThreadCounts.length ];
+    for ( int l_stageIndex = 0; l_stageIndex < aStageThreadCounts.length; ++l_stageIndex ) {
+      int l_threadCount = Math.max( 1, aStageThreadCounts[ l_stageIndex ] );
+      int l_maxPendingCount = ( l_stageIndex == 0 ) ? MAX_PENDING_TARGET_FILES_PER_THREAD : MAX_PENDING_STAGES_PER_THREAD;
+      fExecutorServices[ l_stageIndex ] = Executors.newFixedThreadPool( l_threadCount );
+      fPendingPermits[ l_stageIndex ] = new Semaphore( l_threadCount * ( l_maxPendingCount + 1 ) );
+    }
+  }
+  
+  public void submit( File aTargetFile ) {
+    execute( aTargetFile, 0, () -> fTask.run( aTargetFile ) );
+  }
+  
+  private void execute( File aTargetFile, int aStageIndex, TTargetFileStage aStage ) {
+    if ( ( fExecutorServices == null ) || ( aStageIndex >= fExecutorServices.length ) ) {
+      runStage( aTargetFile, aStageIndex, aStage );
+      return;
+    }
+    fPendingPermits[ aStageIndex ].acquireUninterruptibly();
+    fExecutorServices[ aStageIndex ].execute( () -> {
+      try {
+        runStage( aTargetFile, aStageIndex, aStage );
+      }
+      finally {
+        fPendingPermits[ aStageIndex ].release();
+      }
+    } );
+  }
+  
+  private void runStage( File aTargetFile, int aStageIndex, TTargetFileStage aStage ) {
+    TTargetFileStage l_nextStage = null;
+    try {
+      l_nextStage = aStage.run();
+    }
+    catch ( Exception l_exception ) {
+      reportFailure( aTargetFile, l_exception );
+    }
+    catch ( OutOfMemoryError l_error ) {
+      // The buffers of the target file are unreachable by now, the other target files go on.
+      reportFailure( aTargetFile, new Exception( "Not enough heap to process the target file, see --memory-budget", l_error ) );
+    }
+    catch ( StackOverflowError l_error ) {
+      // java.util.regex recurses on the repetitions of groups, the stack of the thread is unwound by now.
+      reportFailure( aTargetFile, new Exception( "Stack overflow while matching the target file, see -Xss in BARB_JAVA_OPTIONS or --engine automaton", l_error ) );
+    }
+    catch ( Error l_error ) {
+      reportFailure( aTargetFile, new Exception( l_error ) );
+    }
+    if ( l_nextStage != null ) {
+      execute( aTargetFile, aStageIndex + 1, l_nextStage );
+    }
+  }
+  
+  /*
+   * Records a target file which could not be processed, for example a file the walker could not visit.
+   */
+  public void reportFailure( File aTargetFile, Exception aException ) {
+    fFailureQueue.add( new TTargetFileFailure( aTargetFile, aException ) );
+  }
+  
+  /*
+   * Waits for all the submitted target files and returns the failures sorted by path, so that the error report
+   * does not depend on the scheduling of the worker threads.
+   */
+  public List<TTargetFileFailure> awaitCompletion() throws InterruptedException {
+    if ( fExecutorServices != null ) {
+      // A pool only receives target files from the previous one, it is shut down once the previous one is done.
+      for ( ExecutorService l_executorService : fExecutorServices ) {
+        l_executorService.shutdown();
+        while ( ! l_executorService.awaitTermination( 1, TimeUnit.SECONDS ) ) {
+          continue;
+        }
+      }
+    }
+    List<TTargetFileFailure> l_failureList = new ArrayList<>( fFailureQueue );
+    Collections.sort( l_failureList );
+    return l_failureList;
+  }
+  
+  static String getTargetFilePath( File aTargetFile ) {
+    try {
+      return aTargetFile.getCanonicalPath();
+    }
+    catch ( Exception l_exception ) {
+      return aTargetFile.getAbsolutePath();
+    }
+  }
+  
+}
@@ -0,0 +1,44 @@
+package net.trevize.barb;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/*
+ * Reads target file paths from a stream one at a time, as they arrive: paths separated by new lines, or by NUL
+ * bytes as written by find -print0, which allows any char in a path. The paths are decoded with the platform
+ * charset, empty paths are skipped.
+ */
+public class TTargetFileListReader {
+  
+  private InputStream           fInputStream = null;
+  private int                   fDelimiter   = '\n';
+  private ByteArrayOutputStream fPathBuffer  = new ByteArrayOutputStream();
+  
+  public TTargetFileListReader( InputStream aInputStream, boolean aIsNulDelimited ) {
+    fInputStream = new BufferedInputStream( aInputStream );
+    fDelimiter = aIsNulDelimited ? 0 : '\n';
+  }
+  
+  /*
+   * Returns the next path, or null at the end of the stream.
+   */
+  public String next() throws IOException {
+    while ( true ) {
+      fPathBuffer.reset();
+      int l_byte = fInputStream.read();
+      while ( ( l_byte >= 0 ) && ( l_byte != fDelimiter ) ) {
+        fPathBuffer.write( l_byte );
+        l_byte = fInputStream.read();
+      }
+      if ( fPathBuffer.size() > 0 ) {
+        return fPathBuffer.toString();
+      }
+      if ( l_byte < 0 ) {
+        return null;
+      }
+    }
+  }
+  
+}
@@ -0,0 +1,289 @@
+package net.trevize.barb;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileSystem;
+import java.nio.file.FileSystems;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+
+/*
+ * Walks a directory tree and submits its regular files to a dispatcher as soon as they are visited.
+ *
+ * A glob containing a '/' is matched against the path relative to the walked directory, otherwise it is matched
+ * against the file name. Exclude globs also prune directories. Hidden directories (name starting with a '.')
+ * are pruned unless requested otherwise. Symbolic links are not followed.
+ *
+ * Optionally the .gitignore and .ignore files are honored: the ignored directories are pruned before descending
+ * into them and the ignored files are not submitted. The rules of a directory are compiled once, when the walk
+ * enters it, and stacked with those of its parents: the ignore files of the walked directory and of its parents
+ * up to the repository root (the first one containing a .git) apply, the rules of a deeper directory take
+ * precedence. The .git directories are never walked in this mode.
+ *
+ * With a shard, only the files of the shard are submitted, keyed by their path relative to the walked directory.
+ */
+public class TTargetFileWalker {
+  
+  private List<PathMatcher>  fIncludeMatcherList    = null;
+  private List<Boolean>      fIncludeOnPathList     = null;
+  private List<PathMatcher>  fExcludeMatcherList    = null;
+  private List<Boolean>      fExcludeOnPathList     = null;
+  private boolean            fWalkHiddenDirectories = false;
+  private boolean            fUseIgnoreFiles        = false;
+  private TShard             fShard                 = null;
+  private TDirectoryListener fDirectoryListener     = null;
+  
+  /*
+   * Told about each directory the walk enters, before its files are submitted.
+   */
+  public interface TDirectoryListener {
+    void enterDirectory( File aDirectory, Path aDirectoryPath ) throws IOException;
+  }
+  
+  /*
+   * The compiled rules of a walked directory with ignore files.
+   */
+  private static class TIgnoreLevel {
+    
+    private Path         fDirectory   = null;
+    private TIgnoreRules fIgnoreRules = null;
+    
+    private TIgnoreLevel( Path aDirectory, TIgnoreRules aIgnoreRules ) {
+      fDirectory = aDirectory;
+      fIgnoreRules = aIgnoreRules;
+    }
+    
+  }
+  
+  public TTargetFileWalker( List<String> aIncludeGlobList, List<String> aExcludeGlobList, boolean aWalkHiddenDirectories, boolean aUseIgnoreFiles, TShard aShard ) {
+    fIncludeMatcherList = new ArrayList<>();
+    fIncludeOnPathList = new ArrayList<>();
+    fExcludeMatcherList = new ArrayList<>();
+    fExcludeOnPathList = new ArrayList<>();
+    FileSystem l_fileSystem = FileSystems.getDefault();
+    for ( String l_glob : aIncludeGlobList ) {
+      fIncludeMatcherList.add( l_fileSystem.getPathMatcher( "glob:" + l_glob ) );
+      fIncludeOnPathList.add( l_glob.contains( "/" ) );
+    }
+    for ( String l_glob : aExcludeGlobList ) {
+      fExcludeMatcherList.add( l_fileSystem.getPathMatcher( "glob:" + l_glob ) );
+      fExcludeOnPathList.add( l_glob.contains( "/" ) );
+    }
+    fWalkHiddenDirectories = aWalkHiddenDirectories;
+    fUseIgnoreFiles = aUseIgnoreFiles;
+    fShard = aShard;
+  }
+  
+  public void setDirectoryListener( TDirectoryListener aDirectoryListener ) {
+    fDirectoryListener = aDirectoryListener;
+  }
+  
+  public void walk( File aDirectory, TTargetFileDispatcher aDispatcher ) throws IOException {
+    walk( aDirectory, aDirectory.toPath(), aDispatcher );
+  }
+  
+  /*
+   * Walks aStartPath, aDirectory or one of its directories accepted by accepts(): the globs, the ignore files and
+   * the shard apply as in a walk of aDirectory. Used to walk a directory created under a watched directory.
+   */
+  public void walk( File aDirectory, Path aStartPath, TTargetFileDispatcher aDispatcher ) throws IOException {
+    Path l_rootPath = aDirectory.toPath();
+    Path l_absoluteRootPath = l_rootPath.toAbsolutePath().normalize();
+    Deque<TIgnoreLevel> l_ignoreLevelStack = new ArrayDeque<>();
+    if ( fUseIgnoreFiles ) {
+      pushParentIgnoreLevels( l_absoluteRootPath, l_ignoreLevelStack );
+      pushDirectoryIgnoreLevels( l_absoluteRootPath, l_rootPath.relativize( aStartPath ), l_ignoreLevelStack );
+    }
+    Files.walkFileTree( aStartPath, new SimpleFileVisitor<Path>() {
+      
+      @Override
+      public FileVisitResult preVisitDirectory( Path aDirectoryPath, BasicFileAttributes aAttributes ) throws IOException {
+        Path l_relativePath = l_rootPath.relativize( aDirectoryPath );
+        Path l_absolutePath = l_absoluteRootPath.resolve( l_relativePath );
+        if ( ! aDirectoryPath.equals( aStartPath ) && ! isWalkedDirectory( l_relativePath, l_absolutePath, l_ignoreLevelStack ) ) {
+          return FileVisitResult.SKIP_SUBTREE;
+        }
+        if ( fUseIgnoreFiles ) {
+          pushIgnoreLevel( l_absolutePath, l_ignoreLevelStack );
+        }
+        if ( fDirectoryListener != null ) {
+          fDirectoryListener.enterDirectory( aDirectory, aDirectoryPath );
+        }
+        return FileVisitResult.CONTINUE;
+      }
+      
+      @Override
+      public FileVisitResult postVisitDirectory( Path aDirectoryPath, IOException aException ) throws IOException {
+        if ( fUseIgnoreFiles ) {
+          popIgnoreLevel( l_absoluteRootPath.resolve( l_rootPath.relativize( aDirectoryPath ) ), l_ignoreLevelStack );
+        }
+        return super.postVisitDirectory( aDirectoryPath, aException );
+      }
+      
+      @Override
+      public FileVisitResult visitFile( Path aFilePath, BasicFileAttributes aAttributes ) {
+        if ( ! aAttributes.isRegularFile() ) {
+          return FileVisitResult.CONTINUE;
+        }
+        Path l_relativePath = l_rootPath.relativize( aFilePath );
+        if ( isSubmittedFile( l_relativePath, l_absoluteRootPath.resolve( l_relativePath ), l_ignoreLevelStack ) ) {
+          aDispatcher.submit( aFilePath.toFile() );
+        }
+        return FileVisitResult.CONTINUE;
+      }
+      
+      @Override
+      public FileVisitResult visitFileFailed( Path aFilePath, IOException aException ) {
+        aDispatcher.reportFailure( aFilePath.toFile(), aException );
+        return FileVisitResult.CONTINUE;
+      }
+      
+    } );
+  }
+  
+  /*
+   * Tells whether a walk of aDirectory would submit the file aPath, or walk the directory aPath. Each directory
+   * between them is checked as the walk would, for a path reported by a watch service.
+   */
+  public boolean accepts( File aDirectory, Path aPath, boolean aIsDirectory ) throws IOException {
+    Path l_rootPath = aDirectory.toPath();
+    if ( aPath.equals( l_rootPath ) ) {
+      return aIsDirectory;
+    }
+    Path l_relativePath = l_rootPath.relativize( aPath );
+    Path l_absoluteRootPath = l_rootPath.toAbsolutePath().normalize();
+    Deque<TIgnoreLevel> l_ignoreLevelStack = new ArrayDeque<>();
+    if ( fUseIgnoreFiles ) {
+      pushParentIgnoreLevels( l_absoluteRootPath, l_ignoreLevelStack );
+      pushIgnoreLevel( l_absoluteRootPath, l_ignoreLevelStack );
+    }
+    int l_nameCount = l_relativePath.getNameCount();
+    for ( int l_nameIndex = 1; l_nameIndex < l_nameCount; ++l_nameIndex ) {
+      Path l_relativeDirectoryPath = l_relativePath.subpath( 0, l_nameIndex );
+      Path l_absoluteDirectoryPath = l_absoluteRootPath.resolve( l_relativeDirectoryPath );
+      if ( ! isWalkedDirectory( l_relativeDirectoryPath, l_absoluteDirectoryPath, l_ignoreLevelStack ) ) {
+        return false;
+      }
+      if ( fUseIgnoreFiles ) {
+        pushIgnoreLevel( l_absoluteDirectoryPath, l_ignoreLevelStack );
+      }
+    }
+    Path l_absolutePath = l_absoluteRootPath.resolve( l_relativePath );
+    if ( aIsDirectory ) {
+      return isWalkedDirectory( l_relativePath, l_absolutePath, l_ignoreLevelStack );
+    }
+    return isSubmittedFile( l_relativePath, l_absolutePath, l_ignoreLevelStack );
+  }
+  
+  /*
+   * aRelativePath is relative to the walked directory, the ignore level stack holds the levels of its parents.
+   */
+  private boolean isWalkedDirectory( Path aRelativePath, Path aAbsolutePath, Deque<TIgnoreLevel> aIgnoreLevelStack ) {
+    String l_name = aRelativePath.getFileName().toString();
+    if ( ! fWalkHiddenDirectories && l_name.startsWith( "." ) ) {
+      return false;
+    }
+    if ( matchesAny( fExcludeMatcherList, fExcludeOnPathList, aRelativePath ) ) {
+      return false;
+    }
+    return ! fUseIgnoreFiles || ! ( l_name.equals( ".git" ) || isIgnored( aAbsolutePath, true, aIgnoreLevelStack ) );
+  }
+  
+  private boolean isSubmittedFile( Path aRelativePath, Path aAbsolutePath, Deque<TIgnoreLevel> aIgnoreLevelStack ) {
+    if ( ! fIncludeMatcherList.isEmpty() && ! matchesAny( fIncludeMatcherList, fIncludeOnPathList, aRelativePath ) ) {
+      return false;
+    }
+    if ( matchesAny( fExcludeMatcherList, fExcludeOnPathList, aRelativePath ) ) {
+      return false;
+    }
+    if ( fUseIgnoreFiles && isIgnored( aAbsolutePath, false, aIgnoreLevelStack ) ) {
+      return false;
+    }
+    return ( fShard == null ) || fShard.contains( aRelativePath.toString() );
+  }
+  
+  /*
+   * Pushes the levels of the parents of the walked directory up to the repository root, outermost first. Without
+   * repository above the walked directory, only its own ignore files apply.
+   */
+  private static void pushParentIgnoreLevels( Path aAbsoluteRootPath, Deque<TIgnoreLevel> aIgnoreLevelStack ) throws IOException {
+    Path l_repositoryRootPath = aAbsoluteRootPath;
+    while ( ( l_repositoryRootPath != null ) && ! Files.exists( l_repositoryRootPath.resolve( ".git" ) ) ) {
+      l_repositoryRootPath = l_repositoryRootPath.getParent();
+    }
+    if ( l_repositoryRootPath == null ) {
+      return;
+    }
+    List<Path> l_parentList = new ArrayList<>();
+    for ( Path l_parent = aAbsoluteRootPath; ! l_parent.equals( l_repositoryRootPath ); ) {
+      l_parent = l_parent.getParent();
+      l_parentList.add( 0, l_parent );
+    }
+    for ( Path l_parent : l_parentList ) {
+      pushIgnoreLevel( l_parent, aIgnoreLevelStack );
+    }
+  }
+  
+  /*
+   * Pushes the levels of the walked directory and of its directories down to the parent of aRelativeStartPath, for
+   * a walk starting below the walked directory.
+   */
+  private static void pushDirectoryIgnoreLevels( Path aAbsoluteRootPath, Path aRelativeStartPath, Deque<TIgnoreLevel> aIgnoreLevelStack ) throws IOException {
+    if ( aRelativeStartPath.toString().isEmpty() ) {
+      return;
+    }
+    pushIgnoreLevel( aAbsoluteRootPath, aIgnoreLevelStack );
+    for ( int l_nameIndex = 1; l_nameIndex < aRelativeStartPath.getNameCount(); ++l_nameIndex ) {
+      pushIgnoreLevel( aAbsoluteRootPath.resolve( aRelativeStartPath.subpath( 0, l_nameIndex ) ), aIgnoreLevelStack );
+    }
+  }
+  
+  private static void pushIgnoreLevel( Path aAbsoluteDirectoryPath, Deque<TIgnoreLevel> aIgnoreLevelStack ) throws IOException {
+    TIgnoreRules l_ignoreRules = TIgnoreRules.load( aAbsoluteDirectoryPath );
+    if ( l_ignoreRules != null ) {
+      aIgnoreLevelStack.push( new TIgnoreLevel( aAbsoluteDirectoryPath, l_ignoreRules ) );
+    }
+  }
+  
+  private static void popIgnoreLevel( Path aAbsoluteDirectoryPath, Deque<TIgnoreLevel> aIgnoreLevelStack ) {
+    if ( ! aIgnoreLevelStack.isEmpty() && aIgnoreLevelStack.peek().fDirectory.equals( aAbsoluteDirectoryPath ) ) {
+      aIgnoreLevelStack.pop();
+    }
+  }
+  
+  /*
+   * The deepest level with a rule matching the path decides, a parent directory ignored has already been pruned.
+   */
+  private static boolean isIgnored( Path aAbsolutePath, boolean aIsDirectory, Deque<TIgnoreLevel> aIgnoreLevelStack ) {
+    for ( TIgnoreLevel l_ignoreLevel : aIgnoreLevelStack ) {
+      String l_relativePath = l_ignoreLevel.fDirectory.relativize( aAbsolutePath ).toString();
+      if ( File.separatorChar != '/' ) {
+        l_relativePath = l_relativePath.replace( File.separatorChar, '/' );
+      }
+      int l_match = l_ignoreLevel.fIgnoreRules.match( l_relativePath, aIsDirectory );
+      if ( l_match != TIgnoreRules.NOT_MATCHED ) {
+        return l_match == TIgnoreRules.IGNORED;
+      }
+    }
+    return false;
+  }
+  
+  private static boolean matchesAny( List<PathMatcher> aMatcherList, List<Boolean> aOnPathList, Path aRelativePath ) {
+    for ( int l_matcherIndex = 0; l_matcherIndex < aMatcherList.size(); ++l_matcherIndex ) {
+      Path l_matchedPath = aOnPathList.get( l_matcherIndex ) ? aRelativePath : aRelativePath.getFileName();
+      if ( aMatcherList.get( l_matcherIndex ).matches( l_matchedPath ) ) {
+        return true;
+      }
+    }
+    return false;
+  }
+  
+}
@@ -0,0 +1,269 @@
+package net.trevize.barb;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * Watches the target files of a run once they have been swept, so that the replacement is applied again to the
+ * target files created or modified afterwards. The directories entered by the walk of a DIRECTORY are registered
+ * to a WatchService before their files are submitted, a file created during the sweep is either walked or
+ * reported. The parent directories of the TARGET_FILEs named on the command line are registered too, their
+ * events are kept for these target files only.
+ *
+ * The events are debounced: a batch starts with the first event and ends once no event came for
+ * DEBOUNCE_MILLIS, or after MAX_BATCH_MILLIS while a target file keeps changing. The file reported by an event
+ * is checked as the walk would check it (hidden directories, globs, ignore files, shard), a created directory
+ * is walked and registered, a file which is gone is forgotten.
+ *
+ * The writes of barb are events too. The size and modification time of a target file written by barb are
+ * recorded, its events are ignored while its metadata is unchanged: only a later change of the file is processed.
+ */
+public class TTargetFileWatcher implements TTargetFileWalker.TDirectoryListener {
+  
+  public static final long DEBOUNCE_MILLIS  = 300;
+  public static final long MAX_BATCH_MILLIS = 10 * DEBOUNCE_MILLIS;
+  
+  /*
+   * A registered directory: walked as a directory of DIRECTORY, or the parent of TARGET_FILEs, or both.
+   */
+  private static class TWatchedDirectory {
+    
+    private Path      fDirectoryPath = null;
+    private File      fRootDirectory = null;
+    private Set<Path> fTargetFileSet = new HashSet<>();
+    
+    private TWatchedDirectory( Path aDirectoryPath ) {
+      fDirectoryPath = aDirectoryPath;
+    }
+    
+  }
+  
+  /*
+   * The metadata of a target file written by barb.
+   */
+  private static class TWrite {
+    
+    private long fSize         = 0;
+    private long fLastModified = 0;
+    
+    private TWrite( BasicFileAttributes aAttributes ) {
+      fSize = aAttributes.size();
+      fLastModified = aAttributes.lastModifiedTime().toMillis();
+    }
+    
+    private boolean isSame( BasicFileAttributes aAttributes ) {
+      return ( fSize == aAttributes.size() ) && ( fLastModified == aAttributes.lastModifiedTime().toMillis() );
+    }
+    
+  }
+  
+  private TTargetFileWalker                fWalker              = null;
+  private WatchService                     fWatchService        = null;
+  private Map<WatchKey, TWatchedDirectory> fWatchedDirectoryMap = new HashMap<>();
+  private ConcurrentHashMap<Path, TWrite>  fWriteMap            = new ConcurrentHashMap<>();
+  
+  /*
+   * The watcher registers the directories entered by aWalker, which must be the walker of the sweep.
+   */
+  public TTargetFileWatcher( TTargetFileWalker aWalker ) throws IOException {
+    fWalker = aWalker;
+    fWalker.setDirectoryListener( this );
+    fWatchService = FileSystems.getDefault().newWatchService();
+  }
+  
+  public TTargetFileWalker getWalker() {
+    return fWalker;
+  }
+  
+  @Override
+  public void enterDirectory( File aDirectory, Path aDirectoryPath ) throws IOException {
+    register( aDirectoryPath ).fRootDirectory = aDirectory;
+  }
+  
+  /*
+   * Watches a TARGET_FILE named on the command line.
+   */
+  public void registerTargetFile( File aTargetFile ) throws IOException {
+    Path l_targetPath = aTargetFile.toPath();
+    Path l_directoryPath = l_targetPath.toAbsolutePath().getParent();
+    register( l_directoryPath ).fTargetFileSet.add( l_targetPath.getFileName() );
+  }
+  
+  private TWatchedDirectory register( Path aDirectoryPath ) throws IOException {
+    WatchKey l_watchKey = aDirectoryPath.register( fWatchService, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY );
+    TWatchedDirectory l_watchedDirectory = fWatchedDirectoryMap.get( l_watchKey );
+    if ( l_watchedDirectory == null ) {
+      l_watchedDirectory = new TWatchedDirectory( aDirectoryPath );
+      fWatchedDirectoryMap.put( l_watchKey, l_watchedDirectory );
+    }
+    return l_watchedDirectory;
+  }
+  
+  /*
+   * Called by the worker threads once a target file has been written.
+   */
+  public void recordWrite( File aTargetFile ) throws IOException {
+    Path l_targetPath = aTargetFile.toPath();
+    fWriteMap.put( l_targetPath.toAbsolutePath().normalize(), new TWrite( Files.readAttributes( l_targetPath, BasicFileAttributes.class ) ) );
+  }
+  
+  /*
+   * Blocks until a batch of changes has been debounced, and returns the source submitting its target files. The
+   * source must be submitted before the next call, it registers the directories created in the meantime. Returns
+   * null once every watched directory is gone.
+   */
+  public TTargetFileDispatcher.TTargetFileSource awaitChanges() throws InterruptedException, IOException {
+    List<TWatchedDirectory> l_walkedDirectoryList = new ArrayList<>();
+    List<Path> l_targetPathList = new ArrayList<>();
+    // A batch whose events only come from the writes of barb, or from files which are not target files, is skipped.
+    while ( l_walkedDirectoryList.isEmpty() && l_targetPathList.isEmpty() ) {
+      if ( fWatchedDirectoryMap.isEmpty() ) {
+        return null;
+      }
+      Map<Path, TWatchedDirectory> l_changedPathMap = new LinkedHashMap<>();
+      Set<Path> l_createdPathSet = new HashSet<>();
+      WatchKey l_watchKey = fWatchService.take();
+      long l_batchEndNanoTime = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos( MAX_BATCH_MILLIS );
+      while ( l_watchKey != null ) {
+        collectEvents( l_watchKey, l_changedPathMap, l_createdPathSet, l_walkedDirectoryList );
+        if ( System.nanoTime() - l_batchEndNanoTime >= 0 ) {
+          break;
+        }
+        l_watchKey = fWatchService.poll( DEBOUNCE_MILLIS, TimeUnit.MILLISECONDS );
+      }
+      for ( Map.Entry<Path, TWatchedDirectory> l_changedPathEntry : l_changedPathMap.entrySet() ) {
+        Path l_changedPath = l_changedPathEntry.getKey();
+        checkChangedPath( l_changedPathEntry.getValue(), l_changedPath, l_createdPathSet.contains( l_changedPath ), l_walkedDirectoryList, l_targetPathList );
+      }
+    }
+    return l_dispatcher -> {
+      for ( TWatchedDirectory l_walkedDirectory : l_walkedDirectoryList ) {
+        if ( l_walkedDirectory.fRootDirectory != null ) {
+          fWalker.walk( l_walkedDirectory.fRootDirectory, l_walkedDirectory.fDirectoryPath, l_dispatcher );
+        }
+        for ( Path l_targetFileName : l_walkedDirectory.fTargetFileSet ) {
+          l_dispatcher.submit( l_walkedDirectory.fDirectoryPath.resolve( l_targetFileName ).toFile() );
+        }
+      }
+      for ( Path l_targetPath : l_targetPathList ) {
+        // A target file is not submitted twice in a batch, by an event and by the walk of its directory.
+        if ( ! isWalked( l_targetPath, l_walkedDirectoryList ) ) {
+          l_dispatcher.submit( l_targetPath.toFile() );
+        }
+      }
+    };
+  }
+  
+  /*
+   * Tells whether a target file submitted by a walk of barb must be skipped: it is unchanged since barb wrote it.
+   * The record of a write is kept while the target file is unchanged, a write may be reported by several events.
+   */
+  public boolean isOwnWrite( File aTargetFile, BasicFileAttributes aAttributes ) {
+    Path l_targetPath = aTargetFile.toPath().toAbsolutePath().normalize();
+    TWrite l_write = fWriteMap.get( l_targetPath );
+    if ( l_write == null ) {
+      return false;
+    }
+    if ( l_write.isSame( aAttributes ) ) {
+      return true;
+    }
+    fWriteMap.remove( l_targetPath );
+    return false;
+  }
+  
+  private void collectEvents( WatchKey aWatchKey, Map<Path, TWatchedDirectory> aChangedPathMap, Set<Path> aCreatedPathSet, List<TWatchedDirectory> aWalkedDirectoryList ) {
+    TWatchedDirectory l_watchedDirectory = fWatchedDirectoryMap.get( aWatchKey );
+    for ( WatchEvent<?> l_event : aWatchKey.pollEvents() ) {
+      if ( l_watchedDirectory == null ) {
+        continue;
+      }
+      if ( l_event.kind() == StandardWatchEventKinds.OVERFLOW ) {
+        // Events have been lost, the whole directory is walked again.
+        if ( ! aWalkedDirectoryList.contains( l_watchedDirectory ) ) {
+          aWalkedDirectoryList.add( l_watchedDirectory );
+        }
+        continue;
+      }
+      Path l_changedPath = l_watchedDirectory.fDirectoryPath.resolve( (Path) l_event.context() );
+      aChangedPathMap.put( l_changedPath, l_watchedDirectory );
+      if ( l_event.kind() == StandardWatchEventKinds.ENTRY_CREATE ) {
+        aCreatedPathSet.add( l_changedPath );
+      }
+    }
+    if ( ! aWatchKey.reset() ) {
+      // The directory is gone.
+      fWatchedDirectoryMap.remove( aWatchKey );
+    }
+  }
+  
+  /*
+   * Adds the changed path to the target files or to the directories to walk, or drops it.
+   */
+  private void checkChangedPath( TWatchedDirectory aWatchedDirectory, Path aChangedPath, boolean aIsCreated, List<TWatchedDirectory> aWalkedDirectoryList, List<Path> aTargetPathList ) throws IOException {
+    BasicFileAttributes l_attributes = null;
+    try {
+      l_attributes = Files.readAttributes( aChangedPath, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS );
+    }
+    catch ( NoSuchFileException l_exception ) {
+      // Deleted or renamed since the event, as the temporary files of barb.
+      return;
+    }
+    File l_rootDirectory = aWatchedDirectory.fRootDirectory;
+    if ( l_attributes.isDirectory() ) {
+      if ( aIsCreated && ( l_rootDirectory != null ) && fWalker.accepts( l_rootDirectory, aChangedPath, true ) ) {
+        TWatchedDirectory l_walkedDirectory = new TWatchedDirectory( aChangedPath );
+        l_walkedDirectory.fRootDirectory = l_rootDirectory;
+        aWalkedDirectoryList.add( l_walkedDirectory );
+      }
+      return;
+    }
+    boolean l_isTargetFile = aWatchedDirectory.fTargetFileSet.contains( aChangedPath.getFileName() );
+    if ( ! l_isTargetFile && ( ! l_attributes.isRegularFile() || ( l_rootDirectory == null ) || ! fWalker.accepts( l_rootDirectory, aChangedPath, false ) ) ) {
+      return;
+    }
+    if ( l_isTargetFile ) {
+      // A TARGET_FILE is followed if it is a symbolic link, as on the command line.
+      try {
+        l_attributes = Files.readAttributes( aChangedPath, BasicFileAttributes.class );
+      }
+      catch ( NoSuchFileException l_exception ) {
+        return;
+      }
+      if ( ! l_attributes.isRegularFile() ) {
+        return;
+      }
+    }
+    if ( ! isOwnWrite( aChangedPath.toFile(), l_attributes ) ) {
+      aTargetPathList.add( aChangedPath );
+    }
+  }
+  
+  private static boolean isWalked( Path aTargetPath, List<TWatchedDirectory> aWalkedDirectoryList ) {
+    for ( TWatchedDirectory l_walkedDirectory : aWalkedDirectoryList ) {
+      if ( aTargetPath.startsWith( l_walkedDirectory.fDirectoryPath ) ) {
+        return true;
+      }
+    }
+    return false;
+  }
+  
+}
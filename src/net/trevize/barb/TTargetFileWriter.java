@@ -0,0 +1,136 @@
+package net.trevize.barb;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+/*
+ * Writes the replaced content of a target file through a FileChannel, so that the write I/O grows with the
+ * changed region rather than with the file size. The replaced content is compared with the content read:
+ *   - of the same length (the replacements are as long as their matches), only the changed byte ranges are
+ *     written, at their offsets. Ranges less than PATCH_GAP_LENGTH apart are written at once;
+ *   - otherwise the target file is rewritten from the first changed byte and truncated to its new length.
+ * The target file is updated in place like a plain rewrite would: its inode, links and permissions are kept, and
+ * a reader may see a partially written file. If the size of the target file changed since it was read, it is
+ * rewritten from its first byte.
+ *
+ * In atomic mode the replaced content goes to a temporary file next to the target file, which then replaces the
+ * target file: a reader sees either the whole old content or the whole new one. The unchanged prefix is copied
+ * from the target file with FileChannel.transferTo(), which lets the kernel copy it without going through barb.
+ */
+public class TTargetFileWriter {
+  
+  public static final int PATCH_GAP_LENGTH = 1 << 12;
+  
+  private boolean fIsAtomic = false;
+  
+  public TTargetFileWriter( boolean aIsAtomic ) {
+    fIsAtomic = aIsAtomic;
+  }
+  
+  /*
+   * Replaces the first aContentLength bytes of aContent, read from the target file, with the first
+   * aReplacedLength bytes of aReplaced. Returns the number of bytes written by barb, the prefix copied by
+   * transferTo() is not counted.
+   */
+  public long write( Path aTargetPath, byte[] aContent, int aContentLength, byte[] aReplaced, int aReplacedLength ) throws IOException {
+    int l_prefixLength = getCommonPrefixLength( aContent, aContentLength, aReplaced, aReplacedLength );
+    if ( fIsAtomic ) {
+      return writeAtomically( aTargetPath, l_prefixLength, aReplaced, aReplacedLength );
+    }
+    try ( FileChannel l_channel = FileChannel.open( aTargetPath, StandardOpenOption.WRITE ) ) {
+      if ( l_channel.size() != aContentLength ) {
+        l_prefixLength = 0;
+      }
+      else if ( aReplacedLength == aContentLength ) {
+        return patch( l_channel, l_prefixLength, aContent, aReplaced, aReplacedLength );
+      }
+      writeFully( l_channel, aReplaced, l_prefixLength, aReplacedLength, l_prefixLength );
+      l_channel.truncate( aReplacedLength );
+      return aReplacedLength - l_prefixLength;
+    }
+  }
+  
+  /*
+   * Writes the changed ranges of a replaced content as long as the content, from aFrom which is the first changed
+   * byte.
+   */
+  private static long patch( FileChannel aChannel, int aFrom, byte[] aContent, byte[] aReplaced, int aLength ) throws IOException {
+    long l_writtenLength = 0;
+    int l_index = aFrom;
+    while ( l_index < aLength ) {
+      if ( aContent[ l_index ] == aReplaced[ l_index ] ) {
+        ++l_index;
+        continue;
+      }
+      int l_rangeStart = l_index;
+      int l_rangeEnd = l_index + 1;
+      // The range is extended while the next changed byte is close enough, the bytes skipped after it are unchanged.
+      for ( l_index = l_rangeEnd; ( l_index < aLength ) && ( l_index - l_rangeEnd < PATCH_GAP_LENGTH ); ++l_index ) {
+        if ( aContent[ l_index ] != aReplaced[ l_index ] ) {
+          l_rangeEnd = l_index + 1;
+        }
+      }
+      writeFully( aChannel, aReplaced, l_rangeStart, l_rangeEnd, l_rangeStart );
+      l_writtenLength += l_rangeEnd - l_rangeStart;
+    }
+    return l_writtenLength;
+  }
+  
+  private static long writeAtomically( Path aTargetPath, int aPrefixLength, byte[] aReplaced, int aReplacedLength ) throws IOException {
+    Path l_targetPath = aTargetPath.toAbsolutePath();
+    Path l_temporaryPath = Files.createTempFile( l_targetPath.getParent(), "." + l_targetPath.getFileName(), ".barb" );
+    try {
+      try {
+        Files.setPosixFilePermissions( l_temporaryPath, Files.getPosixFilePermissions( l_targetPath ) );
+      }
+      catch ( UnsupportedOperationException l_exception ) {
+        // Not a POSIX file system, the temporary file keeps the default permissions.
+      }
+      try ( FileChannel l_targetChannel = FileChannel.open( l_targetPath, StandardOpenOption.READ ); FileChannel l_temporaryChannel = FileChannel.open( l_temporaryPath, StandardOpenOption.WRITE ) ) {
+        long l_copiedLength = 0;
+        while ( l_copiedLength < aPrefixLength ) {
+          long l_transferredLength = l_targetChannel.transferTo( l_copiedLength, aPrefixLength - l_copiedLength, l_temporaryChannel );
+          if ( l_transferredLength <= 0 ) {
+            throw new IOException( "TargetFile has been truncated while being replaced" );
+          }
+          l_copiedLength += l_transferredLength;
+        }
+        writeFully( l_temporaryChannel, aReplaced, aPrefixLength, aReplacedLength, aPrefixLength );
+      }
+      try {
+        Files.move( l_temporaryPath, l_targetPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE );
+      }
+      catch ( AtomicMoveNotSupportedException l_exception ) {
+        Files.move( l_temporaryPath, l_targetPath, StandardCopyOption.REPLACE_EXISTING );
+      }
+    }
+    finally {
+      Files.deleteIfExists( l_temporaryPath );
+    }
+    return aReplacedLength - aPrefixLength;
+  }
+  
+  private static void writeFully( FileChannel aChannel, byte[] aBytes, int aFrom, int aTo, long aPosition ) throws IOException {
+    ByteBuffer l_byteBuffer = ByteBuffer.wrap( aBytes, aFrom, aTo - aFrom );
+    long l_position = aPosition;
+    while ( l_byteBuffer.hasRemaining() ) {
+      l_position += aChannel.write( l_byteBuffer, l_position );
+    }
+  }
+  
+  static int getCommonPrefixLength( byte[] aContent, int aContentLength, byte[] aReplaced, int aReplacedLength ) {
+    int l_length = Math.min( aContentLength, aReplacedLength );
+    int l_index = 0;
+    while ( ( l_index < l_length ) && ( aContent[ l_index ] == aReplaced[ l_index ] ) ) {
+      ++l_index;
+    }
+    return l_index;
+  }
+  
+}